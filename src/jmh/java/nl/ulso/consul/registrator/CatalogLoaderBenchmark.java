@@ -0,0 +1,130 @@
+package nl.ulso.consul.registrator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Time to load a catalog with the DOM based loader, the streaming loader and the compiled catalog.
+ * <p>
+ * The {@code small} catalog has a single service, {@code typical} has three services like the complex test catalog,
+ * {@code large} is generated with a thousand services and a thousand keys, and {@code huge} with ten thousand each. Each catalog is put in a temporary
+ * directory that is on the classpath of the context class loader, just like the catalog of an application.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogLoaderBenchmark {
+
+    private static final String CATALOG_RESOURCE = "META-INF/consul-catalog.xml";
+    private static final String COMPILED_CATALOG_RESOURCE = "META-INF/consul-catalog.bin";
+
+    @Param({"dom", "streaming", "compiled"})
+    public String loader;
+
+    @Param({"small", "typical", "large", "huge"})
+    public String catalog;
+
+    private Path directory;
+    private ClassLoader originalClassLoader;
+    private URLClassLoader classLoader;
+    private CatalogLoader catalogLoader;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("catalog-benchmark");
+        final Path file = directory.resolve(CATALOG_RESOURCE);
+        Files.createDirectories(file.getParent());
+        final byte[] xml = generateCatalog(size()).getBytes(UTF_8);
+        Files.write(file, xml);
+        Files.write(directory.resolve(COMPILED_CATALOG_RESOURCE),
+                CatalogCompiler.compile(new ByteArrayInputStream(xml), CATALOG_RESOURCE));
+        classLoader = new URLClassLoader(new URL[]{directory.toUri().toURL()}, getClass().getClassLoader());
+        originalClassLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(classLoader);
+        switch (loader) {
+            case "dom":
+                catalogLoader = new XmlClasspathCatalogLoader(CATALOG_RESOURCE);
+                break;
+            case "streaming":
+                catalogLoader = new StreamingXmlClasspathCatalogLoader(CATALOG_RESOURCE);
+                break;
+            default:
+                catalogLoader = new CompiledCatalogLoader(COMPILED_CATALOG_RESOURCE, null);
+                break;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Thread.currentThread().setContextClassLoader(originalClassLoader);
+        classLoader.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Catalog load() {
+        return catalogLoader.load();
+    }
+
+    private int size() {
+        switch (catalog) {
+            case "small":
+                return 1;
+            case "typical":
+                return 3;
+            case "large":
+                return 1000;
+            default:
+                return 10000;
+        }
+    }
+
+    private static String generateCatalog(int size) {
+        final StringBuilder builder = new StringBuilder("<catalog delay=\"0s\">\n");
+        for (int i = 0; i < size; i++) {
+            final int port = 8000 + i;
+            builder.append("  <service id=\"service").append(i).append("\" name=\"service").append(i)
+                    .append("\" address=\"127.0.0.1\" port=\"").append(port).append("\">\n")
+                    .append("    <http-check url=\"http://localhost:").append(port)
+                    .append("/health\" interval=\"10s\"/>\n")
+                    .append("    <tag name=\"v1\"/>\n")
+                    .append("    <tag name=\"master\"/>\n")
+                    .append("  </service>\n");
+        }
+        if (size > 1) {
+            for (int i = 0; i < size; i++) {
+                builder.append("  <key name=\"config/service").append(i).append("/enabled\" value=\"true\"/>\n");
+            }
+        }
+        return builder.append("</catalog>\n").toString();
+    }
+}
@@ -0,0 +1,39 @@
+package nl.ulso.consul.registrator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validating and converting Go durations, as done for every duration in the catalog and the agent arguments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GoDurationBenchmark {
+
+    @Param({"5s", "1h30m", "1.5h2m3s500ms"})
+    public String duration;
+
+    @Benchmark
+    public boolean isValidDuration() {
+        return GoDuration.isValidDuration(duration);
+    }
+
+    @Benchmark
+    public long toMilliseconds() {
+        return GoDuration.toMilliseconds(duration);
+    }
+}
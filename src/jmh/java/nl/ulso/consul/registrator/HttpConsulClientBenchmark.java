@@ -0,0 +1,106 @@
+package nl.ulso.consul.registrator;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call latency of the Consul client against an in-process stub of the Consul agent.
+ * <p>
+ * The {@code url-connection} transport is the way the client used to work: a new {@link HttpURLConnection} for every
+ * call, disconnected before reading the response. The {@code keep-alive} transport is the current default.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpConsulClientBenchmark {
+
+    @Param({"url-connection", "keep-alive"})
+    public String transport;
+
+    private HttpServer server;
+    private ConsulClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Logger.setLogLevel(Logger.Level.SILENT);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream input = exchange.getRequestBody()) {
+                input.readAllBytes();
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        final int port = server.getAddress().getPort();
+        client = new HttpConsulClient("keep-alive".equals(transport)
+                ? new KeepAliveTransport("localhost", port, 500, 500)
+                : new UrlConnectionTransport("http://localhost:" + port));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Benchmark
+    public void storeKeyValue() {
+        client.storeKeyValue("key", "value");
+    }
+
+    @Benchmark
+    public void deregister() {
+        client.deregister("service");
+    }
+
+    private static class UrlConnectionTransport implements ConsulTransport {
+        private final String url;
+
+        UrlConnectionTransport(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public ConsulResponse send(ConsulRequest request) throws IOException {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(url + request.getPath()).openConnection();
+            connection.setConnectTimeout(500);
+            connection.setReadTimeout(500);
+            connection.setRequestMethod(request.getMethod());
+            if (request.getBody().length > 0) {
+                connection.setDoOutput(true);
+                try (OutputStream output = connection.getOutputStream()) {
+                    output.write(request.getBody());
+                }
+            }
+            connection.disconnect();
+            return new ConsulResponse(connection.getResponseCode(), new HashMap<>(), new byte[0]);
+        }
+    }
+}
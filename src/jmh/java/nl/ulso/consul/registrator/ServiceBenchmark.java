@@ -0,0 +1,61 @@
+package nl.ulso.consul.registrator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a service, which includes writing and hashing its registration payload, and getting that payload as JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServiceBenchmark {
+
+    private Service service;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = buildService();
+    }
+
+    @Benchmark
+    public Service build() {
+        return buildService();
+    }
+
+    @Benchmark
+    public String toConsulRegistrationJson() {
+        return service.toConsulRegistrationJson();
+    }
+
+    private static Service buildService() {
+        return Catalog.newCatalog().newService()
+                .withId("service1:foo")
+                .withName("service1")
+                .withAddress("127.0.0.1")
+                .withPort("8180")
+                .withHttpCheckUrl("http://localhost:8180/health")
+                .withHttpCheckInterval("10s")
+                .withTag("master")
+                .withTag("v1")
+                .build()
+                .build()
+                .getServices()
+                .iterator()
+                .next();
+    }
+}
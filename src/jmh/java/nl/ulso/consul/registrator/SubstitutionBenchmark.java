@@ -0,0 +1,71 @@
+package nl.ulso.consul.registrator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Environment variable substitution in catalog attributes: parsing the attribute every time, as the XML loaders do,
+ * versus rendering a template that was parsed up front, as the compiled catalog does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubstitutionBenchmark {
+
+    @Param({"literal", "embedded", "multiple"})
+    public String attribute;
+
+    private final Substitution substitution = new Substitution();
+    private String value;
+    private Template template;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Map<String, String> environment = new HashMap<>();
+        environment.put("PORT0", "31000");
+        environment.put("HOST", "10.0.0.12");
+        AbstractBuilder.setEnvironmentForTesting(environment);
+        switch (attribute) {
+            case "literal":
+                value = "http://localhost:8080/health";
+                break;
+            case "embedded":
+                value = "http://localhost:${PORT0}/health";
+                break;
+            default:
+                value = "http://${HOST}:${PORT0}/${PATH:health}";
+                break;
+        }
+        template = Template.parse(value);
+    }
+
+    @Benchmark
+    public String substitute() {
+        return substitution.substituteEnvironmentVariables(value);
+    }
+
+    @Benchmark
+    public String renderParsed() {
+        return substitution.render(template);
+    }
+
+    private static class Substitution extends AbstractBuilder {
+    }
+}
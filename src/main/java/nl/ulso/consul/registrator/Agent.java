@@ -1,28 +1,87 @@
 package nl.ulso.consul.registrator;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.BiFunction;
 
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.unmodifiableMap;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static nl.ulso.consul.registrator.Configuration.StartupMode.ASYNC;
 import static nl.ulso.consul.registrator.Logger.Level.*;
 import static nl.ulso.consul.registrator.Logger.debug;
+import static nl.ulso.consul.registrator.Logger.info;
+import static nl.ulso.consul.registrator.Logger.setFormat;
 import static nl.ulso.consul.registrator.Logger.setLogLevel;
 import static nl.ulso.consul.registrator.Registrator.runAndExitOnException;
 
 public class Agent {
 
     public static void premain(String arguments) {
+        premain(arguments, (configuration, metrics) -> new Registrator(
+                new CompiledCatalogLoader(),
+                new MeteredConsulClient(new HttpConsulClient(configuration, metrics), metrics),
+                configuration,
+                metrics
+        ));
+    }
+
+    static void premain(String arguments, BiFunction<Configuration, Metrics, Registrator> registratorFactory) {
+        final long start = System.nanoTime();
+        final Events.Premain event = Events.isRecording() ? new Events.Premain() : null;
+        if (event != null) {
+            event.begin();
+        }
         Map<String, String> options = parseArguments(arguments);
         configureLogging(options.getOrDefault("logger", "info"));
+        configureLogFormat(options.getOrDefault("log-format", "text"));
 
         debug("Starting Consul registrator agent");
 
-        final Registrator registrator = new Registrator(
-                new XmlClasspathCatalogLoader(),
-                new HttpConsulClient()
-        );
-        runAndExitOnException(registrator::install);
+        runAndExitOnException(() -> {
+            final Configuration configuration = Configuration.fromArguments(options);
+            AbstractBuilder.setVariables(Variables.defaults(configuration.getVariables()));
+            if (configuration.getStartupMode() == ASYNC) {
+                // Only an invalid catalog needs to stop the application, and that works from any thread.
+                final Thread thread = new Thread(() -> install(registratorFactory, configuration, start),
+                        "consul-registrator-startup");
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                install(registratorFactory, configuration, start);
+            }
+        });
+        if (event != null) {
+            event.startupMode = options.getOrDefault("startup", "sync");
+            event.commit();
+        }
+    }
+
+    private static void install(BiFunction<Configuration, Metrics, Registrator> registratorFactory,
+                                Configuration configuration, long start) {
+        runAndExitOnException(() -> {
+            registratorFactory.apply(configuration, new Metrics(start)).install();
+            debug("Agent installed in %sms", NANOSECONDS.toMillis(System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * Compiles a catalog at build time; see {@link CatalogCompiler}.
+     */
+    public static void main(String[] arguments) {
+        if (arguments.length != 2) {
+            System.err.println("Usage: java -jar consul-registrator.jar <consul-catalog.xml> <consul-catalog.bin>");
+            System.exit(2);
+        }
+        try {
+            CatalogCompiler.compile(Paths.get(arguments[0]), Paths.get(arguments[1]));
+            info("Compiled catalog '%s' into '%s'", arguments[0], arguments[1]);
+        } catch (IOException | RuntimeException e) {
+            Logger.error("Could not compile catalog '%s': %s", arguments[0], e.getMessage());
+            System.exit(1);
+        }
     }
 
     static Map<String, String> parseArguments(String arguments) {
@@ -32,11 +91,22 @@ public class Agent {
         final HashMap<String, String> map = new HashMap<>();
         final String[] options = arguments.split(";");
         for (String option : options) {
-            final String[] pair = option.split("=");
-            if (pair.length != 2) {
+            // Only the first '=' separates name and value; values may contain more of them.
+            final String[] pair = option.split("=", 2);
+            if (pair.length != 2 || pair[1].isEmpty()) {
                 continue;
             }
-            map.put(pair[0].toLowerCase(), pair[1].toLowerCase());
+            final String name = pair[0].toLowerCase();
+            if (name.startsWith(Configuration.VARIABLE_PREFIX)) {
+                // Variable names and values are passed on as is, just like environment variables.
+                map.put(Configuration.VARIABLE_PREFIX + pair[0].substring(Configuration.VARIABLE_PREFIX.length()),
+                        pair[1]);
+            } else if (name.equals(Configuration.CONSUL)) {
+                // Unix socket paths are case sensitive.
+                map.put(name, pair[1]);
+            } else {
+                map.put(name, pair[1].toLowerCase());
+            }
         }
         return unmodifiableMap(map);
     }
@@ -54,4 +124,8 @@ public class Agent {
                 break;
         }
     }
+
+    static void configureLogFormat(String format) {
+        setFormat("json".equals(format) ? Logger.Format.JSON : Logger.Format.TEXT);
+    }
 }
@@ -0,0 +1,108 @@
+package nl.ulso.consul.registrator;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs calls to a {@link ConsulClient} in the background, with at most a fixed number of calls in flight at any time.
+ * <p>
+ * The threads are daemon threads, so they never keep the application alive. They go away when they're idle, so that
+ * the agent doesn't keep any threads around once registration is done.
+ * </p>
+ */
+class AsyncConsulClient {
+
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private final ConsulClient consulClient;
+    private final Executor executor;
+
+    AsyncConsulClient(ConsulClient consulClient, int concurrency) {
+        this.consulClient = consulClient;
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(concurrency, concurrency,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new DaemonThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    CompletableFuture<Void> register(Service service) {
+        return CompletableFuture.runAsync(() -> consulClient.register(service), executor);
+    }
+
+    CompletableFuture<Void> deregister(String serviceId) {
+        return CompletableFuture.runAsync(() -> consulClient.deregister(serviceId), executor);
+    }
+
+    CompletableFuture<Void> enableMaintenance(String serviceId, String reason) {
+        return CompletableFuture.runAsync(() -> consulClient.enableMaintenance(serviceId, reason), executor);
+    }
+
+    CompletableFuture<Void> storeKeyValues(Map<String, String> keyValuePairs) {
+        return CompletableFuture.runAsync(() -> consulClient.storeKeyValues(keyValuePairs), executor);
+    }
+
+    CompletableFuture<Void> removeKeys(Collection<String> keys) {
+        return CompletableFuture.runAsync(() -> consulClient.removeKeys(keys), executor);
+    }
+
+    /**
+     * @param deadline In terms of {@link System#nanoTime()}.
+     * @see ConsulClient#shutDown(long)
+     */
+    void shutDown(long deadline) {
+        consulClient.shutDown(deadline);
+    }
+
+    /**
+     * Waits for all calls to complete, or for the first one to fail, whichever comes first.
+     *
+     * @throws RegistratorException As soon as any of the calls fails.
+     */
+    static void awaitAll(Collection<CompletableFuture<Void>> calls) {
+        final CompletableFuture<Void> all = CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0]));
+        final CompletableFuture<Void> firstFailure = new CompletableFuture<>();
+        calls.forEach(call -> call.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                firstFailure.completeExceptionally(throwable);
+            }
+        }));
+        try {
+            CompletableFuture.anyOf(all, firstFailure).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RegistratorException("Interrupted while waiting for Consul", e);
+        } catch (ExecutionException e) {
+            throw toRegistratorException(e.getCause());
+        }
+    }
+
+    private static RegistratorException toRegistratorException(Throwable throwable) {
+        final Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                ? throwable.getCause()
+                : throwable;
+        if (cause instanceof RegistratorException) {
+            return (RegistratorException) cause;
+        }
+        return new RegistratorException("Unexpected error during call to Consul: " + cause, cause);
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "consul-registrator-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
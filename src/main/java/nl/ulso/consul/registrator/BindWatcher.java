@@ -0,0 +1,256 @@
+package nl.ulso.consul.registrator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static nl.ulso.consul.registrator.Logger.debug;
+
+/**
+ * Watches for the application to start listening on its ports.
+ * <p>
+ * On Linux the watcher reads the process's own listening TCP sockets from {@code /proc}: it matches the sockets in
+ * {@code /proc/self/net/tcp[6]} that are in the LISTEN state against the file descriptors in {@code /proc/self/fd}.
+ * That way only sockets opened by this JVM count, and the watcher also sees ports picked by the operating system. On
+ * other systems it falls back to trying to connect to each fixed port on localhost; ports picked by the operating
+ * system can't be detected that way.
+ * </p>
+ * <p>
+ * Ports that were already in use when the watcher was created, and the ports the JVM itself is configured to listen
+ * on for JMX and the debugger, are never handed out to services that wait for any port.
+ * </p>
+ */
+class BindWatcher {
+
+    private static final long POLL_INTERVAL_MILLISECONDS = 20;
+    private static final int CONNECT_TIMEOUT_MILLISECONDS = 50;
+    private static final String[] PROC_NET_FILES = {"/proc/self/net/tcp", "/proc/self/net/tcp6"};
+    private static final String PROC_FD_DIRECTORY = "/proc/self/fd";
+    private static final String LISTEN_STATE = "0A";
+    private static final String[] JVM_PORT_PROPERTIES = {"com.sun.management.jmxremote.port",
+            "com.sun.management.jmxremote.rmi.port", "sun.jdwp.listenerAddress"};
+    static final int NO_PORT = -1;
+
+    private final Supplier<Set<Integer>> listeningPorts;
+    private final Set<Integer> reservedPorts;
+    private final Set<Integer> assignedPorts = new HashSet<>();
+    private final Map<Integer, CompletableFuture<Integer>> portWaits = new HashMap<>();
+    private final List<CompletableFuture<Integer>> anyPortWaits = new ArrayList<>();
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * @param reservedPorts Fixed ports in the catalog; these are never handed out to services waiting for any port.
+     */
+    BindWatcher(Set<Integer> reservedPorts) {
+        this(reservedPorts, isProcAvailable() ? new ProcListeningPorts() : null);
+    }
+
+    BindWatcher(Set<Integer> reservedPorts, Supplier<Set<Integer>> listeningPorts) {
+        this.listeningPorts = listeningPorts;
+        this.reservedPorts = new HashSet<>(reservedPorts);
+        this.reservedPorts.addAll(jvmPorts());
+        if (listeningPorts != null) {
+            this.reservedPorts.addAll(listeningPorts.get());
+        }
+        scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "consul-registrator-bind-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::poll, 0, POLL_INTERVAL_MILLISECONDS, MILLISECONDS);
+    }
+
+    /**
+     * @return A future that completes with the port once the application listens on it.
+     */
+    synchronized CompletableFuture<Integer> awaitPort(int port) {
+        return portWaits.computeIfAbsent(port, p -> new CompletableFuture<>());
+    }
+
+    /**
+     * @param deadline {@link System#nanoTime()} after which to stop waiting.
+     * @return A future that completes with the first port the application starts to listen on that's not reserved and
+     * not handed out before, or with {@link #NO_PORT} if the deadline passes first. If several new ports show up at
+     * once, there's no telling which one comes first; that's why a catalog has at most one service waiting for any
+     * port.
+     */
+    synchronized CompletableFuture<Integer> awaitAnyPort(long deadline) {
+        if (listeningPorts == null) {
+            throw new RegistratorException("Detecting ports requires /proc; it's only supported on Linux");
+        }
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        anyPortWaits.add(future);
+        scheduler.schedule(() -> expire(future), Math.max(0, deadline - System.nanoTime()), NANOSECONDS);
+        return future;
+    }
+
+    /**
+     * Stops waiting, so that a port that's opened later isn't handed out to nobody.
+     */
+    private synchronized void expire(CompletableFuture<Integer> future) {
+        if (anyPortWaits.remove(future)) {
+            future.complete(NO_PORT);
+        }
+    }
+
+    void close() {
+        scheduler.shutdownNow();
+    }
+
+    private synchronized void poll() {
+        try {
+            if (listeningPorts == null) {
+                portWaits.forEach((port, future) -> {
+                    if (!future.isDone() && canConnect(port)) {
+                        future.complete(port);
+                    }
+                });
+                return;
+            }
+            final Set<Integer> ports = listeningPorts.get();
+            portWaits.forEach((port, future) -> {
+                if (ports.contains(port)) {
+                    future.complete(port);
+                }
+            });
+            final Iterator<CompletableFuture<Integer>> waits = anyPortWaits.iterator();
+            for (Integer port : ports) {
+                if (!waits.hasNext()) {
+                    break;
+                }
+                if (!reservedPorts.contains(port) && assignedPorts.add(port)) {
+                    waits.next().complete(port);
+                    waits.remove();
+                }
+            }
+        } catch (RuntimeException e) {
+            // Never let the scheduler die on us; the next poll might do better.
+            debug("Could not check listening ports: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * @return Ports the JVM is configured to listen on by itself. The debugger publishes its address only once it
+     * listens, as {@code host:port} or just the port.
+     */
+    static Set<Integer> jvmPorts() {
+        final Set<Integer> ports = new HashSet<>();
+        for (String property : JVM_PORT_PROPERTIES) {
+            final String value = System.getProperty(property);
+            if (value == null) {
+                continue;
+            }
+            try {
+                ports.add(Integer.parseInt(value.substring(value.lastIndexOf(':') + 1).trim()));
+            } catch (NumberFormatException e) {
+                debug("Ignoring system property %s, which is not a port: %s", property, value);
+            }
+        }
+        return ports;
+    }
+
+    private static boolean canConnect(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", port), CONNECT_TIMEOUT_MILLISECONDS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isProcAvailable() {
+        return Files.isReadable(Paths.get(PROC_NET_FILES[0])) && Files.isDirectory(Paths.get(PROC_FD_DIRECTORY));
+    }
+
+    /**
+     * Ports this process listens on, in no particular order. To find out which listening sockets belong to this
+     * process, the file descriptors have to be inspected. That's only done when a listening socket shows up that
+     * wasn't seen before. Sockets that are no longer listening are forgotten.
+     */
+    static class ProcListeningPorts implements Supplier<Set<Integer>> {
+        private final Map<Long, Boolean> ownedSockets = new HashMap<>();
+
+        @Override
+        public Set<Integer> get() {
+            final Map<Long, Integer> listening = readListeningSockets();
+            ownedSockets.keySet().retainAll(listening.keySet());
+            if (!ownedSockets.keySet().containsAll(listening.keySet())) {
+                final Set<Long> owned = readOwnedSockets();
+                listening.keySet().forEach(inode -> ownedSockets.put(inode, owned.contains(inode)));
+            }
+            final Set<Integer> ports = new LinkedHashSet<>();
+            listening.forEach((inode, port) -> {
+                if (ownedSockets.get(inode)) {
+                    ports.add(port);
+                }
+            });
+            return ports;
+        }
+
+        private static Map<Long, Integer> readListeningSockets() {
+            final Map<Long, Integer> sockets = new HashMap<>();
+            for (String file : PROC_NET_FILES) {
+                final Path path = Paths.get(file);
+                if (!Files.isReadable(path)) {
+                    continue;
+                }
+                try (BufferedReader reader = Files.newBufferedReader(path, US_ASCII)) {
+                    reader.readLine(); // Header
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode
+                        final String[] fields = line.trim().split("\\s+");
+                        if (fields.length < 10 || !LISTEN_STATE.equals(fields[3])) {
+                            continue;
+                        }
+                        final String localAddress = fields[1];
+                        final int port = Integer.parseInt(localAddress.substring(localAddress.indexOf(':') + 1), 16);
+                        sockets.put(Long.parseLong(fields[9]), port);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    debug("Could not read %s: %s", file, e.getMessage());
+                }
+            }
+            return sockets;
+        }
+
+        private static Set<Long> readOwnedSockets() {
+            final Set<Long> inodes = new HashSet<>();
+            try (DirectoryStream<Path> descriptors = Files.newDirectoryStream(Paths.get(PROC_FD_DIRECTORY))) {
+                for (Path descriptor : descriptors) {
+                    try {
+                        // socket:[12345]
+                        final String target = Files.readSymbolicLink(descriptor).toString();
+                        if (target.startsWith("socket:[")) {
+                            inodes.add(Long.parseLong(target.substring(8, target.length() - 1)));
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // The descriptor was closed in the meantime; skip it.
+                    }
+                }
+            } catch (IOException e) {
+                debug("Could not read %s: %s", PROC_FD_DIRECTORY, e.getMessage());
+            }
+            return inodes;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package nl.ulso.consul.registrator;
+
+/**
+ * Result of a blocking query on Consul: the data that was read, plus the index to pass to the next query to wait for a
+ * change of that data.
+ */
+class BlockingQueryResult<T> {
+
+    private final String index;
+    private final T value;
+
+    BlockingQueryResult(String index, T value) {
+        this.index = index;
+        this.value = value;
+    }
+
+    /**
+     * @return The index (or content hash) of this result; {@code null} if Consul didn't supply one.
+     */
+    String getIndex() {
+        return index;
+    }
+
+    T getValue() {
+        return value;
+    }
+}
@@ -1,32 +1,47 @@
 package nl.ulso.consul.registrator;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
 import static java.util.Collections.unmodifiableMap;
 import static java.util.Collections.unmodifiableSet;
-import static nl.ulso.consul.registrator.GoDuration.requireValidDuration;
 
+/**
+ * Services and key/value pairs to register with Consul, with their templates rendered. The catalog holds on to the
+ * templates, so that it can be {@linkplain #renderAgain(Set) rendered again} when variables change.
+ */
 class Catalog {
 
     private static final String DEFAULT_DELAY = "3s";
 
     private final String delay;
+    private final Duration delayDuration;
+    private final Template delayTemplate;
     private final Set<Service> services;
     private Map<String, String> keyValuePairs;
+    private final Map<String, Template[]> keyValueTemplates;
 
     private Catalog(Builder builder) {
         this.delay = builder.delay;
+        this.delayDuration = builder.delayDuration;
+        this.delayTemplate = builder.delayTemplate;
         this.services = unmodifiableSet(new HashSet<>(builder.services));
         this.keyValuePairs = unmodifiableMap(new HashMap<>(builder.keyValuePairs));
+        this.keyValueTemplates = new LinkedHashMap<>(builder.keyValueTemplates);
     }
 
     String getDelay() {
         return delay;
     }
 
+    Duration getDelayDuration() {
+        return delayDuration;
+    }
+
     Set<Service> getServices() {
         return services;
     }
@@ -35,6 +50,33 @@ class Catalog {
         return keyValuePairs;
     }
 
+    /**
+     * Renders only the templates that use any of the changed variables again, with the variables as they are now.
+     * Everything else is taken over as is; services that don't change are the very same objects.
+     *
+     * @param changed Names of the variables that changed.
+     * @throws RegistratorException If a template no longer renders into a valid value.
+     */
+    Catalog renderAgain(Set<String> changed) {
+        final Builder builder = new Builder();
+        builder.delay = delay;
+        builder.delayDuration = delayDuration;
+        builder.delayTemplate = delayTemplate;
+        if (delayTemplate != null && delayTemplate.uses(changed)) {
+            builder.withDelay(delayTemplate);
+        }
+        services.forEach(service -> builder.addService(service.renderAgain(changed)));
+        keyValueTemplates.forEach((key, templates) -> {
+            if (templates[0].uses(changed) || templates[1].uses(changed)) {
+                builder.withKeyValuePair(templates[0], templates[1]);
+            } else {
+                builder.keyValuePairs.put(key, keyValuePairs.get(key));
+                builder.keyValueTemplates.put(key, templates);
+            }
+        });
+        return builder.build();
+    }
+
     static Builder newCatalog() {
         return new Builder();
     }
@@ -42,13 +84,21 @@ class Catalog {
     static class Builder extends AbstractBuilder {
 
         private String delay = DEFAULT_DELAY;
+        private Duration delayDuration = GoDuration.parse(DEFAULT_DELAY);
+        private Template delayTemplate;
         private final Set<Service> services = new HashSet<>();
         private final Map<String, String> keyValuePairs = new HashMap<>();
+        private final Map<String, Template[]> keyValueTemplates = new LinkedHashMap<>();
 
         Builder withDelay(String delay) {
-            final String value = substituteEnvironmentVariables(delay);
-            requireValidDuration(value);
+            return withDelay(Template.parse(delay));
+        }
+
+        Builder withDelay(Template delay) {
+            final String value = render(delay);
+            this.delayDuration = GoDuration.parse(value);
             this.delay = value;
+            this.delayTemplate = delay;
             return this;
         }
 
@@ -62,18 +112,35 @@ class Catalog {
         }
 
         Builder withKeyValuePair(String key, String value) {
-            String processedKey = substituteEnvironmentVariables(key);
+            return withKeyValuePair(Template.parse(key), Template.parse(value));
+        }
+
+        Builder withKeyValuePair(Template key, Template value) {
+            String processedKey = render(key);
             if (processedKey.startsWith("/")) {
                 processedKey = processedKey.substring(1);
             }
-            keyValuePairs.put(substituteEnvironmentVariables(processedKey), substituteEnvironmentVariables(value));
+            keyValuePairs.put(processedKey, render(value));
+            keyValueTemplates.put(processedKey, new Template[]{key, value});
             return this;
         }
 
+        /**
+         * @return The key/value pairs added so far. Keys added at runtime don't come with a catalog to build.
+         */
+        Map<String, String> getKeyValuePairs() {
+            return unmodifiableMap(keyValuePairs);
+        }
+
         Catalog build() {
             if (services.isEmpty()) {
                 throw new RegistratorException("No services are defined in the catalog.");
             }
+            // New ports can't be told apart, so there's no telling which would belong to which service.
+            if (services.stream().filter(Service::hasAutomaticPort).count() > 1) {
+                throw new RegistratorException("At most one service in the catalog can have its port detected "
+                        + "automatically");
+            }
             return new Catalog(this);
         }
     }
@@ -0,0 +1,186 @@
+package nl.ulso.consul.registrator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+import static nl.ulso.consul.registrator.CompiledCatalogLoader.*;
+
+/**
+ * Validates a catalog in XML and compiles it into the format read by the {@link CompiledCatalogLoader}. This is meant
+ * to run as part of the build of the application, so that the agent has less work to do on startup, and so that
+ * mistakes in the catalog break the build instead of the deployment.
+ * <p>
+ * Every service and the catalog as a whole go through the same builders the loaders use on startup, so the same rules
+ * apply. Values with variables in them aren't known at build time, though. Where any value will do, such as names and
+ * URLs, they're validated as they're written. Ports and durations with variables in them are left to the startup.
+ * </p>
+ */
+class CatalogCompiler implements CatalogHandler {
+
+    // Stands in for a port that isn't known yet, to check everything else about the service.
+    private static final String UNKNOWN_PORT = "65535";
+    // Stands in for a TTL that isn't known yet.
+    private static final String UNKNOWN_TTL = "1s";
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream output = new DataOutputStream(bytes);
+    private final Catalog.Builder validator = Catalog.newCatalog();
+    private Service.Builder serviceValidator;
+    private String serviceName;
+
+    private CatalogCompiler() {
+    }
+
+    /**
+     * Compiles a catalog file.
+     */
+    static void compile(Path catalog, Path compiledCatalog) throws IOException {
+        final byte[] compiled;
+        try (InputStream inputStream = Files.newInputStream(catalog)) {
+            compiled = compile(inputStream, catalog.toString());
+        }
+        final Path directory = compiledCatalog.toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        Files.write(compiledCatalog, compiled);
+    }
+
+    /**
+     * @param location Location of the catalog, for error messages.
+     * @return The compiled catalog.
+     * @throws RegistratorException If the catalog is invalid.
+     */
+    static byte[] compile(InputStream catalog, String location) {
+        final CatalogCompiler compiler = new CatalogCompiler();
+        try {
+            compiler.output.writeInt(MAGIC);
+            compiler.output.writeShort(VERSION);
+            StreamingXmlClasspathCatalogLoader.read(catalog, location, compiler);
+            compiler.validator.build();
+            compiler.output.writeByte(END_RECORD);
+            compiler.output.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compiler.bytes.toByteArray();
+    }
+
+    @Override
+    public void catalog(String delay) {
+        if (delay != null) {
+            validate(write(DELAY_RECORD, delay), validator::withDelay, null);
+        }
+    }
+
+    @Override
+    public void service(String name, String id, String address, String port) {
+        writeRecord(SERVICE_RECORD);
+        serviceValidator = validator.newService();
+        serviceName = name;
+        if (name == null) {
+            throw new RegistratorException("Required service name is missing");
+        }
+        validateText(write(NAME_RECORD, name), serviceValidator::withName);
+        if (id != null) {
+            validateText(write(ID_RECORD, id), serviceValidator::withId);
+        }
+        if (address != null) {
+            validateText(write(ADDRESS_RECORD, address), serviceValidator::withAddress);
+        }
+        if (port != null) {
+            validate(write(PORT_RECORD, port), serviceValidator::withPort, UNKNOWN_PORT);
+        }
+    }
+
+    @Override
+    public void httpCheck(String url, String interval) {
+        if (url == null) {
+            throw new RegistratorException("Required HTTP check URL is missing for service " + serviceName);
+        }
+        validateText(write(HTTP_CHECK_URL_RECORD, url), serviceValidator::withHttpCheckUrl);
+        if (interval != null) {
+            validate(write(HTTP_CHECK_INTERVAL_RECORD, interval), serviceValidator::withHttpCheckInterval, null);
+        }
+    }
+
+    @Override
+    public void ttlCheck(String ttl, String predicate) {
+        if (ttl == null) {
+            throw new RegistratorException("Required TTL is missing for service " + serviceName);
+        }
+        validate(write(TTL_CHECK_RECORD, ttl), serviceValidator::withTtlCheck, UNKNOWN_TTL);
+        if (predicate != null) {
+            validateText(write(TTL_CHECK_PREDICATE_RECORD, predicate), serviceValidator::withTtlCheckHealthPredicate);
+        }
+    }
+
+    @Override
+    public void tag(String name) {
+        if (name != null) {
+            validateText(write(TAG_RECORD, name), serviceValidator::withTag);
+        }
+    }
+
+    @Override
+    public void endService() {
+        serviceValidator.build();
+        writeRecord(END_SERVICE_RECORD);
+    }
+
+    @Override
+    public void keyValuePair(String name, String value) {
+        if (name != null && value != null) {
+            writeRecord(KEY_VALUE_PAIR_RECORD);
+            writeTemplate(name);
+            writeTemplate(value);
+        }
+    }
+
+    /**
+     * @param unknown Value to validate the rest with if the template has variables; {@code null} to leave it out.
+     */
+    private static void validate(Template template, Consumer<Template> validator, String unknown) {
+        if (template.isConstant()) {
+            validator.accept(template);
+        } else if (unknown != null) {
+            validator.accept(Template.literal(unknown));
+        }
+    }
+
+    /**
+     * For values that can be anything: those are validated with the template itself standing in for the value.
+     */
+    private static void validateText(Template template, Consumer<Template> validator) {
+        validator.accept(template.isConstant() ? template : Template.literal(template.toString()));
+    }
+
+    private Template write(byte type, String value) {
+        writeRecord(type);
+        return writeTemplate(value);
+    }
+
+    private void writeRecord(byte type) {
+        try {
+            output.writeByte(type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Template writeTemplate(String value) {
+        final Template template = Template.parse(value);
+        try {
+            template.writeTo(output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return template;
+    }
+}
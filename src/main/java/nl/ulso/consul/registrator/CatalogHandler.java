@@ -0,0 +1,23 @@
+package nl.ulso.consul.registrator;
+
+/**
+ * Receives the contents of a catalog while it's being read, in document order. Attributes are passed as they are in
+ * the catalog, without environment variables substituted; absent attributes are {@code null}.
+ */
+interface CatalogHandler {
+
+    void catalog(String delay);
+
+    void service(String name, String id, String address, String port);
+
+    void httpCheck(String url, String interval);
+
+    void ttlCheck(String ttl, String predicate);
+
+    void tag(String name);
+
+    void endService();
+
+    void keyValuePair(String name, String value);
+
+}
@@ -0,0 +1,142 @@
+package nl.ulso.consul.registrator;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static nl.ulso.consul.registrator.Logger.debug;
+
+/**
+ * Creates a {@link Catalog} from a catalog that was compiled at build time by the {@link CatalogCompiler}. This
+ * doesn't need any XML classes at all, and the environment variable references in the catalog are already parsed.
+ * <p>
+ * If the application doesn't have a compiled catalog, this loader falls back to another one; by default the
+ * {@link StreamingXmlClasspathCatalogLoader}.
+ * </p>
+ * <p>
+ * The compiled catalog is a stream of records, each starting with its type. Attribute values are stored as
+ * {@link Template}s.
+ * </p>
+ */
+class CompiledCatalogLoader implements CatalogLoader {
+
+    static final String DEFAULT_COMPILED_CATALOG_LOCATION = "META-INF/consul-catalog.bin";
+    static final int MAGIC = 0x43435242; // "CCRB"
+    static final int VERSION = 1;
+    static final byte END_RECORD = 0;
+    static final byte DELAY_RECORD = 1;
+    static final byte SERVICE_RECORD = 2;
+    static final byte NAME_RECORD = 3;
+    static final byte ID_RECORD = 4;
+    static final byte ADDRESS_RECORD = 5;
+    static final byte PORT_RECORD = 6;
+    static final byte HTTP_CHECK_URL_RECORD = 7;
+    static final byte HTTP_CHECK_INTERVAL_RECORD = 8;
+    static final byte TTL_CHECK_RECORD = 9;
+    static final byte TTL_CHECK_PREDICATE_RECORD = 10;
+    static final byte TAG_RECORD = 11;
+    static final byte END_SERVICE_RECORD = 12;
+    static final byte KEY_VALUE_PAIR_RECORD = 13;
+
+    private final String classpathResource;
+    private final CatalogLoader fallback;
+
+    CompiledCatalogLoader(String classpathResource, CatalogLoader fallback) {
+        this.classpathResource = classpathResource;
+        this.fallback = fallback;
+    }
+
+    CompiledCatalogLoader() {
+        this(DEFAULT_COMPILED_CATALOG_LOCATION, new StreamingXmlClasspathCatalogLoader());
+    }
+
+    @Override
+    public Catalog load() {
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        try (InputStream inputStream = classLoader.getResourceAsStream(classpathResource)) {
+            if (inputStream == null) {
+                debug("No compiled catalog found at '%s'; loading it from XML instead", classpathResource);
+                return fallback.load();
+            }
+            return read(inputStream, classpathResource);
+        } catch (IOException e) {
+            throw new RegistratorException("Could not load compiled catalog from '" + classpathResource
+                    + "': " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param location Location of the compiled catalog, for error messages.
+     */
+    static Catalog read(InputStream inputStream, String location) throws IOException {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream));
+        if (input.readInt() != MAGIC) {
+            throw new RegistratorException("Not a compiled catalog: '" + location + "'");
+        }
+        final int version = input.readUnsignedShort();
+        if (version != VERSION) {
+            throw new RegistratorException("Unsupported version " + version + " of compiled catalog '" + location
+                    + "'; compile it again with this version of the agent");
+        }
+        final Catalog.Builder builder = Catalog.newCatalog();
+        Service.Builder service = null;
+        while (true) {
+            final byte type = input.readByte();
+            switch (type) {
+                case END_RECORD:
+                    return builder.build();
+                case DELAY_RECORD:
+                    builder.withDelay(Template.readFrom(input));
+                    break;
+                case SERVICE_RECORD:
+                    service = builder.newService();
+                    break;
+                case NAME_RECORD:
+                    requireService(service, location).withName(Template.readFrom(input));
+                    break;
+                case ID_RECORD:
+                    requireService(service, location).withId(Template.readFrom(input));
+                    break;
+                case ADDRESS_RECORD:
+                    requireService(service, location).withAddress(Template.readFrom(input));
+                    break;
+                case PORT_RECORD:
+                    requireService(service, location).withPort(Template.readFrom(input));
+                    break;
+                case HTTP_CHECK_URL_RECORD:
+                    requireService(service, location).withHttpCheckUrl(Template.readFrom(input));
+                    break;
+                case HTTP_CHECK_INTERVAL_RECORD:
+                    requireService(service, location).withHttpCheckInterval(Template.readFrom(input));
+                    break;
+                case TTL_CHECK_RECORD:
+                    requireService(service, location).withTtlCheck(Template.readFrom(input));
+                    break;
+                case TTL_CHECK_PREDICATE_RECORD:
+                    requireService(service, location).withTtlCheckHealthPredicate(Template.readFrom(input));
+                    break;
+                case TAG_RECORD:
+                    requireService(service, location).withTag(Template.readFrom(input));
+                    break;
+                case END_SERVICE_RECORD:
+                    requireService(service, location).build();
+                    service = null;
+                    break;
+                case KEY_VALUE_PAIR_RECORD:
+                    builder.withKeyValuePair(Template.readFrom(input), Template.readFrom(input));
+                    break;
+                default:
+                    throw new RegistratorException("Corrupt compiled catalog '" + location
+                            + "': unknown record type " + type);
+            }
+        }
+    }
+
+    private static Service.Builder requireService(Service.Builder service, String location) {
+        if (service == null) {
+            throw new RegistratorException("Corrupt compiled catalog '" + location + "': service record missing");
+        }
+        return service;
+    }
+}
@@ -0,0 +1,292 @@
+package nl.ulso.consul.registrator;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * Agent settings, taken from the arguments passed to the agent on the command line. Everything has a sensible default,
+ * so that the agent works without any arguments at all.
+ */
+class Configuration {
+
+    private static final String CONCURRENCY = "concurrency";
+    private static final int DEFAULT_CONCURRENCY = 4;
+    private static final String REGISTRATION = "registration";
+    private static final String SHUTDOWN_TIMEOUT = "shutdown-timeout";
+    private static final String DEFAULT_SHUTDOWN_TIMEOUT = "5s";
+    private static final String DRAIN = "drain";
+    private static final String DEFAULT_DRAIN = "0s";
+    private static final String HEALTH_PROXY = "health-proxy";
+    private static final String DEFAULT_HEALTH_PROXY = "0s";
+    private static final String RECONCILE = "reconcile";
+    private static final String DEFAULT_RECONCILE = "0s";
+    private static final String RETRIES = "retries";
+    private static final int DEFAULT_RETRIES = 3;
+    private static final String STARTUP_JITTER = "startup-jitter";
+    private static final String DEFAULT_STARTUP_JITTER = "0s";
+    private static final String STARTUP = "startup";
+    static final String VARIABLE_PREFIX = "var.";
+    static final String CONSUL = "consul";
+    private static final String DEFAULT_CONSUL = "localhost:8500";
+    private static final int DEFAULT_CONSUL_PORT = 8500;
+    static final String UNIX_SCHEME = "unix";
+    private static final String HTTP_SCHEME = "http";
+    private static final String HEDGE = "hedge";
+
+    /**
+     * When to register services with Consul.
+     */
+    enum RegistrationMode {
+        /**
+         * After the delay configured in the catalog.
+         */
+        DELAY,
+        /**
+         * As soon as the service's own health check passes, but never later than the delay in the catalog.
+         */
+        HEALTH,
+        /**
+         * As soon as the application listens on the service's port. Fixed ports never later than the delay in the
+         * catalog; automatic ports whenever they show up.
+         */
+        BIND
+    }
+
+    /**
+     * Where the agent loads the catalog and prepares registration.
+     */
+    enum StartupMode {
+        /**
+         * In {@code premain}, before the application's {@code main} method starts.
+         */
+        SYNC,
+        /**
+         * On a background thread, so that the application starts right away. An invalid catalog still stops the
+         * application, just a little later.
+         */
+        ASYNC
+    }
+
+    private final int concurrency;
+    private final RegistrationMode registrationMode;
+    private final Duration shutdownTimeout;
+    private final Duration drain;
+    private final Duration healthProxy;
+    private final Duration reconcile;
+    private final int retries;
+    private final Duration startupJitter;
+    private final StartupMode startupMode;
+    private final Map<String, String> variables;
+    private final List<URI> consulAgents;
+    private final boolean hedge;
+
+    private Configuration(Map<String, String> arguments) {
+        this.concurrency = parsePositiveInteger(arguments, CONCURRENCY, DEFAULT_CONCURRENCY);
+        this.registrationMode = parseEnum(arguments, REGISTRATION, RegistrationMode.DELAY);
+        this.shutdownTimeout = parseDuration(arguments, SHUTDOWN_TIMEOUT, DEFAULT_SHUTDOWN_TIMEOUT);
+        this.drain = parseDuration(arguments, DRAIN, DEFAULT_DRAIN);
+        this.healthProxy = parseDuration(arguments, HEALTH_PROXY, DEFAULT_HEALTH_PROXY);
+        this.reconcile = parseDuration(arguments, RECONCILE, DEFAULT_RECONCILE);
+        this.retries = parseNonNegativeInteger(arguments, RETRIES, DEFAULT_RETRIES);
+        this.startupJitter = parseDuration(arguments, STARTUP_JITTER, DEFAULT_STARTUP_JITTER);
+        this.startupMode = parseEnum(arguments, STARTUP, StartupMode.SYNC);
+        this.variables = parseVariables(arguments);
+        this.consulAgents = parseAgents(arguments, CONSUL, DEFAULT_CONSUL, DEFAULT_CONSUL_PORT);
+        this.hedge = parseBoolean(arguments, HEDGE, false);
+    }
+
+    static Configuration defaults() {
+        return new Configuration(emptyMap());
+    }
+
+    static Configuration fromArguments(Map<String, String> arguments) {
+        return new Configuration(arguments);
+    }
+
+    /**
+     * @return Maximum number of calls to Consul in flight at the same time.
+     */
+    int getConcurrency() {
+        return concurrency;
+    }
+
+    RegistrationMode getRegistrationMode() {
+        return registrationMode;
+    }
+
+    /**
+     * @return Maximum time for removing everything from Consul on shutdown.
+     */
+    Duration getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    /**
+     * @return How long to keep the application running in maintenance mode after a SIGTERM. A zero duration disables
+     * draining altogether.
+     */
+    Duration getDrain() {
+        return drain;
+    }
+
+    /**
+     * @return How long the health proxy caches the result of a health check that's shared by multiple services. A zero
+     * duration disables the proxy: Consul then calls every check itself.
+     */
+    Duration getHealthProxy() {
+        return healthProxy;
+    }
+
+    /**
+     * @return Maximum wait time of the blocking queries that keep Consul in line with the catalog. A zero duration
+     * disables reconciliation: services and keys are then only registered once.
+     */
+    Duration getReconcile() {
+        return reconcile;
+    }
+
+    /**
+     * @return Maximum number of times a failed call to Consul is retried; 0 means: never.
+     */
+    int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return Maximum random time added to the start of registration. That keeps a fleet of applications that start at
+     * the same time from all calling their Consul agent at the same moment.
+     */
+    Duration getStartupJitter() {
+        return startupJitter;
+    }
+
+    StartupMode getStartupMode() {
+        return startupMode;
+    }
+
+    /**
+     * @return Variables for the templates in the catalog, from the {@code var.<name>} arguments, by name.
+     */
+    Map<String, String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * @return Addresses of the Consul agents to talk to, in order of preference; the first one is normally the agent
+     * on this node. The others are only used for the K/V store, when it's unavailable or when hedging. Each address is
+     * either {@code http://<host>:<port>} or {@code unix://<path>}.
+     */
+    List<URI> getConsulAgents() {
+        return consulAgents;
+    }
+
+    /**
+     * @return Whether to send idempotent calls to the K/V store to a second Consul agent as well, when the first one is
+     * slower than usual to answer. Only applies with more than one Consul agent.
+     */
+    boolean isHedge() {
+        return hedge;
+    }
+
+    /**
+     * Durations are parsed once, here; the agent only ever needs them as a {@link Duration} from then on.
+     */
+    private static Duration parseDuration(Map<String, String> arguments, String name, String defaultValue) {
+        final String value = arguments.getOrDefault(name, defaultValue);
+        if (!GoDuration.isValidDuration(value)) {
+            throw new RegistratorException("Invalid value for agent argument '" + name + "': " + value);
+        }
+        return GoDuration.parse(value);
+    }
+
+    private static Map<String, String> parseVariables(Map<String, String> arguments) {
+        final Map<String, String> variables = new HashMap<>();
+        arguments.forEach((name, value) -> {
+            if (name.startsWith(VARIABLE_PREFIX)) {
+                variables.put(name.substring(VARIABLE_PREFIX.length()), value);
+            }
+        });
+        return unmodifiableMap(variables);
+    }
+
+    private static List<URI> parseAgents(Map<String, String> arguments, String name, String defaultValue,
+                                         int defaultPort) {
+        final String value = arguments.getOrDefault(name, defaultValue);
+        final List<URI> agents = new ArrayList<>();
+        for (String agent : value.split(",")) {
+            final String trimmed = agent.trim();
+            try {
+                final URI uri = new URI(trimmed.contains("://") ? trimmed : HTTP_SCHEME + "://" + trimmed);
+                if (UNIX_SCHEME.equals(uri.getScheme()) && uri.getAuthority() == null && uri.getPath() != null
+                        && !uri.getPath().isEmpty()) {
+                    agents.add(uri);
+                } else if (HTTP_SCHEME.equals(uri.getScheme()) && uri.getHost() != null) {
+                    agents.add(new URI(HTTP_SCHEME, null, uri.getHost(),
+                            uri.getPort() == -1 ? defaultPort : uri.getPort(), null, null, null));
+                } else {
+                    throw new RegistratorException("Invalid value for agent argument '" + name + "': " + value);
+                }
+            } catch (URISyntaxException e) {
+                throw new RegistratorException("Invalid value for agent argument '" + name + "': " + value);
+            }
+        }
+        return unmodifiableList(agents);
+    }
+
+    private static boolean parseBoolean(Map<String, String> arguments, String name, boolean defaultValue) {
+        final String value = arguments.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.equals("true") || value.equals("false")) {
+            return Boolean.parseBoolean(value);
+        }
+        throw new RegistratorException("Invalid value for agent argument '" + name + "': " + value);
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Map<String, String> arguments, String name, E defaultValue) {
+        final String value = arguments.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        for (E constant : defaultValue.getDeclaringClass().getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(value)) {
+                return constant;
+            }
+        }
+        throw new RegistratorException("Invalid value for agent argument '" + name + "': " + value);
+    }
+
+    private static int parsePositiveInteger(Map<String, String> arguments, String name, int defaultValue) {
+        return parseInteger(arguments, name, defaultValue, 1);
+    }
+
+    private static int parseNonNegativeInteger(Map<String, String> arguments, String name, int defaultValue) {
+        return parseInteger(arguments, name, defaultValue, 0);
+    }
+
+    private static int parseInteger(Map<String, String> arguments, String name, int defaultValue, int minimum) {
+        final String value = arguments.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            final int number = Integer.parseInt(value);
+            if (number >= minimum) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Handled below.
+        }
+        throw new RegistratorException("Invalid value for agent argument '" + name + "': " + value);
+    }
+}
@@ -1,5 +1,8 @@
 package nl.ulso.consul.registrator;
 
+import java.util.Collection;
+import java.util.Map;
+
 interface ConsulClient {
 
     void register(Service service);
@@ -9,4 +12,70 @@ interface ConsulClient {
     void storeKeyValue(String key, String value);
 
     void removeKey(String key);
+
+    /**
+     * Puts a service in maintenance mode, so that Consul stops handing it out to clients.
+     */
+    void enableMaintenance(String serviceId, String reason);
+
+    /**
+     * Marks a TTL check as passing, resetting its TTL.
+     */
+    void passCheck(String checkId);
+
+    /**
+     * Marks a TTL check as failing, with a note explaining why.
+     */
+    void failCheck(String checkId, String note);
+
+    /**
+     * Reads the services registered with the local agent, as JSON objects by service ID. If a hash from an earlier read
+     * is passed, this is a blocking query: it returns as soon as something changed, but never later than the wait time.
+     *
+     * @param hash Content hash of an earlier read; {@code null} to read right away.
+     * @param wait Maximum time to wait for a change, as a Go duration.
+     */
+    BlockingQueryResult<Map<String, Map<String, Object>>> readServices(String hash, String wait);
+
+    /**
+     * Reads the values of exactly these keys; keys that don't exist are left out. Nothing is ever read recursively, so
+     * other keys in the K/V store are never read. If an index from an earlier read is passed, this is a blocking query
+     * on the first key, like {@link #readServices(String, String)}; the other keys are read right after it, all at
+     * once. Changes to the other keys then show up no later than the wait time.
+     *
+     * @param keys  Keys to read; the index is that of the first one.
+     * @param index Index of an earlier read; {@code null} to read right away.
+     * @param wait  Maximum time to wait for a change, as a Go duration.
+     */
+    BlockingQueryResult<Map<String, String>> readKeyValues(Collection<String> keys, String index, String wait);
+
+    /**
+     * Stores all key/value pairs in one go. By default this is just one call per pair; implementations can do better.
+     */
+    default void storeKeyValues(Map<String, String> keyValuePairs) {
+        keyValuePairs.forEach(this::storeKeyValue);
+    }
+
+    /**
+     * Removes all keys in one go. By default this is just one call per key; implementations can do better.
+     */
+    default void removeKeys(Collection<String> keys) {
+        keys.forEach(this::removeKey);
+    }
+
+    /**
+     * Gets the client ready for its first call, for example by setting up connections. Failures are not reported here;
+     * they will show up soon enough on the first real call.
+     */
+    default void warmUp() {
+    }
+
+    /**
+     * Tells the client that the JVM is shutting down; the calls that follow are the last, and have to be done by the
+     * deadline.
+     *
+     * @param deadline In terms of {@link System#nanoTime()}.
+     */
+    default void shutDown(long deadline) {
+    }
 }
@@ -0,0 +1,68 @@
+package nl.ulso.consul.registrator;
+
+/**
+ * A single HTTP request to the Consul agent; the path is relative to the agent's address.
+ */
+class ConsulRequest {
+
+    private static final byte[] NO_BODY = new byte[0];
+
+    private final String method;
+    private final String path;
+    private final byte[] body;
+    private final int readTimeoutMilliseconds;
+
+    private ConsulRequest(String method, String path, byte[] body, int readTimeoutMilliseconds) {
+        this.method = method;
+        this.path = path;
+        this.body = body;
+        this.readTimeoutMilliseconds = readTimeoutMilliseconds;
+    }
+
+    private ConsulRequest(String method, String path, byte[] body) {
+        this(method, path, body, 0);
+    }
+
+    static ConsulRequest get(String path) {
+        return new ConsulRequest("GET", path, NO_BODY);
+    }
+
+    static ConsulRequest put(String path, byte[] body) {
+        return new ConsulRequest("PUT", path, body);
+    }
+
+    static ConsulRequest delete(String path) {
+        return new ConsulRequest("DELETE", path, NO_BODY);
+    }
+
+    /**
+     * @return A copy of this request that may take longer than usual for a response; for blocking queries.
+     */
+    ConsulRequest withReadTimeout(int milliseconds) {
+        return new ConsulRequest(method, path, body, milliseconds);
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return How long to wait for the response, or 0 for the transport's default.
+     */
+    int getReadTimeout() {
+        return readTimeoutMilliseconds;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + path;
+    }
+}
@@ -0,0 +1,38 @@
+package nl.ulso.consul.registrator;
+
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * Response from the Consul agent. Header names are in lower case.
+ */
+class ConsulResponse {
+
+    private final int status;
+    private final Map<String, String> headers;
+    private final byte[] body;
+
+    ConsulResponse(int status, Map<String, String> headers, byte[] body) {
+        this.status = status;
+        this.headers = unmodifiableMap(headers);
+        this.body = body;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    String getBodyAsString() {
+        return new String(body, UTF_8);
+    }
+}
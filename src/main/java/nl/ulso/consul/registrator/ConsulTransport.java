@@ -0,0 +1,27 @@
+package nl.ulso.consul.registrator;
+
+import java.io.IOException;
+
+/**
+ * Moves requests to the Consul agent and back. A transport only deals with HTTP; interpreting responses is up to the
+ * {@link ConsulClient}.
+ */
+interface ConsulTransport {
+
+    ConsulResponse send(ConsulRequest request) throws IOException;
+
+    /**
+     * Prepares the transport for the first request, for example by resolving and connecting to the agent up front.
+     */
+    default void warmUp() throws IOException {
+    }
+
+    /**
+     * Tells the transport that the JVM is shutting down, and that whatever it sends from now on has to be done by the
+     * deadline.
+     *
+     * @param deadline In terms of {@link System#nanoTime()}.
+     */
+    default void shutDown(long deadline) {
+    }
+}
@@ -0,0 +1,107 @@
+package nl.ulso.consul.registrator;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events for everything the agent spends time on, so that it shows up in the recordings of the
+ * application itself.
+ * <p>
+ * Creating an event is only worth it if Flight Recorder is running, so all code creating events first checks
+ * {@link #isRecording()}. Otherwise not even the event classes are loaded. That also keeps the agent working on
+ * runtimes without the {@code jdk.jfr} module.
+ * </p>
+ */
+class Events {
+
+    private static final String CATEGORY = "Consul Registrator";
+    private static final boolean AVAILABLE = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+    private Events() {
+    }
+
+    /**
+     * @return Whether Flight Recorder is running; whether a recording actually wants an event is up to
+     * {@link Event#shouldCommit()}.
+     */
+    static boolean isRecording() {
+        return AVAILABLE && FlightRecorder.isInitialized();
+    }
+
+    @Name("nl.ulso.consul.registrator.Premain")
+    @Label("Agent Premain")
+    @Category(CATEGORY)
+    @Description("Time the agent spent in premain, before the application's main method")
+    static class Premain extends Event {
+        @Label("Startup Mode")
+        String startupMode;
+    }
+
+    @Name("nl.ulso.consul.registrator.CatalogLoad")
+    @Label("Catalog Load")
+    @Category(CATEGORY)
+    @Description("Loading, parsing and validating the service catalog")
+    static class CatalogLoad extends Event {
+        @Label("Loader")
+        String loader;
+
+        @Label("Services")
+        int services;
+
+        @Label("Keys")
+        int keys;
+    }
+
+    @Name("nl.ulso.consul.registrator.Substitution")
+    @Label("Environment Variable Substitution")
+    @Category(CATEGORY)
+    @Description("Substituting environment variables in a single attribute of the catalog")
+    static class Substitution extends Event {
+        @Label("Template")
+        String template;
+    }
+
+    @Name("nl.ulso.consul.registrator.ConsulCall")
+    @Label("Consul Call")
+    @Category(CATEGORY)
+    @Description("HTTP request to the Consul agent")
+    static class ConsulCall extends Event {
+        @Label("Agent")
+        String agent;
+
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Status")
+        @Description("HTTP status code; 0 if there was no response")
+        int status;
+
+        @Label("Bytes Sent")
+        @DataAmount
+        long bytesSent;
+
+        @Label("Bytes Received")
+        @DataAmount
+        long bytesReceived;
+    }
+
+    @Name("nl.ulso.consul.registrator.Shutdown")
+    @Label("Agent Shutdown")
+    @Category(CATEGORY)
+    @Description("Removing services and keys from Consul on shutdown")
+    static class Shutdown extends Event {
+        @Label("Services")
+        int services;
+
+        @Label("Keys")
+        int keys;
+    }
+}
@@ -0,0 +1,278 @@
+package nl.ulso.consul.registrator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static nl.ulso.consul.registrator.Logger.debug;
+import static nl.ulso.consul.registrator.Logger.info;
+
+/**
+ * Transport that talks to one of several Consul agents, in order of preference. Normally that's the first one, the
+ * agent on this node. For requests to the K/V store, an agent that fails a request, or responds with a server error,
+ * is skipped for a while; the request goes to the next agent right away.
+ * <p>
+ * Optionally, idempotent requests to the K/V store are hedged: if the agent doesn't answer within the time it takes
+ * for 95% of its requests, the same request is sent to the next agent as well, and whichever answers first wins. That
+ * keeps an agent that's stuck in a garbage collection or waiting for its disk from holding up the application's
+ * startup and shutdown, at the cost of at most 5% extra requests. Blocking queries are never hedged; they're slow on
+ * purpose.
+ * </p>
+ * <p>
+ * Services and checks live on the agent that's called, so requests for those always go to the first agent, whatever
+ * state it's in. Registering a service with another agent would tie it to the wrong node. Only the K/V store and
+ * transactions are shared by all agents.
+ * </p>
+ */
+class FailoverTransport implements ConsulTransport {
+
+    private static final long UNHEALTHY_MILLISECONDS = 5000;
+    private static final int MINIMUM_HEDGE_SAMPLES = 20;
+    private static final long DEFAULT_HEDGE_DELAY_MICROSECONDS = 100000;
+    private static final long MINIMUM_HEDGE_DELAY_MICROSECONDS = 1000;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+    private static final int HTTP_SERVER_ERROR = 500;
+    private static final String KEY_VALUE_PATH = "/v1/kv/";
+    private static final String TRANSACTION_PATH = "/v1/txn";
+
+    private final List<Endpoint> endpoints;
+    private final ExecutorService executor;
+
+    /**
+     * @param transports One transport per Consul agent, in order of preference.
+     * @param hedge      Whether to hedge idempotent requests.
+     */
+    FailoverTransport(List<ConsulTransport> transports, boolean hedge) {
+        this.endpoints = new ArrayList<>(transports.size());
+        transports.forEach(transport -> endpoints.add(new Endpoint(transport)));
+        this.executor = hedge && transports.size() > 1 ? newExecutor() : null;
+    }
+
+    private static ExecutorService newExecutor() {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, SECONDS, new SynchronousQueue<>(),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "consul-registrator-hedge-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @Override
+    public ConsulResponse send(ConsulRequest request) throws IOException {
+        if (!isShared(request)) {
+            return endpoints.get(0).send(request);
+        }
+        final List<Endpoint> candidates = candidates();
+        if (executor != null && isHedgeable(request)) {
+            return sendHedged(request, candidates);
+        }
+        ConsulResponse response = null;
+        IOException failure = null;
+        for (Endpoint endpoint : candidates) {
+            try {
+                response = endpoint.send(request);
+                if (!isFailure(response)) {
+                    return response;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            debug("Request %s to Consul agent at %s failed", request, endpoint);
+        }
+        if (response != null) {
+            return response;
+        }
+        throw failure;
+    }
+
+    /**
+     * Sends the request to the first candidate, and to the next one if the first doesn't answer in time. A failure
+     * moves on to the next candidate right away.
+     */
+    private ConsulResponse sendHedged(ConsulRequest request, List<Endpoint> candidates) throws IOException {
+        final CompletionService<ConsulResponse> completion = new ExecutorCompletionService<>(executor);
+        final long delay = candidates.get(0).getHedgeDelayMicroseconds();
+        int next = 0;
+        int inFlight = 0;
+        ConsulResponse response = null;
+        IOException failure = null;
+        completion.submit(call(candidates.get(next++), request));
+        inFlight++;
+        try {
+            while (inFlight > 0) {
+                final Future<ConsulResponse> done = next < candidates.size()
+                        ? completion.poll(delay, MICROSECONDS)
+                        : completion.take();
+                if (done == null) {
+                    debug("Consul agent at %s didn't answer %s within %sus; asking %s as well",
+                            candidates.get(next - 1), request, delay, candidates.get(next));
+                    completion.submit(call(candidates.get(next++), request));
+                    inFlight++;
+                    continue;
+                }
+                inFlight--;
+                try {
+                    final ConsulResponse result = done.get();
+                    if (!isFailure(result)) {
+                        return result;
+                    }
+                    if (response == null) {
+                        response = result;
+                    }
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause()
+                            : new IOException(e.getCause());
+                }
+                if (next < candidates.size()) {
+                    completion.submit(call(candidates.get(next++), request));
+                    inFlight++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Consul", e);
+        }
+        if (response != null) {
+            return response;
+        }
+        throw failure;
+    }
+
+    private static Callable<ConsulResponse> call(Endpoint endpoint, ConsulRequest request) {
+        return () -> endpoint.send(request);
+    }
+
+    /**
+     * @return All endpoints, in order of preference: first the healthy ones, then the rest, as a last resort.
+     */
+    private List<Endpoint> candidates() {
+        final List<Endpoint> candidates = new ArrayList<>(endpoints.size());
+        final long now = System.nanoTime();
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isHealthy(now)) {
+                candidates.add(endpoint);
+            }
+        }
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.isHealthy(now)) {
+                candidates.add(endpoint);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return Whether the request is for something all agents share, so that any agent can handle it.
+     */
+    private static boolean isShared(ConsulRequest request) {
+        final String path = request.getPath();
+        return path.startsWith(KEY_VALUE_PATH) || path.startsWith(TRANSACTION_PATH);
+    }
+
+    /**
+     * @return Whether sending the request twice at the same time is harmless, and waiting long is not expected.
+     */
+    private static boolean isHedgeable(ConsulRequest request) {
+        final String method = request.getMethod();
+        return (method.equals("GET") || method.equals("DELETE")) && request.getReadTimeout() == 0;
+    }
+
+    private static boolean isFailure(ConsulResponse response) {
+        return response.getStatus() >= HTTP_SERVER_ERROR;
+    }
+
+    @Override
+    public void warmUp() throws IOException {
+        endpoints.get(0).transport.warmUp();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (Endpoint endpoint : endpoints) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(endpoint);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A single Consul agent, with its health and latency.
+     */
+    private static class Endpoint {
+        private final ConsulTransport transport;
+        private final Metrics.Calls calls = new Metrics.Calls();
+        private volatile long unhealthyUntil;
+        private volatile boolean unhealthy;
+
+        Endpoint(ConsulTransport transport) {
+            this.transport = transport;
+        }
+
+        ConsulResponse send(ConsulRequest request) throws IOException {
+            final long started = System.nanoTime();
+            try {
+                final ConsulResponse response = transport.send(request);
+                record(request, started, isFailure(response));
+                return response;
+            } catch (IOException e) {
+                record(request, started, true);
+                throw e;
+            }
+        }
+
+        private void record(ConsulRequest request, long started, boolean failed) {
+            // Blocking queries take as long as Consul wants them to; that says nothing about the agent's latency.
+            if (request.getReadTimeout() == 0) {
+                calls.record(started, failed);
+            }
+            if (failed) {
+                if (!unhealthy) {
+                    info("Consul agent at %s is unavailable; preferring other agents for %sms", this,
+                            UNHEALTHY_MILLISECONDS);
+                }
+                unhealthy = true;
+                unhealthyUntil = System.nanoTime() + MILLISECONDS.toNanos(UNHEALTHY_MILLISECONDS);
+            } else if (unhealthy) {
+                info("Consul agent at %s is available again", this);
+                unhealthy = false;
+            }
+        }
+
+        boolean isHealthy(long now) {
+            return !unhealthy || now - unhealthyUntil >= 0;
+        }
+
+        /**
+         * @return How long to wait for an answer before asking another agent: the 95th percentile of the latency
+         * of this agent so far, or a default until there are enough calls to tell.
+         */
+        long getHedgeDelayMicroseconds() {
+            if (calls.getCount() < MINIMUM_HEDGE_SAMPLES) {
+                return DEFAULT_HEDGE_DELAY_MICROSECONDS;
+            }
+            return Math.max(MINIMUM_HEDGE_DELAY_MICROSECONDS, calls.getPercentileMicros(95));
+        }
+
+        @Override
+        public String toString() {
+            return transport.toString();
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package nl.ulso.consul.registrator;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.time.Duration;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * See <a href="https://golang.org/pkg/time/#ParseDuration">Go's ParseDuration</a>.
@@ -9,51 +10,184 @@ import java.util.regex.Pattern;
  * Two differences to the Go implementation:
  * </p>
  * <ul>
- * <li>Negative values are not supported.</li>
- * <li>Nanoseconds (ns) and microseconds (us) are not supported.</li>
+ * <li>Signs are not supported; durations are never negative.</li>
+ * <li>Units are case insensitive.</li>
  * </ul>
+ * <p>
+ * Durations are validated and converted in a single pass over the string, with integer arithmetic only, so they're
+ * exact to the nanosecond. Anything that doesn't fit in a {@code long} of nanoseconds (around 292 years) is invalid.
+ * </p>
  */
 class GoDuration {
 
-    private static final Pattern DURATION_PATTERN = Pattern.compile("((\\d+(\\.\\d+)?)(ms|s|m|h))+");
+    private static final long INVALID = -1L;
+    private static final int MAXIMUM_FRACTION_DIGITS = 15;
+    private static final long[] POWERS_OF_TEN = new long[MAXIMUM_FRACTION_DIGITS + 1];
 
-    static void requireValidDuration(String durationString) {
-        if (!isValidDuration(durationString)) {
-            throw new RegistratorException("Invalid duration: " + durationString);
+    // Per unit, from small to large: its length in nanoseconds, written as a multiplier times a power of ten.
+    private static final int NANOSECONDS_UNIT = 0;
+    private static final int MICROSECONDS_UNIT = 1;
+    private static final int MILLISECONDS_UNIT = 2;
+    private static final int SECONDS_UNIT = 3;
+    private static final int MINUTES_UNIT = 4;
+    private static final int HOURS_UNIT = 5;
+    private static final long[] UNIT_MULTIPLIERS = {1, 1, 1, 1, 6, 36};
+    private static final int[] UNIT_EXPONENTS = {0, 3, 6, 9, 10, 11};
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
         }
     }
 
+    static void requireValidDuration(String durationString) {
+        toNanoseconds(durationString);
+    }
+
+    /**
+     * @throws RegistratorException If the duration is invalid.
+     */
+    static Duration parse(String durationString) {
+        return Duration.ofNanos(toNanoseconds(durationString));
+    }
+
     static boolean isValidDuration(String durationString) {
-        return DURATION_PATTERN.matcher(durationString.toLowerCase()).matches();
+        return parseNanoseconds(durationString) != INVALID;
     }
 
+    /**
+     * @throws RegistratorException If the duration is invalid.
+     */
+    static long toNanoseconds(String durationString) {
+        final long nanoseconds = parseNanoseconds(durationString);
+        if (nanoseconds == INVALID) {
+            throw new RegistratorException("Invalid duration: " + durationString);
+        }
+        return nanoseconds;
+    }
+
+    /**
+     * @throws RegistratorException If the duration is invalid.
+     */
     static long toMilliseconds(String durationString) {
-        long total = 0L;
-        final Matcher matcher = DURATION_PATTERN.matcher(durationString.toLowerCase());
-        while (matcher.find()) {
-            total += computeDuration(matcher.group(2), matcher.group(4));
+        return NANOSECONDS.toMillis(toNanoseconds(durationString));
+    }
+
+    private static long parseNanoseconds(String s) {
+        if (s == null || s.isEmpty()) {
+            return INVALID;
+        }
+        if (s.equals("0")) {
+            return 0;
+        }
+        final int length = s.length();
+        long total = 0;
+        int i = 0;
+        while (i < length) {
+            final int integerStart = i;
+            long integer = 0;
+            char c;
+            while (i < length && isDigit(c = s.charAt(i))) {
+                if (integer > (Long.MAX_VALUE - 9) / 10) {
+                    return INVALID;
+                }
+                integer = integer * 10 + (c - '0');
+                i++;
+            }
+            boolean hasDigits = i > integerStart;
+            long fraction = 0;
+            int fractionDigits = 0;
+            if (i < length && s.charAt(i) == '.') {
+                i++;
+                final int fractionStart = i;
+                while (i < length && isDigit(c = s.charAt(i))) {
+                    // Digits beyond these are worth less than a nanosecond.
+                    if (fractionDigits < MAXIMUM_FRACTION_DIGITS) {
+                        fraction = fraction * 10 + (c - '0');
+                        fractionDigits++;
+                    }
+                    i++;
+                }
+                hasDigits |= i > fractionStart;
+            }
+            if (!hasDigits) {
+                return INVALID;
+            }
+            final int unitStart = i;
+            while (i < length && (c = s.charAt(i)) != '.' && !isDigit(c)) {
+                i++;
+            }
+            final int unit = unit(s, unitStart, i);
+            if (unit < 0) {
+                return INVALID;
+            }
+            final long unitNanoseconds = UNIT_MULTIPLIERS[unit] * POWERS_OF_TEN[UNIT_EXPONENTS[unit]];
+            if (integer > Long.MAX_VALUE / unitNanoseconds) {
+                return INVALID;
+            }
+            final long fractionNanoseconds = fractionNanoseconds(fraction, fractionDigits, unit);
+            final long value = integer * unitNanoseconds;
+            if (value > Long.MAX_VALUE - fractionNanoseconds
+                    || total > Long.MAX_VALUE - value - fractionNanoseconds) {
+                return INVALID;
+            }
+            total += value + fractionNanoseconds;
         }
         return total;
     }
 
-    private static long computeDuration(String decimals, String unitSuffix) {
-        final double duration = Double.parseDouble(decimals);
-        final double multiplier = toMultiplier(unitSuffix);
-        return (long) (duration * multiplier);
+    /**
+     * @return The fraction {@code fraction / 10^digits} of the unit, in nanoseconds, rounded down. Exact, because the
+     * fraction has at most 15 digits, and the largest multiplier is 36.
+     */
+    private static long fractionNanoseconds(long fraction, int digits, int unit) {
+        final int exponent = UNIT_EXPONENTS[unit];
+        if (digits <= exponent) {
+            return fraction * UNIT_MULTIPLIERS[unit] * POWERS_OF_TEN[exponent - digits];
+        }
+        return fraction * UNIT_MULTIPLIERS[unit] / POWERS_OF_TEN[digits - exponent];
     }
 
-    private static double toMultiplier(String unitSuffix) {
-        switch (unitSuffix) {
-            case "ms":
-                return 1.0E00;
-            case "s":
-                return 1.0E03;
-            case "m":
-                return 6.0E04;
-            case "h":
-                return 3.6E06;
-            default:
-                return 1.0d;
+    /**
+     * @return The unit between {@code start} and {@code end}, or -1 if there's no such unit.
+     */
+    private static int unit(String s, int start, int end) {
+        final int length = end - start;
+        if (length == 1) {
+            switch (toLowerCase(s.charAt(start))) {
+                case 's':
+                    return SECONDS_UNIT;
+                case 'm':
+                    return MINUTES_UNIT;
+                case 'h':
+                    return HOURS_UNIT;
+                default:
+                    return -1;
+            }
+        }
+        if (length == 2 && toLowerCase(s.charAt(start + 1)) == 's') {
+            switch (toLowerCase(s.charAt(start))) {
+                case 'n':
+                    return NANOSECONDS_UNIT;
+                case 'u':
+                case '\u00b5': // Micro sign
+                case '\u03bc': // Greek small letter mu
+                    return MICROSECONDS_UNIT;
+                case 'm':
+                    return MILLISECONDS_UNIT;
+                default:
+                    return -1;
+            }
         }
+        return -1;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
     }
 }
@@ -0,0 +1,145 @@
+package nl.ulso.consul.registrator;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static nl.ulso.consul.registrator.Logger.info;
+
+/**
+ * Drains the application before it shuts down: on SIGTERM all services are put in maintenance mode first, so that
+ * Consul stops handing them out. Then the application keeps running for the configured drain time, for in-flight
+ * requests to finish and for clients to notice. Only after that the JVM is allowed to shut down, which also
+ * deregisters the services.
+ * <p>
+ * A second SIGTERM while draining skips the rest of the drain time.
+ * </p>
+ * <p>
+ * This relies on {@code sun.misc.Signal}, which is not part of the official Java API. It's looked up through
+ * reflection, so that compiling against it doesn't warn about internal API. If it's not available, or if the JVM
+ * doesn't allow handling SIGTERM (for example when started with {@code -Xrs}), there's no drain phase at all.
+ * </p>
+ */
+class GracefulDrain {
+
+    private static final String SIGTERM = "TERM";
+    private static final String SIGNAL_CLASS = "sun.misc.Signal";
+    private static final String SIGNAL_HANDLER_CLASS = "sun.misc.SignalHandler";
+    private static final String MAINTENANCE_REASON = "Application is shutting down";
+    private static final int EXIT_STATUS_OFFSET = 128;
+
+    private final AsyncConsulClient consulClient;
+    private final Set<String> serviceIds;
+    private final Duration drain;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private IntConsumer next;
+
+    GracefulDrain(AsyncConsulClient consulClient, Set<String> serviceIds, Duration drain) {
+        this.consulClient = consulClient;
+        this.serviceIds = serviceIds;
+        this.drain = drain;
+    }
+
+    /**
+     * Installs this drain as the handler for SIGTERM, in front of the JVM's own handler.
+     */
+    static void install(AsyncConsulClient consulClient, Set<String> serviceIds, Duration drain) {
+        try {
+            final GracefulDrain drainHandler = new GracefulDrain(consulClient, serviceIds, drain);
+            final Class<?> signalClass = Class.forName(SIGNAL_CLASS);
+            final Class<?> handlerClass = Class.forName(SIGNAL_HANDLER_CLASS);
+            final Method getNumber = signalClass.getMethod("getNumber");
+            final Method handle = handlerClass.getMethod("handle", signalClass);
+            final Object signal = signalClass.getConstructor(String.class).newInstance(SIGTERM);
+            final Object handler = Proxy.newProxyInstance(GracefulDrain.class.getClassLoader(),
+                    new Class<?>[]{handlerClass}, (proxy, method, arguments) -> {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.invoke(drainHandler, arguments);
+                        }
+                        drainHandler.handle((Integer) getNumber.invoke(arguments[0]));
+                        return null;
+                    });
+            final Object previous = signalClass.getMethod("handle", signalClass, handlerClass)
+                    .invoke(null, signal, handler);
+            if (previous != null && previous != handlerClass.getField("SIG_DFL").get(null)
+                    && previous != handlerClass.getField("SIG_IGN").get(null)) {
+                drainHandler.next = number -> {
+                    try {
+                        handle.invoke(previous, signal);
+                    } catch (IllegalAccessException | InvocationTargetException e) {
+                        Logger.error("Could not pass SIGTERM on: %s", e.getMessage());
+                        exit(number);
+                    }
+                };
+            }
+        } catch (InvocationTargetException e) {
+            Logger.error("Cannot drain services on SIGTERM: %s", e.getCause().getMessage());
+        } catch (ReflectiveOperationException e) {
+            Logger.error("Cannot drain services on SIGTERM: %s is not available", SIGNAL_CLASS);
+        }
+    }
+
+    /**
+     * @param next Handler to pass the signal on to, by its number, after draining; {@code null} to exit the JVM.
+     */
+    void setNext(IntConsumer next) {
+        this.next = next;
+    }
+
+    void handle(int signalNumber) {
+        if (draining.compareAndSet(false, true)) {
+            drain();
+        }
+        proceed(signalNumber);
+    }
+
+    private void drain() {
+        final long drainMilliseconds = drain.toMillis();
+        final long deadline = System.nanoTime() + drain.toNanos();
+        final CompletableFuture<?>[] calls = serviceIds.stream()
+                .peek(s -> info("Putting service '%s' in maintenance mode", s))
+                .map(s -> consulClient.enableMaintenance(s, MAINTENANCE_REASON))
+                .toArray(CompletableFuture<?>[]::new);
+        try {
+            CompletableFuture.allOf(calls).get(drainMilliseconds, MILLISECONDS);
+        } catch (ExecutionException e) {
+            Logger.error("Could not put all services in maintenance mode: %s", e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            Logger.error("Could not put all services in maintenance mode within %sms", drainMilliseconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        info("Draining for %sms before shutting down", drainMilliseconds);
+        try {
+            NANOSECONDS.sleep(Math.max(0, deadline - System.nanoTime()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void proceed(int signalNumber) {
+        final IntConsumer handler = next;
+        if (handler == null) {
+            exit(signalNumber);
+        } else {
+            handler.accept(signalNumber);
+        }
+    }
+
+    /**
+     * There's no handler to pass the signal on to, so do what the JVM does by default.
+     */
+    private static void exit(int signalNumber) {
+        System.exit(EXIT_STATUS_OFFSET + signalNumber);
+    }
+}
@@ -0,0 +1,92 @@
+package nl.ulso.consul.registrator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static nl.ulso.consul.registrator.Logger.debug;
+
+/**
+ * Waits for services to become healthy by polling their own HTTP check, with exponential backoff between polls.
+ * <p>
+ * A service is healthy as soon as its check answers with any 2xx status code; that's also what Consul considers a
+ * passing check. Everything else, including not being able to connect at all, means: not yet.
+ * </p>
+ */
+class HealthGate {
+
+    private static final long INITIAL_BACKOFF_MILLISECONDS = 20;
+    private static final long MAXIMUM_BACKOFF_MILLISECONDS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLISECONDS = 250;
+    private static final int READ_TIMEOUT_MILLISECONDS = 1000;
+
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    HealthGate(int concurrency) {
+        scheduler = new ScheduledThreadPoolExecutor(concurrency, runnable -> {
+            final Thread thread = new Thread(runnable, "consul-registrator-health-gate");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param url      URL of the health check to poll.
+     * @param deadline Deadline, in terms of {@link System#nanoTime()}.
+     * @return A future that completes with {@code true} as soon as the check passes, or with {@code false} when the
+     * deadline has passed.
+     */
+    CompletableFuture<Boolean> awaitHealthy(String url, long deadline) {
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        scheduler.execute(() -> poll(url, deadline, INITIAL_BACKOFF_MILLISECONDS, result));
+        return result;
+    }
+
+    /**
+     * Stops polling; futures still waiting will never complete.
+     */
+    void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void poll(String url, long deadline, long backoff, CompletableFuture<Boolean> result) {
+        if (isHealthy(url)) {
+            result.complete(true);
+            return;
+        }
+        final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            result.complete(false);
+            return;
+        }
+        final long next = Math.min(backoff * 2, MAXIMUM_BACKOFF_MILLISECONDS);
+        if (!scheduler.isShutdown()) {
+            scheduler.schedule(() -> poll(url, deadline, next, result), Math.min(backoff, remaining), MILLISECONDS);
+        }
+    }
+
+    private boolean isHealthy(String url) {
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLISECONDS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLISECONDS);
+            final int responseCode = connection.getResponseCode();
+            // Read the response, so that the connection can be reused for the next poll.
+            try (InputStream input = responseCode < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (input != null) {
+                    input.readAllBytes();
+                }
+            }
+            debug("Health check '%s' responded with: %s", url, responseCode);
+            return responseCode >= 200 && responseCode < 300;
+        } catch (IOException | ClassCastException e) {
+            debug("Health check '%s' is not available yet: %s", url, e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package nl.ulso.consul.registrator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static nl.ulso.consul.registrator.Logger.debug;
+
+/**
+ * Small HTTP server in the agent that Consul calls for health checks that are shared by multiple services. It calls the
+ * real health check at most once per configured time, and hands out the cached result to every check in the meantime.
+ * <p>
+ * Every proxied URL gets a path of its own: {@code /check/<n>}. The proxy answers with the status code of the real
+ * check, so that Consul sees exactly the same thing as without the proxy. If the real check can't be reached at all,
+ * the proxy answers with 503.
+ * </p>
+ * <p>
+ * The proxy only listens on the loopback address; the Consul agent runs on localhost anyway.
+ * </p>
+ */
+class HealthProxy {
+
+    private static final String CHECK_PATH = "/check/";
+    private static final int CONNECT_TIMEOUT_MILLISECONDS = 250;
+    private static final int READ_TIMEOUT_MILLISECONDS = 1000;
+
+    private final long ttlNanos;
+    private final List<CachedCheck> checks = new ArrayList<>();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Starts the proxy on a port picked by the operating system.
+     *
+     * @param ttl How long to cache the result of a health check.
+     * @throws RegistratorException If the proxy can't be started.
+     */
+    HealthProxy(Duration ttl) {
+        this.ttlNanos = ttl.toNanos();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "consul-registrator-health-proxy");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        } catch (IOException e) {
+            throw new RegistratorException("Could not start health check proxy. Cause: " + e.getMessage(), e);
+        }
+        server.createContext(CHECK_PATH, this::handle);
+        server.setExecutor(executor);
+        // The server's dispatcher thread inherits the daemon flag of the thread that starts it. It must not keep the JVM
+        // alive, so it's started from a daemon thread.
+        final Thread starter = new Thread(server::start);
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        debug("Health check proxy listening on %s", baseUrl());
+    }
+
+    /**
+     * @return The URL for Consul to call instead of the given health check URL.
+     */
+    synchronized String proxy(String url) {
+        for (int i = 0; i < checks.size(); i++) {
+            if (checks.get(i).url.equals(url)) {
+                return baseUrl() + i;
+            }
+        }
+        checks.add(new CachedCheck(url));
+        return baseUrl() + (checks.size() - 1);
+    }
+
+    void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private String baseUrl() {
+        final InetSocketAddress address = server.getAddress();
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + CHECK_PATH;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            final CachedCheck check = findCheck(exchange.getRequestURI().getPath());
+            final int status = check != null ? check.getStatus() : HTTP_NOT_FOUND;
+            final byte[] body = (check != null ? check.url + " responded with " + status : "Unknown check")
+                    .getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized CachedCheck findCheck(String path) {
+        try {
+            final int index = Integer.parseInt(path.substring(CHECK_PATH.length()));
+            return index >= 0 && index < checks.size() ? checks.get(index) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The last known status of a single health check. Concurrent requests while the status is stale wait for a single
+     * call to the real check, instead of all calling it.
+     */
+    private class CachedCheck {
+        private final String url;
+        private int status;
+        private long expiresAt;
+
+        CachedCheck(String url) {
+            this.url = url;
+        }
+
+        synchronized int getStatus() {
+            final long now = System.nanoTime();
+            if (status == 0 || now - expiresAt >= 0) {
+                status = callCheck(url);
+                expiresAt = System.nanoTime() + ttlNanos;
+            }
+            return status;
+        }
+    }
+
+    private static int callCheck(String url) {
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLISECONDS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLISECONDS);
+            final int responseCode = connection.getResponseCode();
+            // Read the response, so that the connection can be reused for the next call.
+            try (InputStream input = responseCode < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (input != null) {
+                    input.readAllBytes();
+                }
+            }
+            debug("Health check '%s' responded with: %s", url, responseCode);
+            return responseCode;
+        } catch (IOException | ClassCastException e) {
+            debug("Health check '%s' is not available: %s", url, e.getMessage());
+            return HTTP_UNAVAILABLE;
+        }
+    }
+}
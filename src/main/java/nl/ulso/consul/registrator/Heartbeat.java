@@ -0,0 +1,119 @@
+package nl.ulso.consul.registrator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.function.BooleanSupplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static nl.ulso.consul.registrator.Logger.debug;
+import static nl.ulso.consul.registrator.Logger.info;
+
+/**
+ * Keeps the TTL checks of services passing, from a single background thread for all services.
+ * <p>
+ * Each service gets a heartbeat three times per TTL, so that a single missed heartbeat doesn't make the check fail.
+ * Whether a heartbeat passes or fails is up to the health predicate of the service: an instance of a class in the
+ * application that implements {@link BooleanSupplier}, with a public no-argument constructor. That keeps the application
+ * free of any dependency on the agent. Without a predicate a service is healthy as long as the JVM is running.
+ * </p>
+ */
+class Heartbeat {
+
+    private static final int HEARTBEATS_PER_TTL = 3;
+    private static final long MINIMUM_INTERVAL_MILLISECONDS = 100;
+    private static final BooleanSupplier ALWAYS_HEALTHY = () -> true;
+
+    private final ConsulClient consulClient;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Map<String, ScheduledFuture<?>> heartbeats = new ConcurrentHashMap<>();
+
+    Heartbeat(ConsulClient consulClient) {
+        this.consulClient = consulClient;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "consul-registrator-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts sending heartbeats for a service, the first one right away. Heartbeats sent for an earlier version of
+     * the service, with the same ID, stop. Once all heartbeats are stopped, on shutdown, this does nothing.
+     *
+     * @throws RegistratorException If the health predicate of the service can't be instantiated.
+     */
+    void start(Service service) {
+        final BooleanSupplier predicate = loadHealthPredicate(service.getHealthPredicate());
+        final long interval = Math.max(MINIMUM_INTERVAL_MILLISECONDS,
+                service.getTtlDuration().toMillis() / HEARTBEATS_PER_TTL);
+        final ScheduledFuture<?> heartbeat;
+        try {
+            heartbeat = scheduler.scheduleAtFixedRate(() -> beat(service.getCheckId(), predicate),
+                    0, interval, MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            debug("Not sending heartbeats for service '%s'; heartbeats are stopped", service.getId());
+            return;
+        }
+        debug("Sending heartbeats for service '%s' every %sms", service.getId(), interval);
+        final ScheduledFuture<?> previous = heartbeats.put(service.getCheckId(), heartbeat);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    /**
+     * Stops sending heartbeats for a single service.
+     */
+    void stop(Service service) {
+        final ScheduledFuture<?> heartbeat = heartbeats.remove(service.getCheckId());
+        if (heartbeat != null) {
+            debug("Stopped heartbeats for service '%s'", service.getId());
+            heartbeat.cancel(false);
+        }
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    private void beat(String checkId, BooleanSupplier predicate) {
+        try {
+            boolean healthy;
+            String note;
+            try {
+                healthy = predicate.getAsBoolean();
+                note = "Health predicate returned false";
+            } catch (RuntimeException e) {
+                healthy = false;
+                note = "Health predicate failed: " + e;
+            }
+            if (healthy) {
+                consulClient.passCheck(checkId);
+            } else {
+                info("Check '%s' is failing: %s", checkId, note);
+                consulClient.failCheck(checkId, note);
+            }
+        } catch (RuntimeException e) {
+            // Never let an exception stop the heartbeats; the next one may well succeed.
+            Logger.error("Could not send heartbeat for check '%s': %s", checkId, e.getMessage());
+        }
+    }
+
+    private static BooleanSupplier loadHealthPredicate(String className) {
+        if (className == null) {
+            return ALWAYS_HEALTHY;
+        }
+        try {
+            final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            final Class<?> predicateClass = Class.forName(className, true, classLoader);
+            return (BooleanSupplier) predicateClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+            throw new RegistratorException("Cannot create health predicate '" + className + "'. It must be a class "
+                    + "implementing java.util.function.BooleanSupplier with a public no-argument constructor. "
+                    + "Cause: " + e, e);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package nl.ulso.consul.registrator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Minimal HTTP/1.1 codec: just enough to talk to a Consul agent over a persistent connection.
+ * <p>
+ * Requests always carry a {@code Content-Length}. Responses may be delimited by {@code Content-Length}, by chunked
+ * transfer encoding or by the server closing the connection. Anything fancier (trailers, 1xx responses other than
+ * {@code 100 Continue}, compression) is not supported; the Consul agent doesn't use it.
+ * </p>
+ */
+final class HttpCodec {
+
+    private static final int MAXIMUM_LINE_LENGTH = 8192;
+
+    private HttpCodec() {
+    }
+
+    static void writeRequest(OutputStream output, String host, ConsulRequest request) throws IOException {
+        final byte[] body = request.getBody();
+        final StringBuilder head = new StringBuilder(128)
+                .append(request.getMethod()).append(' ').append(request.getPath()).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(host).append("\r\n");
+        if (body.length > 0 || !"GET".equals(request.getMethod())) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        output.write(head.toString().getBytes(ISO_8859_1));
+        output.write(body);
+        output.flush();
+    }
+
+    static ConsulResponse readResponse(InputStream input, String method) throws IOException {
+        int status;
+        Map<String, String> headers;
+        do {
+            status = parseStatus(readLine(input));
+            headers = readHeaders(input);
+        } while (status == 100);
+        final byte[] body;
+        if ("HEAD".equals(method) || status == 204 || status == 304) {
+            body = new byte[0];
+        } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            body = readChunked(input);
+        } else if (headers.containsKey("content-length")) {
+            body = readFully(input, parseLength(headers.get("content-length")));
+        } else {
+            headers.put("connection", "close");
+            body = input.readAllBytes();
+        }
+        return new ConsulResponse(status, headers, body);
+    }
+
+    static boolean isPersistent(ConsulResponse response) {
+        return !"close".equalsIgnoreCase(response.getHeader("connection"));
+    }
+
+    private static int parseStatus(String statusLine) throws IOException {
+        // HTTP/1.1 200 OK
+        final int start = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || start == -1 || statusLine.length() < start + 4) {
+            throw new IOException("Invalid HTTP status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid HTTP status line: " + statusLine);
+        }
+    }
+
+    private static Map<String, String> readHeaders(InputStream input) throws IOException {
+        final Map<String, String> headers = new HashMap<>();
+        String line;
+        while (!(line = readLine(input)).isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static byte[] readChunked(InputStream input) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String line = readLine(input);
+            final int extension = line.indexOf(';');
+            if (extension != -1) {
+                line = line.substring(0, extension);
+            }
+            final int size;
+            try {
+                size = Integer.parseInt(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+            if (size == 0) {
+                // Skip trailers, if any, up to the final empty line.
+                while (!readLine(input).isEmpty()) {
+                    // Nothing to do here.
+                }
+                return body.toByteArray();
+            }
+            body.write(readFully(input, size));
+            readLine(input);
+        }
+    }
+
+    private static int parseLength(String value) throws IOException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + value);
+        }
+    }
+
+    private static byte[] readFully(InputStream input, int length) throws IOException {
+        final byte[] bytes = input.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException("Connection closed after " + bytes.length + " of " + length + " bytes");
+        }
+        return bytes;
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException("Connection closed by Consul agent");
+            }
+            if (line.length() == MAXIMUM_LINE_LENGTH) {
+                throw new IOException("HTTP line too long");
+            }
+            line.append((char) c);
+        }
+        final int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+}
@@ -1,91 +1,462 @@
 package nl.ulso.consul.registrator;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
+import static java.net.HttpURLConnection.HTTP_CONFLICT;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
 import static java.net.HttpURLConnection.HTTP_OK;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static nl.ulso.consul.registrator.GoDuration.toMilliseconds;
 import static nl.ulso.consul.registrator.Logger.debug;
+import static nl.ulso.consul.registrator.Logger.info;
 
 /**
- * Implementation for Consul's HTTP API on top of plain Java HttpURLConnections.
+ * Implementation for Consul's HTTP API on top of a {@link ConsulTransport}; by default a small pool of persistent
+ * connections to the Consul agent on localhost.
  * <p>
  * What bothers me a bit here is that a single application will typically result in multiple calls to this client,
  * both on application startup and shutdown. What if the second or third call or something fails? Then the application
  * will terminate, with Consul in an inconsistent state. There's no way to recover from that currently. Since the
  * connection to Consul is through localhost the chance of requests failing is slim. But still...
  * </p>
+ * <p>
+ * For keys this is largely solved: batches of keys are stored and removed through Consul's transaction endpoint, which
+ * is all-or-nothing. Consul limits the number of operations in a single transaction though, so very large batches are
+ * split into multiple transactions. Only then can a failure still leave some keys behind.
+ * </p>
  */
 class HttpConsulClient implements ConsulClient {
 
     private static final int CONNECT_TIMEOUT_MILLISECONDS = 500;
     private static final int READ_TIMEOUT_MILLISECONDS = 500;
-    private static final String CONSUL_AGENT_URL = "http://localhost:8500";
+    private static final String CONSUL_AGENT_HOST = "localhost";
+    private static final int CONSUL_AGENT_PORT = 8500;
     private static final String DEREGISTRATION_URL = "/v1/agent/service/deregister/";
     private static final String REGISTRATION_URL = "/v1/agent/service/register";
+    private static final String MAINTENANCE_URL = "/v1/agent/service/maintenance/";
+    private static final String CHECK_PASS_URL = "/v1/agent/check/pass/";
+    private static final String CHECK_FAIL_URL = "/v1/agent/check/fail/";
+    private static final String SERVICES_URL = "/v1/agent/services";
     private static final String KEY_VALUE_URL = "/v1/kv/";
+    private static final String TRANSACTION_URL = "/v1/txn";
+    private static final int MAXIMUM_TRANSACTION_OPERATIONS = 64;
+    private static final int MAXIMUM_CHECK_AND_SET_ATTEMPTS = 3;
+    private static final long INITIAL_RETRY_BACKOFF_MILLISECONDS = 50;
+    private static final long MAXIMUM_RETRY_BACKOFF_MILLISECONDS = 2000;
+    private static final int CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+    private static final long CIRCUIT_BREAKER_OPEN_MILLISECONDS = 5000;
+    private static final String CONTENT_HASH_HEADER = "x-consul-contenthash";
+    private static final String INDEX_HEADER = "x-consul-index";
+    // Consul adds up to 1/16th of the wait time to spread the load of blocking queries; on top of that allow some slack.
+    private static final int BLOCKING_QUERY_JITTER_DIVISOR = 16;
+    private static final int BLOCKING_QUERY_SLACK_MILLISECONDS = 5000;
+
+    private final ConsulTransport transport;
+
+    HttpConsulClient() {
+        this(new KeepAliveTransport(CONSUL_AGENT_HOST, CONSUL_AGENT_PORT,
+                CONNECT_TIMEOUT_MILLISECONDS, READ_TIMEOUT_MILLISECONDS));
+    }
+
+    /**
+     * Creates a client that retries failed calls as configured.
+     */
+    HttpConsulClient(Configuration configuration) {
+        this(configuration, new Metrics());
+    }
+
+    /**
+     * Creates a client that retries failed calls as configured, counting retries in the metrics.
+     */
+    HttpConsulClient(Configuration configuration, Metrics metrics) {
+        this(new RetryingTransport(agentTransport(configuration),
+                configuration.getRetries(), INITIAL_RETRY_BACKOFF_MILLISECONDS, MAXIMUM_RETRY_BACKOFF_MILLISECONDS,
+                CIRCUIT_BREAKER_FAILURE_THRESHOLD, CIRCUIT_BREAKER_OPEN_MILLISECONDS, metrics));
+    }
+
+    HttpConsulClient(ConsulTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return A transport to the configured Consul agent, or one that fails over between the configured agents.
+     */
+    private static ConsulTransport agentTransport(Configuration configuration) {
+        final List<ConsulTransport> transports = new ArrayList<>();
+        for (URI agent : configuration.getConsulAgents()) {
+            if (!Configuration.UNIX_SCHEME.equals(agent.getScheme())) {
+                transports.add(new KeepAliveTransport(agent.getHost(), agent.getPort(),
+                        CONNECT_TIMEOUT_MILLISECONDS, READ_TIMEOUT_MILLISECONDS));
+            } else if (UnixSocketTransport.isSupported()) {
+                transports.add(new UnixSocketTransport(agent.getPath(), READ_TIMEOUT_MILLISECONDS));
+            } else {
+                info("Unix domain sockets need Java 16 or later; talking to the Consul agent at %s:%s instead of %s",
+                        CONSUL_AGENT_HOST, CONSUL_AGENT_PORT, agent);
+                transports.add(new KeepAliveTransport(CONSUL_AGENT_HOST, CONSUL_AGENT_PORT,
+                        CONNECT_TIMEOUT_MILLISECONDS, READ_TIMEOUT_MILLISECONDS));
+            }
+        }
+        if (transports.size() == 1) {
+            return transports.get(0);
+        }
+        return new FailoverTransport(transports, configuration.isHedge());
+    }
 
     @Override
     public void register(Service service) {
-        withConnection(CONSUL_AGENT_URL + REGISTRATION_URL, (connection) -> {
-            connection.setRequestMethod("PUT");
-            connection.setDoOutput(true);
-            try (PrintWriter writer = new PrintWriter(connection.getOutputStream())) {
-                final String json = service.toConsulRegistrationJson();
-                debug("Payload for Consul registration: '%s'", json);
-                writer.print(json);
-            }
-        });
+        if (Logger.isDebugEnabled()) {
+            debug("Payload for Consul registration: '%s'", service.toConsulRegistrationJson());
+        }
+        execute(ConsulRequest.put(REGISTRATION_URL, service.getRegistrationPayload()));
     }
 
     @Override
     public void deregister(String serviceId) {
-        withConnection(CONSUL_AGENT_URL + DEREGISTRATION_URL + serviceId, (connection) -> {
-            // Actually, there's nothing to do here, because it's a plain GET.
-        });
+        execute(ConsulRequest.get(DEREGISTRATION_URL + serviceId));
     }
 
     @Override
-    public void storeKeyValue(String key, String value) {
-        withConnection(CONSUL_AGENT_URL + KEY_VALUE_URL + key, (connection) -> {
-            connection.setRequestMethod("PUT");
-            connection.setDoOutput(true);
-            try (PrintWriter writer = new PrintWriter(connection.getOutputStream())) {
-                debug("Payload for Consul key storage: '%s'", value);
-                writer.print(value);
+    public void enableMaintenance(String serviceId, String reason) {
+        execute(ConsulRequest.put(MAINTENANCE_URL + serviceId + "?enable=true&reason="
+                + URLEncoder.encode(reason, UTF_8), new byte[0]));
+    }
+
+    @Override
+    public void passCheck(String checkId) {
+        execute(ConsulRequest.put(CHECK_PASS_URL + checkId, new byte[0]));
+    }
+
+    @Override
+    public void failCheck(String checkId, String note) {
+        execute(ConsulRequest.put(CHECK_FAIL_URL + checkId + "?note=" + URLEncoder.encode(note, UTF_8), new byte[0]));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public BlockingQueryResult<Map<String, Map<String, Object>>> readServices(String hash, String wait) {
+        final ConsulRequest request = hash == null
+                ? ConsulRequest.get(SERVICES_URL)
+                : blockingQuery(SERVICES_URL + "?hash=" + URLEncoder.encode(hash, UTF_8), wait);
+        final ConsulResponse response = execute(request);
+        final Map<String, Map<String, Object>> services = new LinkedHashMap<>();
+        ((Map<String, Object>) JsonReader.parse(response.getBodyAsString()))
+                .forEach((id, service) -> services.put(id, (Map<String, Object>) service));
+        return new BlockingQueryResult<>(response.getHeader(CONTENT_HASH_HEADER), services);
+    }
+
+    @Override
+    public BlockingQueryResult<Map<String, String>> readKeyValues(Collection<String> keys, String index, String wait) {
+        final Iterator<String> iterator = keys.iterator();
+        if (!iterator.hasNext()) {
+            return new BlockingQueryResult<>(index, Collections.emptyMap());
+        }
+        final String first = iterator.next();
+        final BlockingQueryResult<Map<String, Object>> result = readKey(first, index, wait);
+        final Map<String, Map<String, Object>> entries = new LinkedHashMap<>();
+        if (result.getValue() != null) {
+            entries.put(first, result.getValue());
+        }
+        if (keys.size() > 1) {
+            entries.putAll(readEntries(keys.stream().skip(1).collect(toList())));
+        }
+        final Map<String, String> keyValuePairs = new LinkedHashMap<>();
+        for (String key : keys) {
+            final Map<String, Object> entry = entries.get(key);
+            if (entry != null) {
+                keyValuePairs.put(key, valueOf(entry));
             }
-        });
+        }
+        return new BlockingQueryResult<>(result.getIndex(), keyValuePairs);
+    }
+
+    /**
+     * Reads a single key; never recursively, because that reads every key below it as well, ours or not.
+     *
+     * @return The complete entry of the key, as Consul hands it out; {@code null} if the key doesn't exist.
+     */
+    private BlockingQueryResult<Map<String, Object>> readKey(String key, String index, String wait) {
+        final String path = KEY_VALUE_URL + key;
+        final ConsulRequest request = index == null
+                ? ConsulRequest.get(path)
+                : blockingQuery(path + "?index=" + index, wait);
+        final ConsulResponse response = send(request);
+        return new BlockingQueryResult<>(response.getHeader(INDEX_HEADER), readKeys(request, response).get(key));
+    }
+
+    /**
+     * @return All keys in the response, with their complete entries as Consul hands them out.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Map<String, Object>> readKeys(ConsulRequest request, ConsulResponse response) {
+        final Map<String, Map<String, Object>> keys = new LinkedHashMap<>();
+        // Consul responds with 404 if there are no keys at all, but it still supplies an index to wait on.
+        if (response.getStatus() == HTTP_NOT_FOUND) {
+            return keys;
+        }
+        requireOk(request, response);
+        for (Object entry : (List<Object>) JsonReader.parse(response.getBodyAsString())) {
+            final Map<String, Object> pair = (Map<String, Object>) entry;
+            keys.put((String) pair.get("Key"), pair);
+        }
+        return keys;
+    }
+
+    private static String valueOf(Map<String, Object> entry) {
+        final String value = (String) entry.get("Value");
+        return value != null ? new String(Base64.getDecoder().decode(value), UTF_8) : "";
+    }
+
+    private static ConsulRequest blockingQuery(String path, String wait) {
+        final long waitMilliseconds = toMilliseconds(wait);
+        final long timeout = waitMilliseconds + waitMilliseconds / BLOCKING_QUERY_JITTER_DIVISOR
+                + BLOCKING_QUERY_SLACK_MILLISECONDS;
+        return ConsulRequest.get(path + "&wait=" + wait).withReadTimeout((int) Math.min(Integer.MAX_VALUE, timeout));
+    }
+
+    @Override
+    public void storeKeyValue(String key, String value) {
+        debug("Payload for Consul key storage: '%s'", value);
+        execute(ConsulRequest.put(KEY_VALUE_URL + key, value.getBytes(UTF_8)));
     }
 
     @Override
     public void removeKey(String key) {
-        withConnection(CONSUL_AGENT_URL + KEY_VALUE_URL + key, (connection) -> connection.setRequestMethod("DELETE"));
+        execute(ConsulRequest.delete(KEY_VALUE_URL + key));
     }
 
-    private void withConnection(String url, HttpAction action) {
-        final HttpURLConnection connection;
+    /**
+     * Only writes keys that are missing or have a different value in Consul; unchanged keys cost nothing on the Consul
+     * servers. All keys are read in one transaction, and written in another. Keys are written with check-and-set,
+     * against the index they had when we read them. If any of them changed in the meantime, Consul rolls back the
+     * whole transaction, and we start over.
+     */
+    @Override
+    public void storeKeyValues(Map<String, String> keyValuePairs) {
+        for (int attempt = 1; ; attempt++) {
+            final Map<String, Map<String, Object>> current = readEntries(keyValuePairs.keySet());
+            final List<Consumer<JsonWriter>> operations = new ArrayList<>(keyValuePairs.size());
+            keyValuePairs.forEach((key, value) -> {
+                final Map<String, Object> entry = current.get(key);
+                if (entry != null && value.equals(valueOf(entry))) {
+                    debug("Key '%s' is up to date in Consul", key);
+                    return;
+                }
+                // Index 0 means: only if the key doesn't exist yet.
+                final Number index = entry != null ? (Number) entry.get("ModifyIndex") : 0;
+                operations.add(writer -> writer.beginObject().name("KV").beginObject()
+                        .name("Verb").value("cas")
+                        .name("Key").value(key)
+                        .name("Value").value(Base64.getEncoder().encodeToString(value.getBytes(UTF_8)))
+                        .name("Index").value(index)
+                        .endObject().endObject());
+            });
+            if (operations.isEmpty() || transact(operations) != null) {
+                return;
+            }
+            if (attempt == MAXIMUM_CHECK_AND_SET_ATTEMPTS) {
+                throw new RegistratorException("Keys kept changing in Consul while storing them; gave up after "
+                        + attempt + " attempts");
+            }
+            debug("Keys changed in Consul while storing them; trying again");
+        }
+    }
+
+    /**
+     * Reads exactly these keys, in a single transaction. Consul's {@code get} fails the whole transaction if a key
+     * doesn't exist, so each key is read with {@code get-tree} on the key itself instead. Whatever else that turns up,
+     * like keys that merely start with one of ours, is left out.
+     *
+     * @return The complete entries of the keys that exist, as Consul hands them out.
+     */
+    private Map<String, Map<String, Object>> readEntries(Collection<String> keys) {
+        final List<Consumer<JsonWriter>> operations = new ArrayList<>(keys.size());
+        keys.forEach(key -> operations.add(writer -> writer.beginObject().name("KV").beginObject()
+                .name("Verb").value("get-tree")
+                .name("Key").value(key)
+                .endObject().endObject()));
+        final List<Map<String, Object>> results = transact(operations);
+        if (results == null) {
+            throw new RegistratorException("Consul rolled back the reading of keys " + keys);
+        }
+        final Set<String> wanted = new HashSet<>(keys);
+        final Map<String, Map<String, Object>> entries = new LinkedHashMap<>();
+        for (Map<String, Object> entry : results) {
+            final String key = (String) entry.get("Key");
+            if (wanted.contains(key)) {
+                entries.put(key, entry);
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public void removeKeys(Collection<String> keys) {
+        final List<Consumer<JsonWriter>> operations = new ArrayList<>(keys.size());
+        keys.forEach(key -> operations.add(writer -> writer.beginObject().name("KV").beginObject()
+                .name("Verb").value("delete")
+                .name("Key").value(key)
+                .endObject().endObject()));
+        if (transact(operations) == null) {
+            throw new RegistratorException("Consul rolled back the removal of keys " + keys);
+        }
+    }
+
+    @Override
+    public void warmUp() {
         try {
-            debug("Connecting to Consul URL '%s'", url);
-            connection = (HttpURLConnection) new URL(url).openConnection();
-            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLISECONDS);
-            connection.setReadTimeout(READ_TIMEOUT_MILLISECONDS);
-            action.accept(connection);
-            connection.disconnect();
-            final int responseCode = connection.getResponseCode();
-            debug("Consul response code: %s", responseCode);
-            if (HTTP_OK != responseCode) {
-                throw new RegistratorException("Consul service call to '" + url
-                        + "' responded with error: " + responseCode);
+            transport.warmUp();
+        } catch (IOException e) {
+            // Not a problem (yet); the agent might still be starting. Registration will tell.
+            debug("Could not connect to Consul agent on %s in advance: %s", transport, e.getMessage());
+        }
+    }
+
+    @Override
+    public void shutDown(long deadline) {
+        transport.shutDown(deadline);
+    }
+
+    /**
+     * @return The entries of all operations, in order; {@code null} if Consul rolled back a transaction because a key
+     * changed in the meantime.
+     * @throws RegistratorException If Consul rolled back a transaction for any other reason.
+     */
+    private List<Map<String, Object>> transact(List<Consumer<JsonWriter>> operations) {
+        final List<Map<String, Object>> entries = new ArrayList<>();
+        final int size = operations.size();
+        for (int start = 0; start < size; start += MAXIMUM_TRANSACTION_OPERATIONS) {
+            final JsonWriter writer = new JsonWriter().beginArray();
+            operations.subList(start, Math.min(size, start + MAXIMUM_TRANSACTION_OPERATIONS))
+                    .forEach(operation -> operation.accept(writer));
+            final byte[] json = writer.endArray().toByteArray();
+            if (Logger.isDebugEnabled()) {
+                debug("Payload for Consul transaction: '%s'", new String(json, UTF_8));
+            }
+            final ConsulRequest request = ConsulRequest.put(TRANSACTION_URL, json);
+            final ConsulResponse response = send(request);
+            if (response.getStatus() == HTTP_CONFLICT) {
+                final List<String> errors = errorsOf(response);
+                if (!errors.isEmpty() && errors.stream().allMatch(HttpConsulClient::isIndexConflict)) {
+                    debug("Consul rolled back transaction: %s", errors);
+                    return null;
+                }
+                throw new RegistratorException("Consul rolled back transaction: "
+                        + (errors.isEmpty() ? response.getBodyAsString() : errors));
             }
+            requireOk(request, response);
+            entries.addAll(entriesOf(response));
+        }
+        return entries;
+    }
+
+    /**
+     * @return What went wrong, per operation, in a rolled back transaction; empty if Consul didn't say.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<String> errorsOf(ConsulResponse response) {
+        final List<String> errors = new ArrayList<>();
+        try {
+            final Object body = JsonReader.parse(response.getBodyAsString());
+            final Object list = body instanceof Map ? ((Map<String, Object>) body).get("Errors") : null;
+            if (list instanceof List) {
+                for (Object error : (List<Object>) list) {
+                    errors.add(String.valueOf(((Map<String, Object>) error).get("What")));
+                }
+            }
+        } catch (RegistratorException | ClassCastException e) {
+            // Not what Consul normally responds with; the caller reports the body as is.
+        }
+        return errors;
+    }
+
+    /**
+     * Consul reports a failed check-and-set as a stale index; a failed {@code check-index} as a different modify
+     * index. Anything else is a real error, that trying again won't fix.
+     */
+    private static boolean isIndexConflict(String error) {
+        return error.contains("index is stale") || error.contains("current modify index");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> entriesOf(ConsulResponse response) {
+        final List<Map<String, Object>> entries = new ArrayList<>();
+        final String body = response.getBodyAsString();
+        if (body.isEmpty()) {
+            return entries;
+        }
+        final Object results = ((Map<String, Object>) JsonReader.parse(body)).get("Results");
+        if (results instanceof List) {
+            for (Object result : (List<Object>) results) {
+                final Object entry = ((Map<String, Object>) result).get("KV");
+                if (entry != null) {
+                    entries.add((Map<String, Object>) entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private ConsulResponse execute(ConsulRequest request) {
+        final ConsulResponse response = send(request);
+        requireOk(request, response);
+        return response;
+    }
+
+    private void requireOk(ConsulRequest request, ConsulResponse response) {
+        if (HTTP_OK != response.getStatus()) {
+            throw new RegistratorException("Consul service call to '" + transport + request.getPath()
+                    + "' responded with error: " + response.getStatus());
+        }
+    }
+
+    private ConsulResponse send(ConsulRequest request) {
+        final Events.ConsulCall event = Events.isRecording() ? new Events.ConsulCall() : null;
+        if (event != null) {
+            event.begin();
+        }
+        ConsulResponse response = null;
+        try {
+            debug("Calling Consul: %s", request);
+            response = transport.send(request);
+            debug("Consul response code: %s", response.getStatus());
+            return response;
         } catch (IOException e) {
-            throw new RegistratorException("Could not connect to Consul agent on " + CONSUL_AGENT_URL
+            throw new RegistratorException("Could not connect to Consul agent on " + transport
                     + ". Cause: " + e.getMessage(), e);
+        } finally {
+            if (event != null) {
+                commit(event, request, response);
+            }
         }
     }
 
-    @FunctionalInterface
-    private interface HttpAction {
-        void accept(HttpURLConnection connection) throws IOException;
+    private void commit(Events.ConsulCall event, ConsulRequest request, ConsulResponse response) {
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.agent = transport.toString();
+        event.method = request.getMethod();
+        event.path = request.getPath();
+        event.bytesSent = request.getBody().length;
+        if (response != null) {
+            event.status = response.getStatus();
+            event.bytesReceived = response.getBody().length;
+        }
+        event.commit();
     }
 }
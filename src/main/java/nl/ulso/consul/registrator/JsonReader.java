@@ -0,0 +1,201 @@
+package nl.ulso.consul.registrator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser for reading responses from Consul, so that the agent doesn't need a JSON library in the
+ * application. Objects become {@link Map}s, arrays become {@link List}s, numbers become {@link Long}s or
+ * {@link Double}s. Everything else is what you'd expect.
+ */
+class JsonReader {
+
+    private final String json;
+    private int position;
+
+    private JsonReader(String json) {
+        this.json = json;
+    }
+
+    /**
+     * @throws RegistratorException If the input is not valid JSON.
+     */
+    static Object parse(String json) {
+        final JsonReader reader = new JsonReader(json);
+        final Object value = reader.readValue();
+        reader.skipWhitespace();
+        if (reader.position != json.length()) {
+            throw reader.error("Unexpected content after JSON value");
+        }
+        return value;
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        if (position >= json.length()) {
+            throw error("Unexpected end of JSON");
+        }
+        final char c = json.charAt(position);
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                return readLiteral("true", Boolean.TRUE);
+            case 'f':
+                return readLiteral("false", Boolean.FALSE);
+            case 'n':
+                return readLiteral("null", null);
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return readNumber();
+                }
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        final Map<String, Object> object = new LinkedHashMap<>();
+        position++;
+        skipWhitespace();
+        if (consume('}')) {
+            return object;
+        }
+        do {
+            skipWhitespace();
+            if (position >= json.length() || json.charAt(position) != '"') {
+                throw error("Expected a string as object key");
+            }
+            final String key = readString();
+            skipWhitespace();
+            expect(':');
+            object.put(key, readValue());
+            skipWhitespace();
+        } while (consume(','));
+        expect('}');
+        return object;
+    }
+
+    private List<Object> readArray() {
+        final List<Object> array = new ArrayList<>();
+        position++;
+        skipWhitespace();
+        if (consume(']')) {
+            return array;
+        }
+        do {
+            array.add(readValue());
+            skipWhitespace();
+        } while (consume(','));
+        expect(']');
+        return array;
+    }
+
+    private String readString() {
+        position++;
+        final StringBuilder builder = new StringBuilder();
+        while (position < json.length()) {
+            final char c = json.charAt(position++);
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (position >= json.length()) {
+                break;
+            }
+            final char escaped = json.charAt(position++);
+            switch (escaped) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (position + 4 > json.length()) {
+                        throw error("Invalid unicode escape");
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid unicode escape");
+                    }
+                    position += 4;
+                    break;
+                default:
+                    builder.append(escaped);
+                    break;
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Object readNumber() {
+        final int start = position;
+        boolean decimal = false;
+        while (position < json.length()) {
+            final char c = json.charAt(position);
+            if (c == '.' || c == 'e' || c == 'E') {
+                decimal = true;
+            } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                break;
+            }
+            position++;
+        }
+        final String number = json.substring(start, position);
+        try {
+            return decimal ? (Object) Double.parseDouble(number) : (Object) Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            throw error("Invalid number '" + number + "'");
+        }
+    }
+
+    private Object readLiteral(String literal, Object value) {
+        if (!json.startsWith(literal, position)) {
+            throw error("Unexpected character '" + json.charAt(position) + "'");
+        }
+        position += literal.length();
+        return value;
+    }
+
+    private void skipWhitespace() {
+        while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+            position++;
+        }
+    }
+
+    private boolean consume(char c) {
+        if (position < json.length() && json.charAt(position) == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!consume(c)) {
+            throw error("Expected '" + c + "'");
+        }
+    }
+
+    private RegistratorException error(String message) {
+        return new RegistratorException("Invalid JSON from Consul at position " + position + ": " + message);
+    }
+}
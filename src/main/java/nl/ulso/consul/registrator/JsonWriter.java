@@ -0,0 +1,166 @@
+package nl.ulso.consul.registrator;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Minimal streaming JSON writer, the counterpart of {@link JsonReader}. It writes UTF-8 straight into a byte buffer,
+ * escaping strings as it goes, and takes care of the commas.
+ * <p>
+ * There's no validation of the structure: the caller is trusted to balance objects and arrays, and to write names only
+ * inside objects.
+ * </p>
+ */
+class JsonWriter {
+
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final ByteArrayOutputStream output;
+    // Whether a comma is needed before the next value at the current level; only the last bit is ever inspected.
+    private long commaNeeded;
+    private boolean afterName;
+
+    JsonWriter() {
+        this(INITIAL_CAPACITY);
+    }
+
+    JsonWriter(int initialCapacity) {
+        this.output = new ByteArrayOutputStream(initialCapacity);
+    }
+
+    JsonWriter beginObject() {
+        return begin('{');
+    }
+
+    JsonWriter endObject() {
+        return end('}');
+    }
+
+    JsonWriter beginArray() {
+        return begin('[');
+    }
+
+    JsonWriter endArray() {
+        return end(']');
+    }
+
+    JsonWriter name(String name) {
+        separate();
+        writeString(name);
+        output.write(':');
+        afterName = true;
+        return this;
+    }
+
+    JsonWriter value(String value) {
+        separate();
+        if (value == null) {
+            output.write(NULL, 0, NULL.length);
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    JsonWriter value(Number value) {
+        separate();
+        final String number = String.valueOf(value);
+        for (int i = 0; i < number.length(); i++) {
+            output.write(number.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * @return Everything written so far. The writer can still be used afterwards.
+     */
+    byte[] toByteArray() {
+        return output.toByteArray();
+    }
+
+    private JsonWriter begin(char c) {
+        separate();
+        output.write(c);
+        commaNeeded <<= 1;
+        return this;
+    }
+
+    private JsonWriter end(char c) {
+        output.write(c);
+        commaNeeded >>>= 1;
+        return this;
+    }
+
+    private void separate() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if ((commaNeeded & 1) != 0) {
+            output.write(',');
+        }
+        commaNeeded |= 1;
+    }
+
+    private void writeString(String value) {
+        output.write('"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                output.write('\\');
+                output.write(c);
+            } else if (c < 0x20) {
+                writeControlCharacter(c);
+            } else if (c < 0x80) {
+                output.write(c);
+            } else if (c < 0x800) {
+                output.write(0xC0 | (c >> 6));
+                output.write(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                output.write(0xF0 | (codePoint >> 18));
+                output.write(0x80 | ((codePoint >> 12) & 0x3F));
+                output.write(0x80 | ((codePoint >> 6) & 0x3F));
+                output.write(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // A lone surrogate can't be encoded in UTF-8; this is what String.getBytes does too.
+                output.write('?');
+            } else {
+                output.write(0xE0 | (c >> 12));
+                output.write(0x80 | ((c >> 6) & 0x3F));
+                output.write(0x80 | (c & 0x3F));
+            }
+        }
+        output.write('"');
+    }
+
+    private void writeControlCharacter(char c) {
+        output.write('\\');
+        switch (c) {
+            case '\n':
+                output.write('n');
+                break;
+            case '\r':
+                output.write('r');
+                break;
+            case '\t':
+                output.write('t');
+                break;
+            case '\b':
+                output.write('b');
+                break;
+            case '\f':
+                output.write('f');
+                break;
+            default:
+                output.write('u');
+                output.write('0');
+                output.write('0');
+                output.write(HEX_DIGITS[c >> 4]);
+                output.write(HEX_DIGITS[c & 0xF]);
+                break;
+        }
+    }
+}
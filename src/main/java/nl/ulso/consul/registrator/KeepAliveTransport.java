@@ -0,0 +1,199 @@
+package nl.ulso.consul.registrator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static nl.ulso.consul.registrator.Logger.debug;
+
+/**
+ * Transport that keeps a small pool of persistent HTTP/1.1 connections to the Consul agent.
+ * <p>
+ * Connections are taken from the pool for a single request and handed back afterwards, unless the agent said it was
+ * going to close it. There's no upper limit on the number of connections in use at the same time; the pool size only
+ * limits the number of idle connections kept around.
+ * </p>
+ * <p>
+ * An idle connection may have been closed by the agent in the meantime. That only shows when it's used again, so a
+ * request that fails on a reused connection is retried once on a brand new one.
+ * </p>
+ */
+class KeepAliveTransport implements ConsulTransport {
+
+    static final int DEFAULT_POOL_SIZE = 4;
+
+    private final String host;
+    private final int port;
+    private final String authority;
+    private final int connectTimeoutMilliseconds;
+    private final int readTimeoutMilliseconds;
+    private final int poolSize;
+    private final Deque<Connection> pool = new ArrayDeque<>();
+    private volatile InetSocketAddress address;
+
+    KeepAliveTransport(String host, int port, int connectTimeoutMilliseconds, int readTimeoutMilliseconds) {
+        this(host, port, connectTimeoutMilliseconds, readTimeoutMilliseconds, DEFAULT_POOL_SIZE);
+    }
+
+    KeepAliveTransport(String host, int port, int connectTimeoutMilliseconds, int readTimeoutMilliseconds,
+                       int poolSize) {
+        this(host, port, host + ":" + port, connectTimeoutMilliseconds, readTimeoutMilliseconds, poolSize);
+    }
+
+    /**
+     * @param authority What to send in the {@code Host} header.
+     */
+    KeepAliveTransport(String host, int port, String authority, int connectTimeoutMilliseconds,
+                       int readTimeoutMilliseconds, int poolSize) {
+        this.host = host;
+        this.port = port;
+        this.authority = authority;
+        this.connectTimeoutMilliseconds = connectTimeoutMilliseconds;
+        this.readTimeoutMilliseconds = readTimeoutMilliseconds;
+        this.poolSize = poolSize;
+    }
+
+    @Override
+    public ConsulResponse send(ConsulRequest request) throws IOException {
+        Connection connection = acquire();
+        try {
+            return exchange(connection, request);
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (IOException e) {
+            if (!connection.reused) {
+                throw e;
+            }
+            debug("Reused connection to Consul agent failed (%s); retrying on a new one", e.getMessage());
+            connection = connect();
+            return exchange(connection, request);
+        }
+    }
+
+    @Override
+    public void warmUp() throws IOException {
+        final int count = Math.max(1, poolSize / 2);
+        for (int i = 0; i < count; i++) {
+            release(connect());
+        }
+        debug("Opened %s connection(s) to Consul agent at %s", count, this);
+    }
+
+    private ConsulResponse exchange(Connection connection, ConsulRequest request) throws IOException {
+        try {
+            final int readTimeout = request.getReadTimeout();
+            connection.setReadTimeout(readTimeout > 0 ? readTimeout : readTimeoutMilliseconds);
+            HttpCodec.writeRequest(connection.output, authority, request);
+            final ConsulResponse response = HttpCodec.readResponse(connection.input, request.getMethod());
+            if (HttpCodec.isPersistent(response)) {
+                release(connection);
+            } else {
+                connection.close();
+            }
+            return response;
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private Connection acquire() throws IOException {
+        synchronized (pool) {
+            final Connection connection = pool.pollFirst();
+            if (connection != null) {
+                connection.reused = true;
+                return connection;
+            }
+        }
+        return connect();
+    }
+
+    private void release(Connection connection) {
+        synchronized (pool) {
+            if (pool.size() < poolSize) {
+                pool.addFirst(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Opens a new connection to the agent.
+     */
+    Connection connect() throws IOException {
+        final Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(readTimeoutMilliseconds);
+            socket.connect(resolve(), connectTimeoutMilliseconds);
+            return new SocketConnection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private InetSocketAddress resolve() {
+        InetSocketAddress resolved = address;
+        if (resolved == null || resolved.isUnresolved()) {
+            resolved = new InetSocketAddress(host, port);
+            address = resolved;
+        }
+        return resolved;
+    }
+
+    @Override
+    public String toString() {
+        return "http://" + host + ":" + port;
+    }
+
+    /**
+     * A connection to the agent, used for one request at a time.
+     */
+    abstract static class Connection {
+        private final InputStream input;
+        private final OutputStream output;
+        private boolean reused;
+
+        Connection(InputStream input, OutputStream output) {
+            this.input = new BufferedInputStream(input);
+            this.output = new BufferedOutputStream(output);
+        }
+
+        abstract void setReadTimeout(int milliseconds) throws IOException;
+
+        abstract void close();
+    }
+
+    private static class SocketConnection extends Connection {
+        private final Socket socket;
+
+        SocketConnection(Socket socket) throws IOException {
+            super(socket.getInputStream(), socket.getOutputStream());
+            this.socket = socket;
+        }
+
+        @Override
+        void setReadTimeout(int milliseconds) throws IOException {
+            socket.setSoTimeout(milliseconds);
+        }
+
+        @Override
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do here; the connection is gone anyway.
+            }
+        }
+    }
+}
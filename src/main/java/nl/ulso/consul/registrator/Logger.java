@@ -1,26 +1,84 @@
 package nl.ulso.consul.registrator;
 
 import java.io.PrintStream;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static nl.ulso.consul.registrator.Logger.Level.*;
 import static nl.ulso.consul.registrator.Logger.Level.INFO;
 
 /**
  * Minimal logger; no outside dependencies or complex configurations: just logging to System.out.
+ * <p>
+ * Lines are formatted by the caller, but written by a single daemon thread, through a bounded buffer. That keeps slow
+ * consoles from holding up the agent. Only that thread takes lines from the buffer, so they come out in order. When
+ * the buffer is full, lines are dropped rather than waited for; how many is reported with the next line written.
+ * Errors are the exception: they're never dropped, and the caller waits until they're written, since they're usually
+ * followed by the end of the application. On shutdown everything in the buffer is written, and from then on lines are
+ * written right away.
+ * </p>
+ * <p>
+ * To keep loops like the reconciler from flooding the log, each message is logged at most a number of times per
+ * minute; the rest is counted and reported with the next line of the same message that does make it. Messages are
+ * told apart by their complete text, arguments included, so that one noisy service or key doesn't hide the others.
+ * Errors are never suppressed.
+ * </p>
+ * <p>
+ * There are overloads for up to three arguments, so that a disabled level doesn't even cost an array.
+ * </p>
  */
 class Logger {
 
     private static final String APPLICATION_NAME = "CONSUL-AGENT";
-
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final int BUFFER_SIZE = 1024;
+    private static final int RATE_LIMIT_MESSAGES = 20;
+    private static final long RATE_LIMIT_WINDOW_NANOSECONDS = SECONDS.toNanos(60);
+    private static final int MAXIMUM_RATE_LIMITS = 1024;
 
     enum Level {DEBUG, INFO, SILENT, ERROR}
 
-    private static PrintStream out = System.out;
-    private static Level level = INFO;
+    /**
+     * How lines are written: as plain text, or as JSON objects, one per line.
+     */
+    enum Format {TEXT, JSON}
+
+    private static final BlockingQueue<String> buffer = new ArrayBlockingQueue<>(BUFFER_SIZE);
+    private static final Map<String, RateLimit> rateLimits = new ConcurrentHashMap<>();
+    private static final AtomicInteger dropped = new AtomicInteger();
+    // Lines in the buffer or being written by the writer thread.
+    private static final AtomicInteger pending = new AtomicInteger();
+    // Only to wait for pending to drop to zero; never held while writing.
+    private static final Object lock = new Object();
+    private static volatile PrintStream out = System.out;
+    private static volatile Level level = INFO;
+    private static volatile Format format = Format.TEXT;
+    private static volatile boolean synchronous;
+
+    static {
+        final Thread writer = new Thread(Logger::writeLines, "consul-registrator-logger");
+        writer.setDaemon(true);
+        writer.start();
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                synchronous = true;
+                flush();
+            }, "consul-registrator-logger-shutdown"));
+        } catch (IllegalStateException e) {
+            // Already shutting down; flush() is then the caller's problem.
+            synchronous = true;
+        }
+    }
 
     static void setOut(PrintStream out) {
+        flush();
         Logger.out = out;
     }
 
@@ -32,31 +90,228 @@ class Logger {
         return level;
     }
 
+    static void setFormat(Format format) {
+        Logger.format = format;
+    }
+
+    static boolean isDebugEnabled() {
+        return level == DEBUG;
+    }
+
+    static boolean isInfoEnabled() {
+        return level == DEBUG || level == INFO;
+    }
+
+    static void info(String line) {
+        if (isInfoEnabled()) {
+            log(INFO, line);
+        }
+    }
+
+    static void info(String line, Object argument) {
+        if (isInfoEnabled()) {
+            log(INFO, String.format(line, argument));
+        }
+    }
+
+    static void info(String line, Object argument1, Object argument2) {
+        if (isInfoEnabled()) {
+            log(INFO, String.format(line, argument1, argument2));
+        }
+    }
+
+    static void info(String line, Object argument1, Object argument2, Object argument3) {
+        if (isInfoEnabled()) {
+            log(INFO, String.format(line, argument1, argument2, argument3));
+        }
+    }
+
     static void info(String line, Object... arguments) {
-        if (SILENT == level) {
-            return;
+        if (isInfoEnabled()) {
+            log(INFO, String.format(line, arguments));
+        }
+    }
+
+    static void debug(String line) {
+        if (isDebugEnabled()) {
+            log(DEBUG, line);
+        }
+    }
+
+    static void debug(String line, Object argument) {
+        if (isDebugEnabled()) {
+            log(DEBUG, String.format(line, argument));
+        }
+    }
+
+    static void debug(String line, Object argument1, Object argument2) {
+        if (isDebugEnabled()) {
+            log(DEBUG, String.format(line, argument1, argument2));
+        }
+    }
+
+    static void debug(String line, Object argument1, Object argument2, Object argument3) {
+        if (isDebugEnabled()) {
+            log(DEBUG, String.format(line, argument1, argument2, argument3));
         }
-        print(INFO, line, arguments);
     }
 
     static void debug(String line, Object... arguments) {
-        if (SILENT == level || INFO == level) {
-            return;
+        if (isDebugEnabled()) {
+            log(DEBUG, String.format(line, arguments));
         }
-        print(DEBUG, line, arguments);
     }
 
     static void error(String line, Object... arguments) {
-        print(ERROR, line, arguments);
+        log(ERROR, String.format(line, arguments));
+        flush();
+    }
+
+    /**
+     * Waits until everything logged so far is written: until the buffer is empty and the writer thread is idle. Lines
+     * are never written from here, or they could overtake the line the writer thread is busy with.
+     */
+    static void flush() {
+        synchronized (lock) {
+            while (pending.get() > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void log(Level level, String message) {
+        final int suppressed = level == ERROR ? 0 : acquire(message);
+        if (suppressed < 0) {
+            return;
+        }
+        final String text = suppressed == 0 ? message
+                : message + " (" + suppressed + " identical messages suppressed)";
+        final String line = format == Format.JSON ? toJson(level, text) : toText(level, text);
+        if (synchronous) {
+            writeNow(line);
+            return;
+        }
+        pending.incrementAndGet();
+        if (buffer.offer(line)) {
+            return;
+        }
+        idle();
+        if (level == ERROR) {
+            writeNow(line);
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes the line after everything that's in the buffer.
+     */
+    private static void writeNow(String line) {
+        flush();
+        reportDropped();
+        out.println(line);
+    }
+
+    private static void idle() {
+        if (pending.decrementAndGet() == 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Messages that are logged only once would fill up the rate limits forever; when there are too many, they start
+     * over. At worst that lets a few more messages through.
+     */
+    private static int acquire(String message) {
+        if (rateLimits.size() >= MAXIMUM_RATE_LIMITS) {
+            rateLimits.clear();
+        }
+        return rateLimits.computeIfAbsent(message, m -> new RateLimit()).acquire();
+    }
+
+    private static String toText(Level level, String message) {
+        return new StringBuilder(message.length() + 48)
+                .append(TIMESTAMP_FORMAT.format(LocalDateTime.now()))
+                .append(' ')
+                .append(APPLICATION_NAME)
+                .append(' ')
+                .append(level == INFO ? " INFO" : level.name())
+                .append(" - ")
+                .append(message)
+                .toString();
+    }
+
+    private static String toJson(Level level, String message) {
+        final JsonWriter writer = new JsonWriter(message.length() + 96)
+                .beginObject()
+                .name("timestamp").value(TIMESTAMP_FORMAT.format(LocalDateTime.now()))
+                .name("logger").value(APPLICATION_NAME)
+                .name("level").value(level.name())
+                .name("thread").value(Thread.currentThread().getName())
+                .name("message").value(message)
+                .endObject();
+        return new String(writer.toByteArray(), UTF_8);
     }
 
-    private static void print(Level level, String line, Object[] arguments) {
-        out.print(new SimpleDateFormat("yyyy-MM-dd HH:MM:ss.SSS").format(new Date()));
-        out.print(" ");
-        out.print(APPLICATION_NAME);
-        out.print(" ");
-        out.print(String.format("%5s", level));
-        out.print(" - ");
-        out.println(String.format(line, arguments));
+    private static void writeLines() {
+        while (true) {
+            final String line;
+            try {
+                line = buffer.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            out.println(line);
+            // The lines that were dropped came after the ones that made it into the buffer.
+            if (buffer.isEmpty()) {
+                reportDropped();
+            }
+            idle();
+        }
+    }
+
+    private static void reportDropped() {
+        final int count = dropped.getAndSet(0);
+        if (count > 0) {
+            final String message = count + " log lines dropped; the log couldn't keep up";
+            out.println(format == Format.JSON ? toJson(ERROR, message) : toText(ERROR, message));
+        }
+    }
+
+    /**
+     * Counts how often a message was logged in the current window.
+     */
+    private static class RateLimit {
+        private long windowStart = System.nanoTime();
+        private int count;
+        private int suppressed;
+
+        /**
+         * @return -1 if the message must be suppressed, otherwise the number of messages suppressed since the last one
+         * that made it.
+         */
+        synchronized int acquire() {
+            final long now = System.nanoTime();
+            if (now - windowStart > RATE_LIMIT_WINDOW_NANOSECONDS) {
+                windowStart = now;
+                count = 0;
+            }
+            if (count >= RATE_LIMIT_MESSAGES) {
+                suppressed++;
+                return -1;
+            }
+            count++;
+            final int result = suppressed;
+            suppressed = 0;
+            return result;
+        }
     }
 }
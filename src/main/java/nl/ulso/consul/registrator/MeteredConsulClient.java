@@ -0,0 +1,109 @@
+package nl.ulso.consul.registrator;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static nl.ulso.consul.registrator.Metrics.Operation.*;
+
+/**
+ * Client that records the number and latency of all calls to another client in {@link Metrics}.
+ */
+class MeteredConsulClient implements ConsulClient {
+
+    private final ConsulClient consulClient;
+    private final Metrics metrics;
+
+    MeteredConsulClient(ConsulClient consulClient, Metrics metrics) {
+        this.consulClient = consulClient;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void register(Service service) {
+        metered(REGISTER, () -> consulClient.register(service));
+    }
+
+    @Override
+    public void deregister(String serviceId) {
+        metered(DEREGISTER, () -> consulClient.deregister(serviceId));
+    }
+
+    @Override
+    public void storeKeyValue(String key, String value) {
+        metered(STORE_KEY_VALUE, () -> consulClient.storeKeyValue(key, value));
+    }
+
+    @Override
+    public void removeKey(String key) {
+        metered(REMOVE_KEY, () -> consulClient.removeKey(key));
+    }
+
+    @Override
+    public void enableMaintenance(String serviceId, String reason) {
+        metered(ENABLE_MAINTENANCE, () -> consulClient.enableMaintenance(serviceId, reason));
+    }
+
+    @Override
+    public void passCheck(String checkId) {
+        metered(PASS_CHECK, () -> consulClient.passCheck(checkId));
+    }
+
+    @Override
+    public void failCheck(String checkId, String note) {
+        metered(FAIL_CHECK, () -> consulClient.failCheck(checkId, note));
+    }
+
+    @Override
+    public BlockingQueryResult<Map<String, Map<String, Object>>> readServices(String hash, String wait) {
+        return metered(READ_SERVICES, () -> consulClient.readServices(hash, wait));
+    }
+
+    @Override
+    public BlockingQueryResult<Map<String, String>> readKeyValues(Collection<String> keys, String index, String wait) {
+        return metered(READ_KEY_VALUES, () -> consulClient.readKeyValues(keys, index, wait));
+    }
+
+    @Override
+    public void storeKeyValues(Map<String, String> keyValuePairs) {
+        metered(STORE_KEY_VALUES, () -> consulClient.storeKeyValues(keyValuePairs));
+    }
+
+    @Override
+    public void removeKeys(Collection<String> keys) {
+        metered(REMOVE_KEYS, () -> consulClient.removeKeys(keys));
+    }
+
+    @Override
+    public void warmUp() {
+        consulClient.warmUp();
+    }
+
+    @Override
+    public void shutDown(long deadline) {
+        consulClient.shutDown(deadline);
+    }
+
+    private void metered(Metrics.Operation operation, Runnable call) {
+        metered(operation, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    /**
+     * Records the call, and its failure if it fails.
+     */
+    private <T> T metered(Metrics.Operation operation, Supplier<T> call) {
+        final long started = System.nanoTime();
+        try {
+            final T result = call.get();
+            metrics.calls(operation).record(started, false);
+            return result;
+        } catch (RuntimeException e) {
+            metrics.calls(operation).record(started, true);
+            metrics.error(operation, e);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package nl.ulso.consul.registrator;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * What the agent did, and how long it took: registration state per service, and number and latency of calls to
+ * Consul per operation. Published through JMX by the {@link MetricsMBean}.
+ * <p>
+ * Everything is recorded with lock-free counters, so that measuring doesn't slow down the calls being measured.
+ * Latencies go into a histogram with four buckets per power of two microseconds; percentiles are accurate to within
+ * 25%, which is plenty to tell a healthy Consul agent from a struggling one.
+ * </p>
+ */
+class Metrics {
+
+    enum Operation {
+        REGISTER, DEREGISTER, STORE_KEY_VALUE, STORE_KEY_VALUES, REMOVE_KEY, REMOVE_KEYS, ENABLE_MAINTENANCE, PASS_CHECK,
+        FAIL_CHECK, READ_SERVICES, READ_KEY_VALUES
+    }
+
+    enum ServiceState {PENDING, REGISTERED, FAILED}
+
+    private final long premainStarted;
+    private final Calls[] calls;
+    private final Map<String, ServiceState> services = new ConcurrentHashMap<>();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder circuitBreakerOpenings = new LongAdder();
+    private final AtomicReference<String> lastError = new AtomicReference<>();
+    private volatile long registrationCompleted = -1;
+
+    /**
+     * @param premainStarted {@link System#nanoTime()} at the start of {@code premain}.
+     */
+    Metrics(long premainStarted) {
+        this.premainStarted = premainStarted;
+        this.calls = new Calls[Operation.values().length];
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = new Calls();
+        }
+    }
+
+    Metrics() {
+        this(System.nanoTime());
+    }
+
+    Calls calls(Operation operation) {
+        return calls[operation.ordinal()];
+    }
+
+    void error(Operation operation, RuntimeException e) {
+        lastError.set(Instant.now() + " " + operation + ": " + e.getMessage());
+    }
+
+    void retried() {
+        retries.increment();
+    }
+
+    void circuitBreakerOpened() {
+        circuitBreakerOpenings.increment();
+    }
+
+    void servicePending(String serviceId) {
+        services.put(serviceId, ServiceState.PENDING);
+    }
+
+    void serviceRegistered(String serviceId) {
+        services.put(serviceId, ServiceState.REGISTERED);
+    }
+
+    void serviceFailed(String serviceId) {
+        services.put(serviceId, ServiceState.FAILED);
+    }
+
+    void serviceDeregistered(String serviceId) {
+        services.remove(serviceId);
+    }
+
+    /**
+     * Marks the moment all services and keys in the catalog are registered.
+     */
+    void registrationCompleted() {
+        registrationCompleted = System.nanoTime() - premainStarted;
+    }
+
+    /**
+     * @return Registration state by service ID, sorted.
+     */
+    Map<String, ServiceState> getServices() {
+        return new TreeMap<>(services);
+    }
+
+    /**
+     * @return Time from the start of {@code premain} until everything in the catalog was registered, or -1 if that
+     * didn't happen (yet).
+     */
+    long getTimeToRegistrationMillis() {
+        final long nanos = registrationCompleted;
+        return nanos < 0 ? -1 : NANOSECONDS.toMillis(nanos);
+    }
+
+    long getRetries() {
+        return retries.sum();
+    }
+
+    long getCircuitBreakerOpenings() {
+        return circuitBreakerOpenings.sum();
+    }
+
+    /**
+     * @return The last error, with the time it happened and the operation, or {@code null} if there was none.
+     */
+    String getLastError() {
+        return lastError.get();
+    }
+
+    /**
+     * Number and latency of the calls of one operation.
+     */
+    static class Calls {
+        private static final int BUCKETS = 256;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final LongAccumulator minMicros = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        /**
+         * @param started {@link System#nanoTime()} at the start of the call.
+         */
+        void record(long started, boolean failed) {
+            final long micros = NANOSECONDS.toMicros(System.nanoTime() - started);
+            count.increment();
+            if (failed) {
+                errors.increment();
+            }
+            totalMicros.add(micros);
+            minMicros.accumulate(micros);
+            maxMicros.accumulate(micros);
+            histogram.incrementAndGet(bucket(micros));
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getErrors() {
+            return errors.sum();
+        }
+
+        long getMinMicros() {
+            final long min = minMicros.get();
+            return min == Long.MAX_VALUE ? 0 : min;
+        }
+
+        long getMeanMicros() {
+            final long count = this.count.sum();
+            return count == 0 ? 0 : totalMicros.sum() / count;
+        }
+
+        long getMaxMicros() {
+            return maxMicros.get();
+        }
+
+        /**
+         * @param percentile Between 0 and 100.
+         * @return Upper bound of the latency below which the given percentage of calls fall, capped by the maximum.
+         */
+        long getPercentileMicros(double percentile) {
+            final long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = histogram.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(lowerBound(i + 1) - 1, getMaxMicros());
+                }
+            }
+            return getMaxMicros();
+        }
+
+        /**
+         * Values below 8 each have their own bucket; from there on each power of two is split into four.
+         */
+        static int bucket(long micros) {
+            if (micros < 8) {
+                return (int) Math.max(0, micros);
+            }
+            final int highestBit = 63 - Long.numberOfLeadingZeros(micros);
+            final int quarter = (int) (micros >>> (highestBit - 2)) & 3;
+            return (highestBit - 1) * 4 + quarter;
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket < 8) {
+                return bucket;
+            }
+            final int highestBit = bucket / 4 + 1;
+            if (highestBit > 62) {
+                return Long.MAX_VALUE;
+            }
+            return (4L + bucket % 4) << (highestBit - 2);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package nl.ulso.consul.registrator;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenMBeanAttributeInfoSupport;
+import javax.management.openmbean.OpenMBeanConstructorInfoSupport;
+import javax.management.openmbean.OpenMBeanInfoSupport;
+import javax.management.openmbean.OpenMBeanOperationInfoSupport;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static nl.ulso.consul.registrator.Logger.debug;
+
+/**
+ * Publishes the agent's {@link Metrics} as a platform MBean, so that they show up in JConsole, VisualVM, or whatever
+ * reads JMX.
+ * <p>
+ * This is a dynamic MBean, because a standard MBean needs a public interface, and the agent has only one public
+ * class. All attributes are open types, so any JMX client can read them without the agent's classes.
+ * </p>
+ */
+class MetricsMBean implements DynamicMBean {
+
+    static final String OBJECT_NAME = "nl.ulso.consul.registrator:type=Agent";
+    private static final String SERVICES = "Services";
+    private static final String TIME_TO_REGISTRATION = "TimeToRegistrationMillis";
+    private static final String RETRIES = "Retries";
+    private static final String CIRCUIT_BREAKER_OPENINGS = "CircuitBreakerOpenings";
+    private static final String LAST_ERROR = "LastError";
+    private static final String CALLS_SUFFIX = "Calls";
+    private static final String[] CALLS_ITEMS =
+            {"count", "errors", "minMicros", "meanMicros", "maxMicros", "p50Micros", "p95Micros", "p99Micros"};
+    private static final CompositeType CALLS_TYPE;
+    private static final ArrayType<String[]> SERVICES_TYPE;
+
+    static {
+        try {
+            final OpenType<?>[] types = new OpenType<?>[CALLS_ITEMS.length];
+            Arrays.fill(types, SimpleType.LONG);
+            CALLS_TYPE = new CompositeType("ConsulCalls", "Number and latency of calls to Consul",
+                    CALLS_ITEMS, CALLS_ITEMS, types);
+            SERVICES_TYPE = ArrayType.getArrayType(SimpleType.STRING);
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final Metrics metrics;
+    private final MBeanInfo info;
+
+    MetricsMBean(Metrics metrics) {
+        this.metrics = metrics;
+        this.info = createInfo();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, replacing whatever was registered before.
+     */
+    static void register(Metrics metrics) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MetricsMBean(metrics), name);
+            debug("Registered MBean '%s'", OBJECT_NAME);
+        } catch (JMException e) {
+            Logger.error("Could not register MBean '%s': %s", OBJECT_NAME, e.getMessage());
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        switch (attribute) {
+            case SERVICES:
+                return services();
+            case TIME_TO_REGISTRATION:
+                return metrics.getTimeToRegistrationMillis();
+            case RETRIES:
+                return metrics.getRetries();
+            case CIRCUIT_BREAKER_OPENINGS:
+                return metrics.getCircuitBreakerOpenings();
+            case LAST_ERROR:
+                return metrics.getLastError();
+            default:
+                for (Metrics.Operation operation : Metrics.Operation.values()) {
+                    if (attribute.equals(callsAttribute(operation))) {
+                        return calls(metrics.calls(operation));
+                    }
+                }
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        final AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out, as the contract says.
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Attribute " + attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+
+    private String[] services() {
+        final List<String> services = new ArrayList<>();
+        for (Map.Entry<String, Metrics.ServiceState> entry : metrics.getServices().entrySet()) {
+            services.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return services.toArray(new String[0]);
+    }
+
+    private static CompositeData calls(Metrics.Calls calls) {
+        try {
+            return new CompositeDataSupport(CALLS_TYPE, CALLS_ITEMS, new Object[]{
+                    calls.getCount(),
+                    calls.getErrors(),
+                    calls.getMinMicros(),
+                    calls.getMeanMicros(),
+                    calls.getMaxMicros(),
+                    calls.getPercentileMicros(50),
+                    calls.getPercentileMicros(95),
+                    calls.getPercentileMicros(99)
+            });
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The name of the attribute for an operation, for example {@code StoreKeyValuesCalls}.
+     */
+    static String callsAttribute(Metrics.Operation operation) {
+        final StringBuilder name = new StringBuilder();
+        for (String word : operation.name().split("_")) {
+            name.append(word.charAt(0)).append(word.substring(1).toLowerCase());
+        }
+        return name.append(CALLS_SUFFIX).toString();
+    }
+
+    private static MBeanInfo createInfo() {
+        final List<OpenMBeanAttributeInfoSupport> attributes = new ArrayList<>();
+        attributes.add(attribute(SERVICES, "Registration state by service ID", SERVICES_TYPE));
+        attributes.add(attribute(TIME_TO_REGISTRATION,
+                "Time from premain until everything was registered; -1 if not (yet)", SimpleType.LONG));
+        attributes.add(attribute(RETRIES, "Number of retried calls to Consul", SimpleType.LONG));
+        attributes.add(attribute(CIRCUIT_BREAKER_OPENINGS,
+                "Number of times the Consul agent was considered unavailable", SimpleType.LONG));
+        attributes.add(attribute(LAST_ERROR, "Last failed call to Consul", SimpleType.STRING));
+        for (Metrics.Operation operation : Metrics.Operation.values()) {
+            attributes.add(attribute(callsAttribute(operation), "Calls of operation " + operation, CALLS_TYPE));
+        }
+        return new OpenMBeanInfoSupport(MetricsMBean.class.getName(), "Consul registrator agent",
+                attributes.toArray(new OpenMBeanAttributeInfoSupport[0]),
+                new OpenMBeanConstructorInfoSupport[0],
+                new OpenMBeanOperationInfoSupport[0],
+                new MBeanNotificationInfo[0]);
+    }
+
+    private static OpenMBeanAttributeInfoSupport attribute(String name, String description, OpenType<?> type) {
+        return new OpenMBeanAttributeInfoSupport(name, description, type, true, false, false);
+    }
+}
@@ -0,0 +1,372 @@
+package nl.ulso.consul.registrator;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static nl.ulso.consul.registrator.Logger.debug;
+import static nl.ulso.consul.registrator.Logger.info;
+
+/**
+ * Puts services and keys back in Consul when they disappear or change, for example because the Consul agent lost its
+ * state after a restart.
+ * <p>
+ * Instead of polling, the reconciler uses Consul's blocking queries: a request for the services and one for the keys
+ * are kept open until something changes, or until the wait time passes. As long as nothing changes that's a couple of
+ * requests per wait time, and two threads doing nothing at all.
+ * </p>
+ * <p>
+ * Keys are never read recursively, so the reconciler never reads keys that aren't ours. Only the first key (in
+ * alphabetical order) is watched with a blocking query; all keys are then read in one go. Changes to the other keys
+ * are noticed no later than the wait time.
+ * </p>
+ * <p>
+ * The reconciler never holds the lock on the registrations while it changes Consul. Instead it checks the
+ * registrations again after every change, and puts right whatever the application changed in the meantime.
+ * </p>
+ */
+class Reconciler {
+
+    private static final long INITIAL_BACKOFF_MILLISECONDS = 1000;
+    private static final long MAXIMUM_BACKOFF_MILLISECONDS = 30000;
+
+    private final ConsulClient consulClient;
+    private final String wait;
+    private Registrations registrations;
+    private volatile Thread servicesThread;
+    private volatile Thread keysThread;
+    private volatile boolean running;
+    // Guards stopping and writesInProgress; never held while calling Consul.
+    private final Object writes = new Object();
+    private int writesInProgress;
+
+    /**
+     * @param wait Maximum time for a blocking query to wait for a change.
+     */
+    Reconciler(ConsulClient consulClient, Duration wait) {
+        this.consulClient = consulClient;
+        // Consul takes it as a Go duration.
+        this.wait = wait.toMillis() + "ms";
+    }
+
+    /**
+     * Starts watching Consul, reconciling right away.
+     *
+     * @param services      Services exactly as they were registered.
+     * @param keyValuePairs Key/value pairs as they were stored.
+     */
+    void start(Collection<Service> services, Map<String, String> keyValuePairs) {
+        final Registrations registrations = new Registrations();
+        services.forEach(registrations::putService);
+        keyValuePairs.forEach(registrations::putKeyValue);
+        start(registrations);
+    }
+
+    /**
+     * Starts watching Consul, reconciling right away. Changes to the registrations are picked up as they come; call
+     * {@link #watch()} after adding to them.
+     */
+    synchronized void start(Registrations registrations) {
+        this.registrations = registrations;
+        synchronized (writes) {
+            running = true;
+        }
+        watch();
+    }
+
+    /**
+     * Makes sure there's a watch on Consul for the services and for the keys, if there are any.
+     */
+    synchronized void watch() {
+        if (!running) {
+            return;
+        }
+        if (servicesThread == null && registrations.hasServices()) {
+            servicesThread = startThread("services", this::watchServices);
+        }
+        if (keysThread == null && registrations.hasKeys()) {
+            keysThread = startThread("keys", this::watchKeyValuePairs);
+        }
+    }
+
+    /**
+     * Stops watching Consul, without waiting for anything: this is called on shutdown. Once this returns, the
+     * reconciler doesn't start any new changes in Consul; a change that's in progress isn't waited for here, but in
+     * {@link #awaitStopped(long)}.
+     */
+    void stop() {
+        synchronized (writes) {
+            running = false;
+        }
+        final Thread services = servicesThread;
+        if (services != null) {
+            services.interrupt();
+        }
+        final Thread keys = keysThread;
+        if (keys != null) {
+            keys.interrupt();
+        }
+    }
+
+    /**
+     * Waits for the change to Consul in progress, if any, to finish. Threads that are waiting for a blocking query
+     * aren't waited for: socket reads don't notice interrupts, so they could take the whole wait time, and they can't
+     * change Consul anymore.
+     *
+     * @param deadline {@link System#nanoTime()} after which to stop waiting.
+     * @return Whether all changes finished before the deadline.
+     */
+    boolean awaitStopped(long deadline) {
+        synchronized (writes) {
+            while (writesInProgress > 0) {
+                final long remaining = NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    writes.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return Whether a change may be made; not once the reconciler is stopped. Always follow up with
+     * {@link #endWrite()}.
+     */
+    private boolean beginWrite() {
+        synchronized (writes) {
+            if (!running) {
+                return false;
+            }
+            writesInProgress++;
+            return true;
+        }
+    }
+
+    private void endWrite() {
+        synchronized (writes) {
+            writesInProgress--;
+            writes.notifyAll();
+        }
+    }
+
+    private Thread startThread(String name, Runnable runnable) {
+        final Thread thread = new Thread(runnable, "consul-registrator-reconciler-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * A watch ends when there's nothing left to watch; {@link #watch()} starts it again when needed.
+     */
+    private synchronized boolean keepWatchingServices() {
+        if (running && !registrations.hasServices()) {
+            servicesThread = null;
+            return false;
+        }
+        return running;
+    }
+
+    private synchronized boolean keepWatchingKeys() {
+        if (running && !registrations.hasKeys()) {
+            keysThread = null;
+            return false;
+        }
+        return running;
+    }
+
+    private void watchServices() {
+        String hash = null;
+        long backoff = INITIAL_BACKOFF_MILLISECONDS;
+        while (keepWatchingServices()) {
+            try {
+                final BlockingQueryResult<Map<String, Map<String, Object>>> result =
+                        consulClient.readServices(hash, wait);
+                if (reconcileServices(result.getValue())) {
+                    pauseAfterChanges();
+                }
+                hash = result.getIndex();
+                backoff = INITIAL_BACKOFF_MILLISECONDS;
+            } catch (RuntimeException e) {
+                hash = null;
+                backoff = backOff("services", e, backoff);
+            }
+        }
+    }
+
+    /**
+     * Whether the reconciler was stopped is checked before every change.
+     */
+    private boolean reconcileServices(Map<String, Map<String, Object>> registered) {
+        boolean changed = false;
+        for (Service service : registrations.getServices()) {
+            final Map<String, Object> current = registered.get(service.getId());
+            if (current != null && service.isRegisteredAs(current)) {
+                continue;
+            }
+            if (!beginWrite()) {
+                return changed;
+            }
+            try {
+                info(current == null
+                        ? "Service '%s' is missing from Consul; registering it again"
+                        : "Service '%s' was changed in Consul; registering it again", service.getId());
+                consulClient.register(service);
+                changed = true;
+                settleService(service);
+            } finally {
+                endWrite();
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * The application may have updated or deregistered the service while it was being registered again; then the
+     * application's change must win.
+     */
+    private void settleService(Service registered) {
+        final Service current = registrations.getService(registered.getId());
+        if (current == registered) {
+            return;
+        }
+        if (current == null) {
+            info("Service '%s' was deregistered in the meantime; deregistering it again", registered.getId());
+            consulClient.deregister(registered.getId());
+        } else {
+            info("Service '%s' was updated in the meantime; registering the update again", registered.getId());
+            consulClient.register(current);
+        }
+    }
+
+    /**
+     * The first key changes when keys are added or removed. Then the index of the previous query means nothing
+     * anymore.
+     */
+    private void watchKeyValuePairs() {
+        String firstKey = null;
+        String index = null;
+        long backoff = INITIAL_BACKOFF_MILLISECONDS;
+        while (keepWatchingKeys()) {
+            try {
+                final SortedSet<String> keys = new TreeSet<>(registrations.getKeyValuePairs().keySet());
+                if (keys.isEmpty()) {
+                    continue;
+                }
+                if (!keys.first().equals(firstKey)) {
+                    firstKey = keys.first();
+                    index = null;
+                }
+                final BlockingQueryResult<Map<String, String>> result =
+                        consulClient.readKeyValues(keys, index, wait);
+                if (reconcileKeyValuePairs(result.getValue())) {
+                    pauseAfterChanges();
+                }
+                index = nextIndex(index, result.getIndex());
+                backoff = INITIAL_BACKOFF_MILLISECONDS;
+            } catch (RuntimeException e) {
+                index = null;
+                backoff = backOff("keys", e, backoff);
+            }
+        }
+    }
+
+    private boolean reconcileKeyValuePairs(Map<String, String> stored) {
+        final Map<String, String> changes = new LinkedHashMap<>();
+        registrations.getKeyValuePairs().forEach((key, value) -> {
+            if (!value.equals(stored.get(key))) {
+                changes.put(key, value);
+            }
+        });
+        if (changes.isEmpty() || !beginWrite()) {
+            return false;
+        }
+        try {
+            changes.keySet().forEach(key -> info("Key '%s' is %s in Consul; storing it again", key,
+                    stored.containsKey(key) ? "changed" : "missing"));
+            consulClient.storeKeyValues(changes);
+            settleKeyValuePairs(changes);
+        } finally {
+            endWrite();
+        }
+        return true;
+    }
+
+    /**
+     * Like {@link #settleService(Service)}, for keys.
+     */
+    private void settleKeyValuePairs(Map<String, String> stored) {
+        final Map<String, String> current = registrations.getKeyValuePairs();
+        final Map<String, String> changed = new LinkedHashMap<>();
+        final List<String> removed = new ArrayList<>();
+        stored.forEach((key, value) -> {
+            final String now = current.get(key);
+            if (now == null) {
+                removed.add(key);
+            } else if (!now.equals(value)) {
+                changed.put(key, now);
+            }
+        });
+        if (!changed.isEmpty()) {
+            info("Keys %s were changed in the meantime; storing them again", changed.keySet());
+            consulClient.storeKeyValues(changed);
+        }
+        if (!removed.isEmpty()) {
+            info("Keys %s were removed in the meantime; removing them again", removed);
+            consulClient.removeKeys(removed);
+        }
+    }
+
+    /**
+     * Our own changes wake up the next blocking query right away. Should Consul keep disagreeing with us, this keeps
+     * the reconciler from hammering it.
+     */
+    private void pauseAfterChanges() {
+        try {
+            MILLISECONDS.sleep(INITIAL_BACKOFF_MILLISECONDS);
+        } catch (InterruptedException e) {
+            // Stopped; the loop ends by itself.
+        }
+    }
+
+    /**
+     * Consul's indexes only go up, except when the agent's state is reset. Then waiting on the old index would block
+     * until the new one catches up, so the next query starts over.
+     */
+    private static String nextIndex(String previous, String next) {
+        try {
+            if (previous != null && next != null && Long.parseLong(next) < Long.parseLong(previous)) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return next;
+    }
+
+    private long backOff(String what, RuntimeException e, long backoff) {
+        if (!running) {
+            return backoff;
+        }
+        Logger.error("Could not reconcile %s with Consul; trying again in %sms: %s", what, backoff, e.getMessage());
+        try {
+            MILLISECONDS.sleep(backoff);
+        } catch (InterruptedException interrupted) {
+            debug("Reconciler for %s interrupted", what);
+        }
+        return Math.min(backoff * 2, MAXIMUM_BACKOFF_MILLISECONDS);
+    }
+}
@@ -0,0 +1,147 @@
+package nl.ulso.consul.registrator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Collections.unmodifiableSet;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Everything the agent put in Consul: the services and keys from the catalog, exactly as they were registered, plus
+ * whatever the application added or removed at runtime through the {@link RuntimeRegistrar}. The reconciler keeps
+ * exactly this in Consul, and the shutdown hook removes exactly this from Consul.
+ * <p>
+ * The application's changes go in here first, under the lock on this object, and only then to Consul, outside of it.
+ * The reconciler checks in here again after each of its own changes to Consul, so it never leaves behind a service
+ * that the application deregistered in the meantime, for example.
+ * </p>
+ * <p>
+ * On shutdown the registrations are closed: from then on the application can't change them anymore, so that what the
+ * shutdown hook removes from Consul is really everything.
+ * </p>
+ */
+class Registrations {
+
+    private final Map<String, Service> services = new ConcurrentHashMap<>();
+    private final Map<String, String> keyValuePairs = new ConcurrentHashMap<>();
+    // Guards closed and changesInProgress; never held while calling Consul.
+    private final Object changes = new Object();
+    private boolean closed;
+    private int changesInProgress;
+
+    static Registrations of(Catalog catalog) {
+        final Registrations registrations = new Registrations();
+        catalog.getServices().forEach(registrations::putService);
+        catalog.getKeyValuePairs().forEach(registrations::putKeyValue);
+        return registrations;
+    }
+
+    void putService(Service service) {
+        services.put(service.getId(), service);
+    }
+
+    /**
+     * @return The service with the ID, or {@code null} if there is none.
+     */
+    Service getService(String serviceId) {
+        return services.get(serviceId);
+    }
+
+    void removeService(String serviceId) {
+        services.remove(serviceId);
+    }
+
+    boolean hasServices() {
+        return !services.isEmpty();
+    }
+
+    /**
+     * @return A copy of the services, as they are now.
+     */
+    Collection<Service> getServices() {
+        return new ArrayList<>(services.values());
+    }
+
+    /**
+     * @return The IDs of the services; not a copy, so this changes along with the registrations.
+     */
+    Set<String> getServiceIds() {
+        return unmodifiableSet(services.keySet());
+    }
+
+    void putKeyValue(String key, String value) {
+        keyValuePairs.put(key, value);
+    }
+
+    /**
+     * @return The value of the key, or {@code null} if there is none.
+     */
+    String getValue(String key) {
+        return keyValuePairs.get(key);
+    }
+
+    void removeKey(String key) {
+        keyValuePairs.remove(key);
+    }
+
+    boolean hasKeys() {
+        return !keyValuePairs.isEmpty();
+    }
+
+    /**
+     * @return A copy of the key/value pairs, as they are now.
+     */
+    Map<String, String> getKeyValuePairs() {
+        return new LinkedHashMap<>(keyValuePairs);
+    }
+
+    /**
+     * Starts a change by the application; always follow up with {@link #endChange()}.
+     *
+     * @throws RegistratorException If the registrations are closed.
+     */
+    void beginChange() {
+        synchronized (changes) {
+            if (closed) {
+                throw new RegistratorException("The JVM is shutting down; services and keys can't be changed anymore");
+            }
+            changesInProgress++;
+        }
+    }
+
+    void endChange() {
+        synchronized (changes) {
+            changesInProgress--;
+            changes.notifyAll();
+        }
+    }
+
+    /**
+     * Rejects all changes from now on, and waits for the changes in progress to finish.
+     *
+     * @param deadline {@link System#nanoTime()} after which to stop waiting.
+     * @return Whether all changes in progress finished before the deadline.
+     */
+    boolean close(long deadline) {
+        synchronized (changes) {
+            closed = true;
+            while (changesInProgress > 0) {
+                final long remaining = NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    changes.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -1,62 +1,331 @@
 package nl.ulso.consul.registrator;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
-import static nl.ulso.consul.registrator.GoDuration.toMilliseconds;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static nl.ulso.consul.registrator.Configuration.RegistrationMode.BIND;
+import static nl.ulso.consul.registrator.Configuration.RegistrationMode.DELAY;
+import static nl.ulso.consul.registrator.Configuration.RegistrationMode.HEALTH;
 import static nl.ulso.consul.registrator.Logger.debug;
 import static nl.ulso.consul.registrator.Logger.info;
 
 /**
  * Core orchestration class in the agent, taking care of loading the Consul catalog from the application, registering
  * services and keys with Consul after a configurable delay and installing a shutdown hook to remove everything that was
- * stored in Consul on startup.
+ * stored in Consul, on startup or later on by the application through the {@link RuntimeRegistrar}.
  */
 class Registrator {
 
     private final CatalogLoader catalogLoader;
     private final ConsulClient consulClient;
+    private final AsyncConsulClient asyncConsulClient;
+    private final Configuration configuration;
+    private final Metrics metrics;
 
     public Registrator(CatalogLoader catalogLoader, ConsulClient consulClient) {
+        this(catalogLoader, consulClient, Configuration.defaults());
+    }
+
+    public Registrator(CatalogLoader catalogLoader, ConsulClient consulClient, Configuration configuration) {
+        this(catalogLoader, consulClient, configuration, new Metrics());
+    }
+
+    public Registrator(CatalogLoader catalogLoader, ConsulClient consulClient, Configuration configuration,
+                       Metrics metrics) {
         this.catalogLoader = catalogLoader;
         this.consulClient = consulClient;
+        this.asyncConsulClient = new AsyncConsulClient(consulClient, configuration.getConcurrency());
+        this.configuration = configuration;
+        this.metrics = metrics;
     }
 
     void install() throws RegistratorException {
         debug("Loading service catalog from application");
+        final Events.CatalogLoad event = Events.isRecording() ? new Events.CatalogLoad() : null;
+        if (event != null) {
+            event.begin();
+        }
         final Catalog catalog = catalogLoader.load();
+        if (event != null) {
+            event.loader = catalogLoader.getClass().getSimpleName();
+            event.services = catalog.getServices().size();
+            event.keys = catalog.getKeyValuePairs().size();
+            event.commit();
+        }
+
+        final long delay = catalog.getDelayDuration().toMillis();
+        final Configuration.RegistrationMode mode = configuration.getRegistrationMode();
+        requireFixedPortsUnlessBindMode(catalog, mode);
+        switch (mode) {
+            case HEALTH:
+                debug("Registering services as soon as they are healthy, at most in %s", catalog.getDelay());
+                break;
+            case BIND:
+                debug("Registering services as soon as their ports are in use, fixed ports at most in %s",
+                        catalog.getDelay());
+                break;
+            default:
+                debug("Scheduling service registration in %s", catalog.getDelay());
+                break;
+        }
+        catalog.getServices().forEach(s -> metrics.servicePending(s.getId()));
+        final Timer timer = new Timer(false);
+        // Use the delay to get the Consul client ready, so that the registration itself doesn't pay for that.
+        // Same for JMX, which is not something to load before the application starts.
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                MetricsMBean.register(metrics);
+                consulClient.warmUp();
+            }
+        }, 0);
+        timer.schedule(new TimerTask() {
+            private HealthGate healthGate;
+            private BindWatcher bindWatcher;
+            private Heartbeat heartbeat;
+            private HealthProxy healthProxy;
+            private Set<String> sharedCheckUrls;
+            private Reconciler reconciler;
+            private Map<String, Map<String, Object>> alreadyRegistered;
+            private final Registrations registrations = new Registrations();
+            private long deadline;
 
-        debug("Scheduling service registration in %s", catalog.getDelay());
-        new Timer(false).schedule(new TimerTask() {
             @Override
             public void run() {
                 runAndExitOnException(this::registerWithConsul);
                 // The shutdown hook should only be installed if service registration completed.
                 // Which is why we do it here:
                 debug("Registering shutdown hook for service deregistration");
-                Runtime.getRuntime().addShutdownHook(new ShutdownHook(consulClient, catalog));
+                if (!configuration.getReconcile().isZero()) {
+                    startReconciler();
+                }
+                Runtime.getRuntime().addShutdownHook(new ShutdownHook(asyncConsulClient, registrations,
+                        configuration.getShutdownTimeout(), heartbeat, reconciler, healthProxy));
+                if (!configuration.getDrain().isZero()) {
+                    installGracefulDrain();
+                }
+                // Only now that the shutdown hook is there, the application may add services and keys of its own.
+                RuntimeRegistrarMBean.register(
+                        new RuntimeRegistrar(consulClient, registrations, metrics, heartbeat, reconciler));
+            }
+
+            private void startReconciler() {
+                debug("Reconciling services and keys with Consul, waiting at most %sms per query",
+                        configuration.getReconcile().toMillis());
+                reconciler = new Reconciler(consulClient, configuration.getReconcile());
+                reconciler.start(registrations);
+            }
+
+            private void installGracefulDrain() {
+                debug("Installing SIGTERM handler for draining services");
+                try {
+                    GracefulDrain.install(asyncConsulClient, registrations.getServiceIds(), configuration.getDrain());
+                } catch (LinkageError e) {
+                    Logger.error("Cannot drain services on SIGTERM; sun.misc.Signal is not available");
+                }
             }
 
             private void registerWithConsul() {
-                registerServices();
-                registerKeyValuePairs();
+                deadline = System.nanoTime() + MILLISECONDS.toNanos(delay);
+                if (mode == HEALTH) {
+                    healthGate = new HealthGate(configuration.getConcurrency());
+                } else if (mode == BIND) {
+                    bindWatcher = new BindWatcher(catalog.getServices().stream()
+                            .filter(s -> !s.hasAutomaticPort())
+                            .map(Service::getPort)
+                            .collect(Collectors.toSet()));
+                }
+                // The heartbeat starts its thread with the first TTL check, which may also be one added at runtime.
+                heartbeat = new Heartbeat(consulClient);
+                if (!configuration.getHealthProxy().isZero()) {
+                    startHealthProxy();
+                }
+                // Services and keys are independent of each other, so all of them go to Consul at the same time.
+                final List<CompletableFuture<Void>> calls = new ArrayList<>();
+                try {
+                    alreadyRegistered = readRegisteredServices();
+                    registerServices(calls);
+                    registerKeyValuePairs(calls);
+                    AsyncConsulClient.awaitAll(calls);
+                    metrics.registrationCompleted();
+                } finally {
+                    if (healthGate != null) {
+                        healthGate.close();
+                    }
+                    if (bindWatcher != null) {
+                        bindWatcher.close();
+                    }
+                }
+            }
+
+            private void registerServices(List<CompletableFuture<Void>> calls) {
+                catalog.getServices().forEach(s -> calls.add(awaitReady(s).thenCompose(service -> {
+                    final Service registered = proxied(service);
+                    registrations.putService(registered);
+                    final CompletableFuture<Void> registration;
+                    if (isRegistered(registered)) {
+                        info("Service '%s' is already registered with Consul", service.getId());
+                        registration = CompletableFuture.completedFuture(null);
+                    } else {
+                        info("Registering service '%s' with Consul", service.getId());
+                        registration = asyncConsulClient.register(registered);
+                    }
+                    registration.whenComplete((result, failure) -> {
+                        if (failure == null) {
+                            metrics.serviceRegistered(service.getId());
+                        } else {
+                            metrics.serviceFailed(service.getId());
+                        }
+                    });
+                    if (!service.hasTtlCheck()) {
+                        return registration;
+                    }
+                    // The TTL check is created along with the service; only from then on heartbeats make sense.
+                    return registration.thenRun(() -> heartbeat.start(service));
+                })));
+            }
+
+            /**
+             * Services with a fixed ID may still be registered from an earlier run, exactly as they are now. Those
+             * don't have to be registered again. If the services can't be read, they're all registered as usual.
+             */
+            private Map<String, Map<String, Object>> readRegisteredServices() {
+                if (catalog.getServices().stream().noneMatch(Service::hasFixedId)) {
+                    return Collections.emptyMap();
+                }
+                try {
+                    return consulClient.readServices(null, null).getValue();
+                } catch (RuntimeException e) {
+                    debug("Could not read services from Consul: %s", e.getMessage());
+                    return Collections.emptyMap();
+                }
+            }
+
+            private boolean isRegistered(Service service) {
+                final Map<String, Object> current = alreadyRegistered.get(service.getId());
+                return current != null && service.isRegisteredAs(current);
             }
 
-            private void registerServices() {
-                catalog.getServices().stream()
-                        .peek(s -> info("Registering service '%s' with Consul", s.getId()))
-                        .forEach(consulClient::register);
+            /**
+             * Only health checks that are shared by multiple services are worth proxying. Automatic ports are not
+             * known yet at this point, so those services never share their check.
+             */
+            private void startHealthProxy() {
+                final Map<String, Long> checkUrls = catalog.getServices().stream()
+                        .filter(s -> !s.hasTtlCheck() && !s.hasAutomaticPort())
+                        .collect(Collectors.groupingBy(Service::getHttpCheckUrl, Collectors.counting()));
+                sharedCheckUrls = checkUrls.entrySet().stream()
+                        .filter(e -> e.getValue() > 1)
+                        .map(Map.Entry::getKey)
+                        .collect(Collectors.toSet());
+                if (sharedCheckUrls.isEmpty()) {
+                    debug("No health checks are shared between services; not starting the health check proxy");
+                    return;
+                }
+                healthProxy = new HealthProxy(configuration.getHealthProxy());
             }
 
-            private void registerKeyValuePairs() {
-                catalog.getKeyValuePairs().entrySet().stream()
-                        .peek(e -> info("Storing key '%s' with value '%s' in Consul", e.getKey(), e.getValue()))
-                        .forEach(e -> consulClient.storeKeyValue(e.getKey(), e.getValue()));
+            private Service proxied(Service service) {
+                if (healthProxy == null || !sharedCheckUrls.contains(service.getHttpCheckUrl())) {
+                    return service;
+                }
+                final String url = healthProxy.proxy(service.getHttpCheckUrl());
+                debug("Consul calls health check '%s' of service '%s' through '%s'",
+                        service.getHttpCheckUrl(), service.getId(), url);
+                return service.withHttpCheckUrl(url);
             }
 
-        }, toMilliseconds(catalog.getDelay()));
+            private CompletableFuture<Service> awaitReady(Service service) {
+                switch (mode) {
+                    case HEALTH:
+                        if (service.hasTtlCheck()) {
+                            // There's no URL to poll; the heartbeat tells Consul whether the service is healthy.
+                            return CompletableFuture.completedFuture(service);
+                        }
+                        return healthGate.awaitHealthy(service.getHttpCheckUrl(), deadline).thenApply(healthy -> {
+                            if (!healthy) {
+                                info("Service '%s' is not healthy after %s; registering it anyway",
+                                        service.getId(), catalog.getDelay());
+                            }
+                            return service;
+                        });
+                    case BIND:
+                        if (service.hasAutomaticPort()) {
+                            return bindWatcher.awaitAnyPort(deadline).thenApply(port -> {
+                                if (port == BindWatcher.NO_PORT) {
+                                    throw new RegistratorException("Service '" + service.getId()
+                                            + "' has its port detected automatically, but the application didn't "
+                                            + "start listening on a new port within " + catalog.getDelay());
+                                }
+                                info("Service '%s' listens on port %s", service.getId(), port);
+                                return service.withDetectedPort(port);
+                            });
+                        }
+                        final long remaining = Math.max(0, NANOSECONDS.toMillis(deadline - System.nanoTime()));
+                        return bindWatcher.awaitPort(service.getPort())
+                                .completeOnTimeout(BindWatcher.NO_PORT, remaining, MILLISECONDS)
+                                .thenApply(port -> {
+                                    if (port == BindWatcher.NO_PORT) {
+                                        info("Service '%s' is not listening on port %s after %s; "
+                                                + "registering it anyway",
+                                                service.getId(), service.getPort(), catalog.getDelay());
+                                    }
+                                    return service;
+                                });
+                    default:
+                        return CompletableFuture.completedFuture(service);
+                }
+            }
+
+            private void registerKeyValuePairs(List<CompletableFuture<Void>> calls) {
+                final Map<String, String> keyValuePairs = catalog.getKeyValuePairs();
+                if (keyValuePairs.isEmpty()) {
+                    return;
+                }
+                keyValuePairs.forEach((key, value) -> {
+                    info("Storing key '%s' with value '%s' in Consul", key, value);
+                    registrations.putKeyValue(key, value);
+                });
+                calls.add(asyncConsulClient.storeKeyValues(keyValuePairs));
+            }
+
+        }, (mode == DELAY ? delay : 0) + startupJitter());
+    }
+
+    private long startupJitter() {
+        final long maximum = configuration.getStartupJitter().toMillis();
+        if (maximum <= 0) {
+            return 0;
+        }
+        final long jitter = ThreadLocalRandom.current().nextLong(maximum + 1);
+        debug("Postponing registration by another %sms to spread the load on the Consul agent", jitter);
+        return jitter;
+    }
+
+    private static void requireFixedPortsUnlessBindMode(Catalog catalog, Configuration.RegistrationMode mode) {
+        if (mode == BIND) {
+            return;
+        }
+        catalog.getServices().stream().filter(Service::hasAutomaticPort).findFirst().ifPresent(s -> {
+            throw new RegistratorException("Service '" + s.getId()
+                    + "' has its port detected automatically; that requires the agent argument 'registration=bind'");
+        });
     }
 
     static void runAndExitOnException(Runnable runnable) {
@@ -71,47 +340,133 @@ class Registrator {
         }
     }
 
-    private static class ShutdownHook extends Thread {
-        private final ConsulClient consulClient;
-        private final Set<String> serviceIds;
-        private final Set<String> keys;
+    /**
+     * Removes everything from Consul that the agent put there, all at the same time. It never blocks the shutdown
+     * of the JVM for longer than the configured timeout; whatever didn't finish by then is reported and left behind.
+     */
+    static class ShutdownHook extends Thread {
+        private final AsyncConsulClient consulClient;
+        private final Registrations registrations;
+        private final Duration timeout;
+        private final Heartbeat heartbeat;
+        private final Reconciler reconciler;
+        private final HealthProxy healthProxy;
+
+        ShutdownHook(AsyncConsulClient consulClient, Catalog catalog, Duration timeout) {
+            this(consulClient, Registrations.of(catalog), timeout, null, null, null);
+        }
 
-        public ShutdownHook(ConsulClient consulClient, Catalog catalog) {
-            // The only thing the agent keeps in the memory application are the Consul client,
-            // the service IDs and the keys. All other things (the rest of the catalog) may be garbage collected.
+        /**
+         * @param heartbeat   May be {@code null}, as may the reconciler and the health proxy.
+         * @param healthProxy Closed only after deregistration: until then Consul keeps calling it.
+         */
+        ShutdownHook(AsyncConsulClient consulClient, Registrations registrations, Duration timeout, Heartbeat heartbeat,
+                     Reconciler reconciler, HealthProxy healthProxy) {
+            // The registrations change as the application adds and removes services and keys at runtime; what's
+            // removed from Consul is whatever is in there when the JVM shuts down.
             this.consulClient = consulClient;
-            this.serviceIds = extractServiceIds(catalog);
-            this.keys = extractKeys(catalog);
+            this.registrations = registrations;
+            this.timeout = timeout;
+            this.heartbeat = heartbeat;
+            this.reconciler = reconciler;
+            this.healthProxy = healthProxy;
         }
 
-        private Set<String> extractServiceIds(Catalog catalog) {
-            return catalog.getServices().stream().map(Service::getId).collect(Collectors.toSet());
+        /**
+         * Everything, including waiting for the application's changes in progress, happens within the timeout.
+         */
+        @Override
+        public void run() {
+            // Never call System.exit from here: the JVM is already shutting down, and it would block forever.
+            final long deadline = System.nanoTime() + timeout.toNanos();
+            if (reconciler != null) {
+                // Otherwise it would put everything right back.
+                reconciler.stop();
+                if (!reconciler.awaitStopped(deadline)) {
+                    Logger.error("Reconciling services and keys with Consul did not finish within %sms",
+                            timeout.toMillis());
+                }
+            }
+            if (!registrations.close(deadline)) {
+                Logger.error("Changes to services and keys in progress did not finish within %sms",
+                        timeout.toMillis());
+            }
+            if (heartbeat != null) {
+                // Deregistration removes the checks; heartbeats after that would only fail.
+                heartbeat.stop();
+            }
+            final Events.Shutdown event = Events.isRecording() ? new Events.Shutdown() : null;
+            if (event != null) {
+                event.begin();
+            }
+            // Closed, so nothing changes anymore; no need for the lock.
+            final Set<String> serviceIds = new HashSet<>(registrations.getServiceIds());
+            final Set<String> keys = registrations.getKeyValuePairs().keySet();
+            // Even if Consul was unavailable before, try to clean up anyway; but not for longer than the timeout.
+            consulClient.shutDown(deadline);
+            try {
+                deregisterFromConsul(serviceIds, keys, deadline);
+            } catch (RuntimeException e) {
+                Logger.error("Deregistration from Consul failed: %s", e.getMessage());
+            }
+            if (healthProxy != null) {
+                healthProxy.close();
+            }
+            if (event != null) {
+                event.services = serviceIds.size();
+                event.keys = keys.size();
+                event.commit();
+            }
         }
 
-        private Set<String> extractKeys(Catalog catalog) {
-            return catalog.getKeyValuePairs().keySet().stream().collect(Collectors.toSet());
+        private void deregisterFromConsul(Set<String> serviceIds, Set<String> keys, long deadline) {
+            final Map<String, CompletableFuture<Void>> calls = new LinkedHashMap<>();
+            deregisterKeys(keys, calls);
+            deregisterServices(serviceIds, calls);
+            awaitAll(calls, deadline);
         }
 
-        @Override
-        public void run() {
-            runAndExitOnException(this::deregisterFromConsul);
+        private void deregisterServices(Set<String> serviceIds, Map<String, CompletableFuture<Void>> calls) {
+            serviceIds.forEach(s -> {
+                info("Deregistering service '%s' from Consul", s);
+                calls.put("service '" + s + "'", consulClient.deregister(s));
+            });
         }
 
-        private void deregisterFromConsul() {
-            deregisterKeys();
-            deregisterServices();
+        private void deregisterKeys(Set<String> keys, Map<String, CompletableFuture<Void>> calls) {
+            if (keys.isEmpty()) {
+                return;
+            }
+            keys.forEach(k -> info("Removing key '%s' from Consul", k));
+            calls.put("keys " + keys, consulClient.removeKeys(keys));
         }
 
-        private void deregisterServices() {
-            serviceIds.stream()
-                    .peek(s -> info("Deregistering service '%s' from Consul", s))
-                    .forEach(consulClient::deregister);
+        private void awaitAll(Map<String, CompletableFuture<Void>> calls, long deadline) {
+            try {
+                CompletableFuture.allOf(calls.values().toArray(new CompletableFuture<?>[0]))
+                        .get(Math.max(0, deadline - System.nanoTime()), NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // Reported below, per call.
+            }
+            calls.forEach((description, call) -> {
+                if (!call.isDone()) {
+                    Logger.error("Removing %s from Consul did not finish within %sms", description,
+                            timeout.toMillis());
+                } else if (call.isCompletedExceptionally()) {
+                    Logger.error("Removing %s from Consul failed: %s", description, failureOf(call));
+                }
+            });
         }
 
-        private void deregisterKeys() {
-            keys.stream()
-                    .peek(k -> info("Removing key '%s' from Consul", k))
-                    .forEach(consulClient::removeKey);
+        private static String failureOf(CompletableFuture<Void> call) {
+            try {
+                call.join();
+                return "unknown";
+            } catch (CompletionException e) {
+                return e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+            }
         }
     }
 }
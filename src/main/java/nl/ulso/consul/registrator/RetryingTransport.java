@@ -0,0 +1,228 @@
+package nl.ulso.consul.registrator;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static nl.ulso.consul.registrator.Logger.debug;
+import static nl.ulso.consul.registrator.Logger.info;
+
+/**
+ * Transport that retries requests to the Consul agent when it's not available, or when it asks us to slow down.
+ * <p>
+ * Retries back off exponentially, with "full jitter": each wait is a random time between zero and the exponential
+ * backoff. When many JVMs on the same node lose their Consul agent at the same time, that keeps them from all retrying
+ * at the same moment. If the agent responds with 429 or 503 and tells us when to come back through a
+ * {@code Retry-After} header, we wait at least that long.
+ * </p>
+ * <p>
+ * On top of that there's a circuit breaker: after a number of consecutive failures the agent is considered down, and
+ * requests fail right away instead of each waiting for its own timeout. After a while a single request is let through
+ * to see whether the agent is back. Deregistration when the JVM stops bypasses the circuit breaker; see
+ * {@link #shutDown(long)}.
+ * </p>
+ * <p>
+ * All requests the agent makes are idempotent, so retrying is always safe.
+ * </p>
+ */
+class RetryingTransport implements ConsulTransport {
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_UNAVAILABLE = 503;
+    private static final long MAXIMUM_RETRY_AFTER_MILLISECONDS = 30000;
+
+    private final ConsulTransport transport;
+    private final int retries;
+    private final long initialBackoffMilliseconds;
+    private final long maximumBackoffMilliseconds;
+    private final int failureThreshold;
+    private final long openMilliseconds;
+    private final Metrics metrics;
+    private int consecutiveFailures;
+    private long openUntil;
+    private boolean trialInProgress;
+    private volatile boolean shuttingDown;
+    private volatile long shutdownDeadline;
+
+    /**
+     * @param retries                    Maximum number of retries per request; 0 disables retries.
+     * @param initialBackoffMilliseconds Backoff before the first retry; it doubles on every next retry.
+     * @param maximumBackoffMilliseconds Upper limit of the backoff.
+     * @param failureThreshold           Number of consecutive failures after which the circuit breaker opens.
+     * @param openMilliseconds           How long the circuit breaker stays open before letting a request through.
+     */
+    RetryingTransport(ConsulTransport transport, int retries, long initialBackoffMilliseconds,
+                      long maximumBackoffMilliseconds, int failureThreshold, long openMilliseconds) {
+        this(transport, retries, initialBackoffMilliseconds, maximumBackoffMilliseconds, failureThreshold,
+                openMilliseconds, new Metrics());
+    }
+
+    /**
+     * @param metrics Where to count retries and openings of the circuit breaker.
+     */
+    RetryingTransport(ConsulTransport transport, int retries, long initialBackoffMilliseconds,
+                      long maximumBackoffMilliseconds, int failureThreshold, long openMilliseconds,
+                      Metrics metrics) {
+        this.metrics = metrics;
+        this.transport = transport;
+        this.retries = retries;
+        this.initialBackoffMilliseconds = initialBackoffMilliseconds;
+        this.maximumBackoffMilliseconds = maximumBackoffMilliseconds;
+        this.failureThreshold = failureThreshold;
+        this.openMilliseconds = openMilliseconds;
+    }
+
+    @Override
+    public ConsulResponse send(ConsulRequest request) throws IOException {
+        int attempt = 0;
+        while (true) {
+            final boolean shutdown = shuttingDown;
+            final boolean trial = !shutdown && allowRequest();
+            final ConsulResponse response;
+            try {
+                response = transport.send(request);
+            } catch (IOException e) {
+                if (!shutdown) {
+                    recordFailure(trial);
+                }
+                final long backoff = backoff(attempt, 0);
+                if (attempt >= retries || !mayRetry(shutdown, backoff)) {
+                    throw e;
+                }
+                debug("Request %s to Consul failed (%s); retrying", request, e.getMessage());
+                sleep(backoff);
+                attempt++;
+                continue;
+            }
+            final int status = response.getStatus();
+            if (!shutdown) {
+                if (status == HTTP_UNAVAILABLE) {
+                    recordFailure(trial);
+                } else {
+                    recordSuccess();
+                }
+            }
+            if ((status != HTTP_TOO_MANY_REQUESTS && status != HTTP_UNAVAILABLE) || attempt >= retries) {
+                return response;
+            }
+            final long backoff = backoff(attempt, retryAfter(response));
+            if (!mayRetry(shutdown, backoff)) {
+                return response;
+            }
+            info("Consul agent responded to %s with %s; retrying", request, status);
+            sleep(backoff);
+            attempt++;
+        }
+    }
+
+    /**
+     * From now on requests bypass the circuit breaker, and are only retried until the deadline.
+     * <p>
+     * This is for deregistration when the JVM stops: it's the last chance to clean up in Consul, so it shouldn't be
+     * denied because earlier requests failed. The agent might well be back by now.
+     * </p>
+     *
+     * @param deadline In terms of {@link System#nanoTime()}.
+     */
+    @Override
+    public void shutDown(long deadline) {
+        shutdownDeadline = deadline;
+        shuttingDown = true;
+    }
+
+    @Override
+    public void warmUp() throws IOException {
+        transport.warmUp();
+    }
+
+    /**
+     * @return Whether this request is the trial request after the circuit breaker was open.
+     * @throws IOException If the circuit breaker is open.
+     */
+    private synchronized boolean allowRequest() throws IOException {
+        if (consecutiveFailures < failureThreshold) {
+            return false;
+        }
+        final long remaining = openUntil - System.nanoTime();
+        if (remaining > 0 || trialInProgress) {
+            throw new IOException("Consul agent is considered unavailable after " + consecutiveFailures
+                    + " failures in a row; not calling it for another " + Math.max(0, NANOSECONDS.toMillis(remaining))
+                    + "ms");
+        }
+        trialInProgress = true;
+        return true;
+    }
+
+    private synchronized void recordSuccess() {
+        if (consecutiveFailures >= failureThreshold) {
+            info("Consul agent at %s is available again", transport);
+        }
+        consecutiveFailures = 0;
+        trialInProgress = false;
+    }
+
+    private synchronized void recordFailure(boolean trial) {
+        consecutiveFailures++;
+        if (trial || consecutiveFailures == failureThreshold) {
+            Logger.error("Consul agent at %s is unavailable; not calling it for %sms", transport, openMilliseconds);
+            metrics.circuitBreakerOpened();
+            openUntil = System.nanoTime() + MILLISECONDS.toNanos(openMilliseconds);
+        }
+        if (trial) {
+            trialInProgress = false;
+        }
+    }
+
+    private synchronized boolean isOpen() {
+        return consecutiveFailures >= failureThreshold;
+    }
+
+    /**
+     * @return Whether to retry after the backoff: not if the circuit breaker is open, or when shutting down, if it
+     * would take us past the deadline.
+     */
+    private boolean mayRetry(boolean shutdown, long backoffMilliseconds) {
+        if (shutdown) {
+            return System.nanoTime() + MILLISECONDS.toNanos(backoffMilliseconds) < shutdownDeadline;
+        }
+        return !isOpen();
+    }
+
+    private long backoff(int attempt, long minimumMilliseconds) {
+        final long backoff = Math.min(maximumBackoffMilliseconds, initialBackoffMilliseconds << Math.min(attempt, 30));
+        final long jitter = ThreadLocalRandom.current().nextLong(backoff + 1);
+        return Math.max(jitter, minimumMilliseconds);
+    }
+
+    private void sleep(long milliseconds) throws IOException {
+        metrics.retried();
+        try {
+            MILLISECONDS.sleep(milliseconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to retry", e);
+        }
+    }
+
+    /**
+     * @return The time the agent asked us to wait, or 0. Only the number of seconds is supported, not a date.
+     */
+    private static long retryAfter(ConsulResponse response) {
+        final String value = response.getHeader("retry-after");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.min(MAXIMUM_RETRY_AFTER_MILLISECONDS, SECONDS.toMillis(Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return transport.toString();
+    }
+}
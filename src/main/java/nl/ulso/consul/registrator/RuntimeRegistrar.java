@@ -0,0 +1,195 @@
+package nl.ulso.consul.registrator;
+
+import static nl.ulso.consul.registrator.Logger.debug;
+import static nl.ulso.consul.registrator.Logger.info;
+
+/**
+ * Adds, updates and removes services and keys while the application is running, for services that don't exist yet
+ * when the application starts: ports that are opened later, per tenant for example.
+ * <p>
+ * Every change goes to Consul by itself; the rest of the registrations is left alone. Changes that wouldn't change
+ * anything in Consul aren't sent at all. All changes end up in the {@link Registrations}, so that the reconciler keeps
+ * them in Consul and the shutdown hook removes them again. They go in there before they go to Consul, and are taken
+ * out again if Consul fails them. Changes are made one at a time, and none at all once the JVM is shutting down.
+ * </p>
+ */
+class RuntimeRegistrar {
+
+    private final ConsulClient consulClient;
+    private final Registrations registrations;
+    private final Metrics metrics;
+    private final Heartbeat heartbeat;
+    private final Reconciler reconciler;
+
+    /**
+     * @param reconciler May be {@code null}, if the agent doesn't reconcile.
+     */
+    RuntimeRegistrar(ConsulClient consulClient, Registrations registrations, Metrics metrics, Heartbeat heartbeat,
+                     Reconciler reconciler) {
+        this.consulClient = consulClient;
+        this.registrations = registrations;
+        this.metrics = metrics;
+        this.heartbeat = heartbeat;
+        this.reconciler = reconciler;
+    }
+
+    /**
+     * Registers a new service, or replaces the service with the same ID.
+     *
+     * @return Whether Consul was changed; not if the service is registered exactly like this already.
+     */
+    synchronized boolean register(Service service) {
+        registrations.beginChange();
+        try {
+            final Service previous;
+            synchronized (registrations) {
+                previous = registrations.getService(service.getId());
+                if (previous != null && previous.getPayloadHash().equals(service.getPayloadHash())) {
+                    debug("Service '%s' is registered with Consul exactly like this already", service.getId());
+                    return false;
+                }
+                registrations.putService(service);
+            }
+            info("%s service '%s' with Consul", previous == null ? "Registering" : "Updating", service.getId());
+            try {
+                consulClient.register(service);
+            } catch (RuntimeException e) {
+                synchronized (registrations) {
+                    if (previous == null) {
+                        registrations.removeService(service.getId());
+                    } else {
+                        registrations.putService(previous);
+                    }
+                }
+                throw e;
+            }
+            metrics.serviceRegistered(service.getId());
+            if (service.hasTtlCheck()) {
+                heartbeat.start(service);
+            } else if (previous != null && previous.hasTtlCheck()) {
+                heartbeat.stop(previous);
+            }
+        } finally {
+            registrations.endChange();
+        }
+        watch();
+        return true;
+    }
+
+    /**
+     * @return Whether Consul was changed; not if there is no service with the ID.
+     */
+    synchronized boolean deregister(String serviceId) {
+        registrations.beginChange();
+        try {
+            final Service service;
+            synchronized (registrations) {
+                service = registrations.getService(serviceId);
+                if (service == null) {
+                    debug("Service '%s' is not registered with Consul", serviceId);
+                    return false;
+                }
+                registrations.removeService(serviceId);
+            }
+            info("Deregistering service '%s' from Consul", serviceId);
+            // Deregistration removes the check; heartbeats after that would only fail.
+            heartbeat.stop(service);
+            try {
+                consulClient.deregister(serviceId);
+            } catch (RuntimeException e) {
+                synchronized (registrations) {
+                    registrations.putService(service);
+                }
+                if (service.hasTtlCheck()) {
+                    heartbeat.start(service);
+                }
+                throw e;
+            }
+            metrics.serviceDeregistered(serviceId);
+        } finally {
+            registrations.endChange();
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether Consul was changed; not if the key has this value already.
+     */
+    synchronized boolean storeKeyValue(String key, String value) {
+        registrations.beginChange();
+        try {
+            final String previous;
+            synchronized (registrations) {
+                previous = registrations.getValue(key);
+                if (value.equals(previous)) {
+                    debug("Key '%s' has value '%s' in Consul already", key, value);
+                    return false;
+                }
+                registrations.putKeyValue(key, value);
+            }
+            info("Storing key '%s' with value '%s' in Consul", key, value);
+            try {
+                consulClient.storeKeyValue(key, value);
+            } catch (RuntimeException e) {
+                restoreKeyValue(key, previous);
+                throw e;
+            }
+        } finally {
+            registrations.endChange();
+        }
+        watch();
+        return true;
+    }
+
+    /**
+     * @return Whether Consul was changed; not if there is no such key.
+     */
+    synchronized boolean removeKey(String key) {
+        registrations.beginChange();
+        try {
+            final String previous;
+            synchronized (registrations) {
+                previous = registrations.getValue(key);
+                if (previous == null) {
+                    debug("Key '%s' is not stored in Consul", key);
+                    return false;
+                }
+                registrations.removeKey(key);
+            }
+            info("Removing key '%s' from Consul", key);
+            try {
+                consulClient.removeKey(key);
+            } catch (RuntimeException e) {
+                restoreKeyValue(key, previous);
+                throw e;
+            }
+        } finally {
+            registrations.endChange();
+        }
+        return true;
+    }
+
+    private void restoreKeyValue(String key, String previous) {
+        synchronized (registrations) {
+            if (previous == null) {
+                registrations.removeKey(key);
+            } else {
+                registrations.putKeyValue(key, previous);
+            }
+        }
+    }
+
+    Registrations getRegistrations() {
+        return registrations;
+    }
+
+    /**
+     * The reconciler doesn't watch services or keys if there weren't any; now there may be. Never called with the
+     * lock on the registrations, because the reconciler takes that one after its own.
+     */
+    private void watch() {
+        if (reconciler != null) {
+            reconciler.watch();
+        }
+    }
+}
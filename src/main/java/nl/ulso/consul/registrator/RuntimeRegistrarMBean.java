@@ -0,0 +1,269 @@
+package nl.ulso.consul.registrator;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenMBeanAttributeInfoSupport;
+import javax.management.openmbean.OpenMBeanConstructorInfoSupport;
+import javax.management.openmbean.OpenMBeanInfoSupport;
+import javax.management.openmbean.OpenMBeanOperationInfoSupport;
+import javax.management.openmbean.OpenMBeanParameterInfoSupport;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static nl.ulso.consul.registrator.Logger.debug;
+
+/**
+ * Publishes the {@link RuntimeRegistrar} as a platform MBean, so that the application can register services and keys
+ * with Consul after it started, through the platform MBean server. Only JRE types go in and out, so the application
+ * doesn't need any of the agent's classes. Errors come out as an {@link MBeanException} with an
+ * {@link IllegalStateException} in it, for the same reason.
+ * <p>
+ * Services and keys go through the same builders as the catalog, so they're checked in the same way, and variables in
+ * them are substituted in the same way. Services registered at runtime need an ID, because that's what they're updated
+ * and deregistered by.
+ * </p>
+ */
+class RuntimeRegistrarMBean implements DynamicMBean {
+
+    static final String OBJECT_NAME = "nl.ulso.consul.registrator:type=Registrations";
+    static final String REGISTER_HTTP_SERVICE = "registerHttpService";
+    static final String REGISTER_TTL_SERVICE = "registerTtlService";
+    static final String DEREGISTER_SERVICE = "deregisterService";
+    static final String STORE_KEY_VALUE = "storeKeyValue";
+    static final String REMOVE_KEY = "removeKey";
+    private static final String SERVICES = "Services";
+    private static final String KEYS = "Keys";
+    private static final ArrayType<String[]> STRINGS_TYPE;
+
+    static {
+        try {
+            STRINGS_TYPE = ArrayType.getArrayType(SimpleType.STRING);
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final RuntimeRegistrar registrar;
+    private final MBeanInfo info;
+
+    RuntimeRegistrarMBean(RuntimeRegistrar registrar) {
+        this.registrar = registrar;
+        this.info = createInfo();
+    }
+
+    /**
+     * Registers the registrar with the platform MBean server, replacing whatever was registered before.
+     */
+    static void register(RuntimeRegistrar registrar) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new RuntimeRegistrarMBean(registrar), name);
+            debug("Registered MBean '%s'", OBJECT_NAME);
+        } catch (JMException e) {
+            Logger.error("Could not register MBean '%s': %s", OBJECT_NAME, e.getMessage());
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        switch (attribute) {
+            case SERVICES:
+                return new TreeSet<>(registrar.getRegistrations().getServiceIds()).toArray(new String[0]);
+            case KEYS:
+                return registrar.getRegistrations().getKeyValuePairs().keySet().stream().sorted()
+                        .toArray(String[]::new);
+            default:
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        final AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out, as the contract says.
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Attribute " + attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws MBeanException, ReflectionException {
+        final Object[] arguments = params != null ? params : new Object[0];
+        try {
+            switch (actionName) {
+                case REGISTER_HTTP_SERVICE:
+                    requireArguments(actionName, arguments, 7);
+                    final Service.Builder builder = newService(arguments)
+                            .withHttpCheckUrl(requireValue(arguments[4], "HTTP check URL"));
+                    if (hasValue(arguments[5])) {
+                        builder.withHttpCheckInterval((String) arguments[5]);
+                    }
+                    return registrar.register(build(builder));
+                case REGISTER_TTL_SERVICE:
+                    requireArguments(actionName, arguments, 6);
+                    return registrar.register(build(newService(arguments)
+                            .withTtlCheck(requireValue(arguments[4], "TTL"))));
+                case DEREGISTER_SERVICE:
+                    requireArguments(actionName, arguments, 1);
+                    return registrar.deregister(requireValue(arguments[0], "service ID"));
+                case STORE_KEY_VALUE:
+                    requireArguments(actionName, arguments, 2);
+                    final Map.Entry<String, String> keyValuePair =
+                            keyValuePair(requireValue(arguments[0], "key"), valueOf(arguments[1]));
+                    return registrar.storeKeyValue(keyValuePair.getKey(), keyValuePair.getValue());
+                case REMOVE_KEY:
+                    requireArguments(actionName, arguments, 1);
+                    return registrar.removeKey(keyValuePair(requireValue(arguments[0], "key"), "").getKey());
+                default:
+                    throw new ReflectionException(new NoSuchMethodException(actionName));
+            }
+        } catch (RegistratorException | ClassCastException e) {
+            throw new MBeanException(new IllegalStateException(e.getMessage()), e.getMessage());
+        }
+    }
+
+    /**
+     * @return A builder for the service in the arguments, which start with name, ID, address and port, and end with
+     * the tags.
+     */
+    private static Service.Builder newService(Object[] arguments) {
+        final Service.Builder builder = Catalog.newCatalog().newService()
+                .withName(requireValue(arguments[0], "service name"))
+                .withId(requireValue(arguments[1], "service ID"));
+        if (hasValue(arguments[2])) {
+            builder.withAddress((String) arguments[2]);
+        }
+        if (arguments[3] == null) {
+            throw new RegistratorException("Required port is missing");
+        }
+        builder.withPort(Integer.toString((Integer) arguments[3]));
+        final String[] tags = (String[]) arguments[arguments.length - 1];
+        if (tags != null) {
+            for (String tag : tags) {
+                builder.withTag(tag);
+            }
+        }
+        return builder;
+    }
+
+    private static Service build(Service.Builder builder) {
+        return builder.build().build().getServices().iterator().next();
+    }
+
+    /**
+     * @return The key/value pair exactly as the catalog would have it.
+     */
+    private static Map.Entry<String, String> keyValuePair(String key, String value) {
+        return Catalog.newCatalog().withKeyValuePair(key, value).getKeyValuePairs().entrySet().iterator().next();
+    }
+
+    private static void requireArguments(String actionName, Object[] arguments, int count)
+            throws ReflectionException {
+        if (arguments.length != count) {
+            throw new ReflectionException(new NoSuchMethodException(
+                    actionName + " with " + arguments.length + " parameters"));
+        }
+    }
+
+    private static String requireValue(Object argument, String description) {
+        if (!hasValue(argument)) {
+            throw new RegistratorException("Required " + description + " is missing");
+        }
+        return (String) argument;
+    }
+
+    private static String valueOf(Object argument) {
+        return argument != null ? (String) argument : "";
+    }
+
+    private static boolean hasValue(Object argument) {
+        return argument != null && !((String) argument).isEmpty();
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+
+    private static MBeanInfo createInfo() {
+        final OpenMBeanAttributeInfoSupport[] attributes = {
+                new OpenMBeanAttributeInfoSupport(SERVICES, "IDs of the services registered with Consul",
+                        STRINGS_TYPE, true, false, false),
+                new OpenMBeanAttributeInfoSupport(KEYS, "Keys stored in Consul", STRINGS_TYPE, true, false, false)
+        };
+        final OpenMBeanOperationInfoSupport[] operations = {
+                operation(REGISTER_HTTP_SERVICE, "Registers or updates a service with an HTTP check",
+                        parameter("name", "Service name", SimpleType.STRING),
+                        parameter("id", "Service ID", SimpleType.STRING),
+                        parameter("address", "Service address; empty for the address of the node", SimpleType.STRING),
+                        parameter("port", "Service port", SimpleType.INTEGER),
+                        parameter("checkUrl", "HTTP check URL", SimpleType.STRING),
+                        parameter("checkInterval", "HTTP check interval; empty for 5s", SimpleType.STRING),
+                        parameter("tags", "Service tags", STRINGS_TYPE)),
+                operation(REGISTER_TTL_SERVICE, "Registers or updates a service with a TTL check",
+                        parameter("name", "Service name", SimpleType.STRING),
+                        parameter("id", "Service ID", SimpleType.STRING),
+                        parameter("address", "Service address; empty for the address of the node", SimpleType.STRING),
+                        parameter("port", "Service port", SimpleType.INTEGER),
+                        parameter("ttl", "TTL of the check", SimpleType.STRING),
+                        parameter("tags", "Service tags", STRINGS_TYPE)),
+                operation(DEREGISTER_SERVICE, "Deregisters a service",
+                        parameter("id", "Service ID", SimpleType.STRING)),
+                operation(STORE_KEY_VALUE, "Stores a key/value pair",
+                        parameter("key", "Key", SimpleType.STRING),
+                        parameter("value", "Value", SimpleType.STRING)),
+                operation(REMOVE_KEY, "Removes a key",
+                        parameter("key", "Key", SimpleType.STRING))
+        };
+        return new OpenMBeanInfoSupport(RuntimeRegistrarMBean.class.getName(),
+                "Services and keys registered with Consul by the agent",
+                attributes,
+                new OpenMBeanConstructorInfoSupport[0],
+                operations,
+                new MBeanNotificationInfo[0]);
+    }
+
+    private static OpenMBeanOperationInfoSupport operation(String name, String description,
+                                                           OpenMBeanParameterInfoSupport... parameters) {
+        return new OpenMBeanOperationInfoSupport(name, description + "; returns whether Consul was changed",
+                parameters, SimpleType.BOOLEAN, MBeanOperationInfo.ACTION);
+    }
+
+    private static OpenMBeanParameterInfoSupport parameter(String name, String description, OpenType<?> type) {
+        return new OpenMBeanParameterInfoSupport(name, description, type);
+    }
+}
@@ -1,10 +1,18 @@
 package nl.ulso.consul.registrator;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.StringJoiner;
 import java.util.UUID;
+import java.util.function.Consumer;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.unmodifiableSet;
 import static nl.ulso.consul.registrator.GoDuration.requireValidDuration;
 
@@ -13,29 +21,185 @@ class Service {
     private static final String DEFAULT_HEALTH_CHECK_INTERVAL = "5s";
     private static final int MINIMUM_PORT_NUMBER = 1024;
     private static final int MAXIMUM_PORT_NUMBER = 65536;
+    private static final String AUTO_PORT = "auto";
+    private static final String PORT_PLACEHOLDER = "{port}";
+    static final String PAYLOAD_HASH_META_KEY = "registrator-hash";
+    private static final int PAYLOAD_HASH_LENGTH = 16;
 
     private final String name;
     private final String id;
+    private final boolean fixedId;
     private final String address;
     private final Integer port;
     private final String url;
     private final String interval;
+    private final String ttl;
+    private final Duration ttlDuration;
+    private final String healthPredicate;
     private final Set<String> tags;
+    private final String payloadHash;
+    private final byte[] payload;
+    private final List<Consumer<Builder>> steps;
+    private final Set<String> variables;
 
     private Service(Builder builder) {
         this.name = builder.name;
-        this.id = builder.id != null ? builder.id : name + ":" + UUID.randomUUID().toString();
+        if (builder.id != null) {
+            this.id = builder.id;
+        } else {
+            this.id = builder.generatedId != null ? builder.generatedId : name + ":" + UUID.randomUUID().toString();
+        }
+        this.fixedId = builder.id != null;
         this.address = builder.address;
         this.port = builder.port;
-        this.url = builder.url;
+        this.url = port != null ? withPort(builder.url, port) : builder.url;
         this.interval = builder.interval;
+        this.ttl = builder.ttl;
+        this.ttlDuration = builder.ttlDuration;
+        this.healthPredicate = builder.healthPredicate;
         this.tags = unmodifiableSet(new HashSet<>(builder.tags));
+        this.steps = new ArrayList<>(builder.steps);
+        this.variables = new HashSet<>(builder.variables);
+        final JsonWriter writer = writeRegistrationWithoutMeta();
+        this.payloadHash = hash(writer.toByteArray());
+        this.payload = writeMeta(writer);
+    }
+
+    private Service(Service service, Integer port, String url) {
+        this.name = service.name;
+        this.id = service.id;
+        this.fixedId = service.fixedId;
+        this.address = service.address;
+        this.port = port;
+        this.url = url;
+        this.interval = service.interval;
+        this.ttl = service.ttl;
+        this.ttlDuration = service.ttlDuration;
+        this.healthPredicate = service.healthPredicate;
+        this.tags = service.tags;
+        this.steps = service.steps;
+        this.variables = service.variables;
+        final JsonWriter writer = writeRegistrationWithoutMeta();
+        this.payloadHash = hash(writer.toByteArray());
+        this.payload = writeMeta(writer);
+    }
+
+    private byte[] writeMeta(JsonWriter writer) {
+        writer.name("Meta").beginObject().name(PAYLOAD_HASH_META_KEY).value(payloadHash).endObject();
+        return writer.endObject().toByteArray();
+    }
+
+    private static String withPort(String url, int port) {
+        return url != null ? url.replace(PORT_PLACEHOLDER, Integer.toString(port)) : null;
     }
 
     String getId() {
         return id;
     }
 
+    /**
+     * @return Whether the ID of this service is set in the catalog; otherwise it's different on every start.
+     */
+    boolean hasFixedId() {
+        return fixedId;
+    }
+
+    /**
+     * @return The port of this service, or {@code null} if the port is detected automatically.
+     * @see #withDetectedPort(int)
+     */
+    Integer getPort() {
+        return port;
+    }
+
+    boolean hasAutomaticPort() {
+        return port == null;
+    }
+
+    /**
+     * @return A copy of this service with the port filled in, also in the health check URL.
+     */
+    Service withDetectedPort(int port) {
+        return new Service(this, port, withPort(url, port));
+    }
+
+    /**
+     * @return This service as the catalog has it, with its templates rendered again if any of them uses one of the
+     * changed variables; otherwise this very service. A service without an ID in the catalog keeps the one it got.
+     * Ports detected later and HTTP check URLs changed later are not kept.
+     */
+    Service renderAgain(Set<String> changed) {
+        if (Collections.disjoint(variables, changed)) {
+            return this;
+        }
+        final Builder builder = new Builder(Catalog.newCatalog());
+        steps.forEach(step -> step.accept(builder));
+        if (!fixedId) {
+            builder.generatedId = id;
+        }
+        return builder.buildService();
+    }
+
+    /**
+     * @return A copy of this service with Consul calling a different URL for the HTTP check.
+     */
+    Service withHttpCheckUrl(String url) {
+        return new Service(this, port, url);
+    }
+
+    /**
+     * @return URL of the HTTP check, or {@code null} if this service has a TTL check instead.
+     */
+    String getHttpCheckUrl() {
+        return url;
+    }
+
+    boolean hasTtlCheck() {
+        return ttl != null;
+    }
+
+    String getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @return TTL of the check, or {@code null} if this service has an HTTP check instead.
+     */
+    Duration getTtlDuration() {
+        return ttlDuration;
+    }
+
+    /**
+     * @return Name of the class that tells whether the service is healthy, for TTL checks only; may be {@code null}.
+     */
+    String getHealthPredicate() {
+        return healthPredicate;
+    }
+
+    /**
+     * @return ID of the check Consul creates along with the service.
+     */
+    String getCheckId() {
+        return "service:" + id;
+    }
+
+    /**
+     * @return Hash of everything this service registers with Consul. It's stored with the service in Consul, under
+     * {@value #PAYLOAD_HASH_META_KEY} in the service's metadata, so that it's easy to tell whether the service in
+     * Consul is still up to date. That's also the only reliable way, since Consul doesn't hand back health checks.
+     */
+    String getPayloadHash() {
+        return payloadHash;
+    }
+
+    /**
+     * Compares this service with a service as registered in Consul, as read from the agent's service list.
+     */
+    boolean isRegisteredAs(Map<String, Object> registered) {
+        final Object meta = registered.get("Meta");
+        return meta instanceof Map && payloadHash.equals(((Map<?, ?>) meta).get(PAYLOAD_HASH_META_KEY));
+    }
+
     static Builder newService(Catalog.Builder catalogBuilder) {
         return new Builder(catalogBuilder);
     }
@@ -49,54 +213,64 @@ class Service {
                 ", port=" + port +
                 ", url=" + url +
                 ", interval=" + interval +
+                (ttl != null ? ", ttl=" + ttl : "") +
                 ", tags=" + tags +
                 '}';
     }
 
+    /**
+     * @return The registration as Consul expects it, as JSON in UTF-8. This is created only once, when the service is
+     * created, and it's not a copy: don't touch it!
+     */
+    byte[] getRegistrationPayload() {
+        return payload;
+    }
+
     String toConsulRegistrationJson() {
-        // Not the most beautiful piece of code I've ever written, but it does the job:
-        final StringBuilder builder = new StringBuilder();
-        builder.append("{");
-        append(builder, "ID", id);
-        builder.append(",");
-        append(builder, "Name", name);
-        builder.append(",");
+        return new String(payload, UTF_8);
+    }
+
+    /**
+     * Writes everything except the metadata, leaving the object open; that's what the payload hash is taken from.
+     */
+    private JsonWriter writeRegistrationWithoutMeta() {
+        final JsonWriter writer = new JsonWriter();
+        writer.beginObject();
+        writer.name("ID").value(id);
+        writer.name("Name").value(name);
         if (!tags.isEmpty()) {
-            builder.append("\"Tags\":[");
-            StringJoiner joiner = new StringJoiner(",");
-            tags.stream().map(t -> "\"" + t + "\"").forEach(joiner::add);
-            builder.append(joiner.toString());
-            builder.append("],");
+            writer.name("Tags").beginArray();
+            tags.forEach(writer::value);
+            writer.endArray();
         }
         if (address != null) {
-            append(builder, "Address", address);
-            builder.append(",");
+            writer.name("Address").value(address);
         }
-        append(builder, "Port", port);
-        builder.append(",");
-        builder.append("\"Check\":{");
-        append(builder, "HTTP", url);
-        builder.append(",");
-        append(builder, "Interval", interval);
-        builder.append("}");
-        builder.append("}");
-        return builder.toString();
-    }
-
-    private void append(StringBuilder builder, String key, String value) {
-        builder.append("\"");
-        builder.append(key);
-        builder.append("\":\"");
-        builder.append(value);
-        builder.append("\"");
+        writer.name("Port").value(port);
+        writer.name("Check").beginObject();
+        if (ttl != null) {
+            writer.name("TTL").value(ttl);
+        } else {
+            writer.name("HTTP").value(url);
+            writer.name("Interval").value(interval);
+        }
+        writer.endObject();
+        return writer;
     }
 
-    private void append(StringBuilder builder, String key, Integer value) {
-        builder.append("\"");
-        builder.append(key);
-        builder.append("\":");
-        builder.append(value);
-        builder.append("");
+    private static String hash(byte[] bytes) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            final StringBuilder builder = new StringBuilder(PAYLOAD_HASH_LENGTH * 2);
+            for (int i = 0; i < PAYLOAD_HASH_LENGTH; i++) {
+                builder.append(Character.forDigit((digest[i] >> 4) & 0xF, 16))
+                        .append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM must support SHA-256.
+            throw new IllegalStateException(e);
+        }
     }
 
     static class Builder extends AbstractBuilder {
@@ -107,31 +281,73 @@ class Service {
         private String url;
         private String address;
         private Integer port;
+        private boolean automaticPort;
         private String interval = DEFAULT_HEALTH_CHECK_INTERVAL;
+        private String ttl;
+        private Duration ttlDuration;
+        private String healthPredicate;
         private Set<String> tags = new HashSet<>();
+        private String generatedId;
+        private final List<Consumer<Builder>> steps = new ArrayList<>();
+        private final Set<String> variables = new HashSet<>();
 
         private Builder(Catalog.Builder catalogBuilder) {
             this.catalogBuilder = catalogBuilder;
         }
 
+        /**
+         * Remembers how a template was applied, to apply it again when its variables change.
+         */
+        private void record(Template template, Consumer<Builder> step) {
+            steps.add(step);
+            variables.addAll(template.getVariables());
+        }
+
         Builder withName(String name) {
-            this.name = substituteEnvironmentVariables(name);
+            return withName(Template.parse(name));
+        }
+
+        Builder withName(Template name) {
+            record(name, builder -> builder.withName(name));
+            this.name = render(name);
             return this;
         }
 
         Builder withId(String id) {
-            this.id = substituteEnvironmentVariables(id);
+            return withId(Template.parse(id));
+        }
+
+        Builder withId(Template id) {
+            record(id, builder -> builder.withId(id));
+            this.id = render(id);
             return this;
         }
 
         Builder withAddress(String address) {
-            this.address = substituteEnvironmentVariables(address);
+            return withAddress(Template.parse(address));
+        }
+
+        Builder withAddress(Template address) {
+            record(address, builder -> builder.withAddress(address));
+            this.address = render(address);
             return this;
         }
 
         Builder withPort(String port) {
+            return withPort(Template.parse(port));
+        }
+
+        Builder withPort(Template port) {
+            record(port, builder -> builder.withPort(port));
+            final String value = render(port);
+            if (AUTO_PORT.equals(value)) {
+                this.port = null;
+                this.automaticPort = true;
+                return this;
+            }
+            this.automaticPort = false;
             try {
-                this.port = Integer.parseInt(substituteEnvironmentVariables(port));
+                this.port = Integer.parseInt(value);
             } catch (NumberFormatException e) {
                 throw new RegistratorException("Invalid port: " + port);
             }
@@ -142,33 +358,77 @@ class Service {
         }
 
         Builder withHttpCheckUrl(String url) {
-            this.url = substituteEnvironmentVariables(url);
+            return withHttpCheckUrl(Template.parse(url));
+        }
+
+        Builder withHttpCheckUrl(Template url) {
+            record(url, builder -> builder.withHttpCheckUrl(url));
+            this.url = render(url);
             return this;
         }
 
         Builder withHttpCheckInterval(String interval) {
-            final String value = substituteEnvironmentVariables(interval);
+            return withHttpCheckInterval(Template.parse(interval));
+        }
+
+        Builder withHttpCheckInterval(Template interval) {
+            record(interval, builder -> builder.withHttpCheckInterval(interval));
+            final String value = render(interval);
             requireValidDuration(value);
             this.interval = value;
             return this;
         }
 
+        Builder withTtlCheck(String ttl) {
+            return withTtlCheck(Template.parse(ttl));
+        }
+
+        Builder withTtlCheck(Template ttl) {
+            record(ttl, builder -> builder.withTtlCheck(ttl));
+            final String value = render(ttl);
+            this.ttlDuration = GoDuration.parse(value);
+            this.ttl = value;
+            return this;
+        }
+
+        Builder withTtlCheckHealthPredicate(String className) {
+            return withTtlCheckHealthPredicate(Template.parse(className));
+        }
+
+        Builder withTtlCheckHealthPredicate(Template className) {
+            record(className, builder -> builder.withTtlCheckHealthPredicate(className));
+            this.healthPredicate = render(className);
+            return this;
+        }
+
         Builder withTag(String tag) {
-            tags.add(substituteEnvironmentVariables(tag));
+            return withTag(Template.parse(tag));
+        }
+
+        Builder withTag(Template tag) {
+            record(tag, builder -> builder.withTag(tag));
+            tags.add(render(tag));
             return this;
         }
 
         Catalog.Builder build() {
+            return catalogBuilder.addService(buildService());
+        }
+
+        private Service buildService() {
             if (name == null) {
                 throw new RegistratorException("Required service name is missing");
             }
-            if (port == null) {
+            if (port == null && !automaticPort) {
                 throw new RegistratorException("Required port is missing for service " + name);
             }
-            if (url == null) {
+            if (url == null && ttl == null) {
                 throw new RegistratorException("Required HTTP check URL is missing for service " + name);
             }
-            return catalogBuilder.addService(new Service(this));
+            if (url != null && ttl != null) {
+                throw new RegistratorException("Service " + name + " has both an HTTP and a TTL check; pick one");
+            }
+            return new Service(this);
         }
     }
 }
@@ -0,0 +1,258 @@
+package nl.ulso.consul.registrator;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+import static nl.ulso.consul.registrator.XmlClasspathCatalogLoader.*;
+
+/**
+ * Creates a {@link Catalog} from the same XML file as the {@link XmlClasspathCatalogLoader}, in a single pass over
+ * the XML, without building a DOM first. The catalog is loaded before the application's {@code main} method even
+ * starts, so every millisecond counts.
+ * <p>
+ * Unlike the DOM based loader, this one only looks at the elements where they belong: services and keys directly
+ * inside the catalog, checks and tags directly inside a service. Anything else is skipped.
+ * </p>
+ */
+class StreamingXmlClasspathCatalogLoader implements CatalogLoader {
+
+    private final String classpathResource;
+
+    StreamingXmlClasspathCatalogLoader(String classpathResource) {
+        this.classpathResource = classpathResource;
+    }
+
+    StreamingXmlClasspathCatalogLoader() {
+        this(DEFAULT_CATALOG_LOCATION);
+    }
+
+    @Override
+    public Catalog load() {
+        final BuildingHandler handler = new BuildingHandler();
+        read(classpathResource, handler);
+        return handler.builder.build();
+    }
+
+    /**
+     * Reads the catalog from the classpath, passing everything in it to a handler.
+     */
+    static void read(String classpathResource, CatalogHandler handler) {
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        try (InputStream inputStream = classLoader.getResourceAsStream(classpathResource)) {
+            if (inputStream == null) {
+                throw new RegistratorException("No catalog found file at '" + classpathResource + "'");
+            }
+            read(inputStream, classpathResource, handler);
+        } catch (IOException e) {
+            throw new RegistratorException("Could not load catalog from '" + classpathResource
+                    + "': " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the catalog from a stream, passing everything in it to a handler.
+     *
+     * @param location Location of the catalog, for error messages.
+     */
+    static void read(InputStream inputStream, String location, CatalogHandler handler) {
+        // The JDK's own implementation, without looking for others on the classpath first.
+        final XMLInputFactory factory = XMLInputFactory.newDefaultFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        try {
+            final XMLStreamReader reader = factory.createXMLStreamReader(inputStream);
+            try {
+                readCatalog(reader, location, handler);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new RegistratorException("Error while parsing XML from '" + location
+                    + "': " + e.getMessage(), e);
+        }
+    }
+
+    private static void readCatalog(XMLStreamReader reader, String location, CatalogHandler handler)
+            throws XMLStreamException {
+        if (!nextChild(reader) || !CATALOG_ELEMENT.equals(reader.getLocalName())) {
+            throw new RegistratorException("Invalid service catalog found at '" + location + "'");
+        }
+        handler.catalog(reader.getAttributeValue(null, CATALOG_DELAY));
+        while (nextChild(reader)) {
+            switch (reader.getLocalName()) {
+                case SERVICE_ELEMENT:
+                    readService(reader, handler);
+                    break;
+                case KEY_ELEMENT:
+                    handler.keyValuePair(reader.getAttributeValue(null, KEY_NAME),
+                            reader.getAttributeValue(null, KEY_VALUE));
+                    skipElement(reader);
+                    break;
+                default:
+                    skipElement(reader);
+                    break;
+            }
+        }
+    }
+
+    private static void readService(XMLStreamReader reader, CatalogHandler handler) throws XMLStreamException {
+        final String name = reader.getAttributeValue(null, SERVICE_NAME);
+        handler.service(
+                name,
+                reader.getAttributeValue(null, SERVICE_ID),
+                reader.getAttributeValue(null, SERVICE_ADDRESS),
+                reader.getAttributeValue(null, SERVICE_PORT)
+        );
+        // Like the DOM based loader: only the first check of each kind counts, and there can only be one kind.
+        String url = null;
+        String interval = null;
+        boolean httpCheck = false;
+        String ttl = null;
+        String predicate = null;
+        boolean ttlCheck = false;
+        while (nextChild(reader)) {
+            switch (reader.getLocalName()) {
+                case HTTP_CHECK_ELEMENT:
+                    if (!httpCheck) {
+                        httpCheck = true;
+                        url = reader.getAttributeValue(null, HTTP_CHECK_URL);
+                        interval = reader.getAttributeValue(null, HTTP_CHECK_INTERVAL);
+                    }
+                    break;
+                case TTL_CHECK_ELEMENT:
+                    if (!ttlCheck) {
+                        ttlCheck = true;
+                        ttl = reader.getAttributeValue(null, TTL_CHECK_TTL);
+                        predicate = reader.getAttributeValue(null, TTL_CHECK_PREDICATE);
+                    }
+                    break;
+                case TAG_ELEMENT:
+                    handler.tag(reader.getAttributeValue(null, TAG_NAME));
+                    break;
+                default:
+                    break;
+            }
+            skipElement(reader);
+        }
+        if (httpCheck && ttlCheck) {
+            throw new RegistratorException(XmlClasspathCatalogLoader.bothChecksMessage(name));
+        }
+        if (httpCheck) {
+            handler.httpCheck(url, interval);
+        } else if (ttlCheck) {
+            handler.ttlCheck(ttl, predicate);
+        }
+        handler.endService();
+    }
+
+    /**
+     * Moves to the next child element of the current element.
+     *
+     * @return {@code false} if there are no more children; the reader is then at the end of the current element.
+     */
+    private static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == START_ELEMENT) {
+                return true;
+            }
+            if (event == END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves past the end of the current element, ignoring everything inside it.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            final int event = reader.next();
+            if (event == START_ELEMENT) {
+                depth++;
+            } else if (event == END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Builds the catalog straight from the XML.
+     */
+    private static class BuildingHandler implements CatalogHandler {
+        private final Catalog.Builder builder = Catalog.newCatalog();
+        private Service.Builder service;
+
+        @Override
+        public void catalog(String delay) {
+            if (delay != null) {
+                builder.withDelay(delay);
+            }
+        }
+
+        @Override
+        public void service(String name, String id, String address, String port) {
+            service = builder.newService();
+            if (name != null) {
+                service.withName(name);
+            }
+            if (id != null) {
+                service.withId(id);
+            }
+            if (address != null) {
+                service.withAddress(address);
+            }
+            if (port != null) {
+                service.withPort(port);
+            }
+        }
+
+        @Override
+        public void httpCheck(String url, String interval) {
+            if (url != null) {
+                service.withHttpCheckUrl(url);
+            }
+            if (interval != null) {
+                service.withHttpCheckInterval(interval);
+            }
+        }
+
+        @Override
+        public void ttlCheck(String ttl, String predicate) {
+            if (ttl != null) {
+                service.withTtlCheck(ttl);
+            }
+            if (predicate != null) {
+                service.withTtlCheckHealthPredicate(predicate);
+            }
+        }
+
+        @Override
+        public void tag(String name) {
+            if (name != null) {
+                service.withTag(name);
+            }
+        }
+
+        @Override
+        public void endService() {
+            service.build();
+            service = null;
+        }
+
+        @Override
+        public void keyValuePair(String name, String value) {
+            if (name != null && value != null) {
+                builder.withKeyValuePair(name, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package nl.ulso.consul.registrator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Attribute value from the catalog, split up in literal text and references to variables: {@code ${<variable>}} or
+ * {@code ${<variable>:<default>}}. Where a literal {@code ${} is needed, write {@code $${}.
+ * <p>
+ * A template is parsed once; rendering it is then a matter of gluing the segments together. The compiled catalog
+ * stores templates in their parsed form, so that the agent doesn't need to parse them at all on startup. Each
+ * template knows which variables it uses, so that when some of them change, only the templates using those need to be
+ * rendered again.
+ * </p>
+ */
+class Template {
+
+    private static final String VARIABLE_START = "${";
+    private static final char ESCAPE = '$';
+    private static final char VARIABLE_END = '}';
+    private static final char DEFAULT_VALUE_START = ':';
+    private static final byte LITERAL = 0;
+    private static final byte VARIABLE = 1;
+    private static final byte VARIABLE_WITH_DEFAULT = 2;
+
+    private final String source;
+    private final Segment[] segments;
+
+    private Template(String source, Segment[] segments) {
+        this.source = source;
+        this.segments = segments;
+    }
+
+    static Template parse(String value) {
+        if (!value.contains(VARIABLE_START)) {
+            return literal(value);
+        }
+        final List<Segment> segments = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        final int length = value.length();
+        int index = 0;
+        while (index < length) {
+            final int start = value.indexOf(VARIABLE_START, index);
+            if (start > index && value.charAt(start - 1) == ESCAPE) {
+                literal.append(value, index, start - 1).append(VARIABLE_START);
+                index = start + VARIABLE_START.length();
+                continue;
+            }
+            final int end = start == -1 ? -1 : value.indexOf(VARIABLE_END, start);
+            if (end == -1) {
+                literal.append(value, index, length);
+                break;
+            }
+            literal.append(value, index, start);
+            if (literal.length() > 0) {
+                segments.add(new Segment(literal.toString(), null, null));
+                literal.setLength(0);
+            }
+            final String variable = value.substring(start + 2, end);
+            final int split = variable.indexOf(DEFAULT_VALUE_START);
+            if (split == -1) {
+                segments.add(new Segment(null, variable, null));
+            } else {
+                segments.add(new Segment(null, variable.substring(0, split), variable.substring(split + 1)));
+            }
+            index = end + 1;
+        }
+        if (literal.length() > 0) {
+            segments.add(new Segment(literal.toString(), null, null));
+        }
+        return new Template(value, segments.toArray(new Segment[0]));
+    }
+
+    /**
+     * @return A template that renders into exactly this value, even if it looks like it has variables in it.
+     */
+    static Template literal(String value) {
+        return new Template(value, value.isEmpty() ? new Segment[0] : new Segment[]{new Segment(value, null, null)});
+    }
+
+    /**
+     * @return Whether this template has no variables at all; rendering it always results in the same value.
+     */
+    boolean isConstant() {
+        for (Segment segment : segments) {
+            if (segment.variable != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Names of the variables in this template, in order of appearance.
+     */
+    Set<String> getVariables() {
+        final Set<String> variables = new LinkedHashSet<>();
+        for (Segment segment : segments) {
+            if (segment.variable != null) {
+                variables.add(segment.variable);
+            }
+        }
+        return Collections.unmodifiableSet(variables);
+    }
+
+    /**
+     * @return Whether this template uses any of the given variables; if not, rendering it again after these variables
+     * changed results in the same value.
+     */
+    boolean uses(Set<String> variables) {
+        for (Segment segment : segments) {
+            if (segment.variable != null && variables.contains(segment.variable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @throws RegistratorException If a variable without default is missing from the variables.
+     */
+    String render(Variables variables) {
+        if (segments.length == 1 && segments[0].variable == null) {
+            return segments[0].literal;
+        }
+        final StringBuilder result = new StringBuilder();
+        for (Segment segment : segments) {
+            if (segment.variable == null) {
+                result.append(segment.literal);
+                continue;
+            }
+            final String value = variables.get(segment.variable);
+            if (value != null) {
+                result.append(value);
+            } else if (segment.defaultValue != null) {
+                result.append(segment.defaultValue);
+            } else {
+                throw new RegistratorException("Variable not available: " + segment.variable);
+            }
+        }
+        return result.toString();
+    }
+
+    void writeTo(DataOutput output) throws IOException {
+        output.writeUTF(source);
+        output.writeShort(segments.length);
+        for (Segment segment : segments) {
+            if (segment.variable == null) {
+                output.writeByte(LITERAL);
+                output.writeUTF(segment.literal);
+            } else if (segment.defaultValue == null) {
+                output.writeByte(VARIABLE);
+                output.writeUTF(segment.variable);
+            } else {
+                output.writeByte(VARIABLE_WITH_DEFAULT);
+                output.writeUTF(segment.variable);
+                output.writeUTF(segment.defaultValue);
+            }
+        }
+    }
+
+    static Template readFrom(DataInput input) throws IOException {
+        final String source = input.readUTF();
+        final Segment[] segments = new Segment[input.readUnsignedShort()];
+        for (int i = 0; i < segments.length; i++) {
+            final byte type = input.readByte();
+            switch (type) {
+                case LITERAL:
+                    segments[i] = new Segment(input.readUTF(), null, null);
+                    break;
+                case VARIABLE:
+                    segments[i] = new Segment(null, input.readUTF(), null);
+                    break;
+                case VARIABLE_WITH_DEFAULT:
+                    segments[i] = new Segment(null, input.readUTF(), input.readUTF());
+                    break;
+                default:
+                    throw new IOException("Unknown template segment type: " + type);
+            }
+        }
+        return new Template(source, segments);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private static class Segment {
+        private final String literal;
+        private final String variable;
+        private final String defaultValue;
+
+        Segment(String literal, String variable, String defaultValue) {
+            this.literal = literal;
+            this.variable = variable;
+            this.defaultValue = defaultValue;
+        }
+    }
+}
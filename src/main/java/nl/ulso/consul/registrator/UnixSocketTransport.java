@@ -0,0 +1,214 @@
+package nl.ulso.consul.registrator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport that talks HTTP/1.1 to the Consul agent over a unix domain socket, which skips the TCP stack altogether.
+ * <p>
+ * Unix domain sockets were added in Java 16, while the agent still runs on Java 11. That's why everything specific to
+ * them is looked up through reflection; on older runtimes {@link #isSupported()} tells to use TCP instead.
+ * </p>
+ * <p>
+ * A socket channel doesn't support read timeouts the way a socket does, so connections use a selector to wait for
+ * data, up to the read timeout.
+ * </p>
+ */
+class UnixSocketTransport extends KeepAliveTransport {
+
+    private static final String AUTHORITY = "localhost";
+    private static final ProtocolFamily UNIX;
+    private static final Method OPEN_CHANNEL;
+    private static final Method CREATE_ADDRESS;
+
+    static {
+        ProtocolFamily family = null;
+        Method openChannel = null;
+        Method createAddress = null;
+        try {
+            family = StandardProtocolFamily.valueOf("UNIX");
+            openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            createAddress = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            family = null;
+        }
+        UNIX = family;
+        OPEN_CHANNEL = openChannel;
+        CREATE_ADDRESS = createAddress;
+    }
+
+    private final String path;
+    private final SocketAddress address;
+
+    UnixSocketTransport(String path, int readTimeoutMilliseconds) {
+        super(AUTHORITY, 0, AUTHORITY, 0, readTimeoutMilliseconds, DEFAULT_POOL_SIZE);
+        this.path = path;
+        this.address = address(path);
+    }
+
+    /**
+     * @return Whether this runtime supports unix domain sockets.
+     */
+    static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    /**
+     * @return A {@code UnixDomainSocketAddress} for the path.
+     * @throws IllegalStateException If this runtime doesn't support unix domain sockets.
+     */
+    static SocketAddress address(String path) {
+        if (!isSupported()) {
+            throw new IllegalStateException("Unix domain sockets are not supported on this runtime");
+        }
+        try {
+            return (SocketAddress) CREATE_ADDRESS.invoke(null, path);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Cannot create unix domain socket address for " + path, e);
+        }
+    }
+
+    /**
+     * @return A new, unconnected socket channel for unix domain sockets.
+     * @throws IOException If the channel can't be opened.
+     */
+    static SocketChannel openChannel() throws IOException {
+        try {
+            return (SocketChannel) OPEN_CHANNEL.invoke(null, UNIX);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    Connection connect() throws IOException {
+        final SocketChannel channel = openChannel();
+        try {
+            channel.connect(address);
+            channel.configureBlocking(false);
+            return new ChannelConnection(new NonBlockingChannel(channel));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "unix://" + path;
+    }
+
+    private static class ChannelConnection extends Connection {
+        private final NonBlockingChannel channel;
+
+        ChannelConnection(NonBlockingChannel channel) {
+            super(channel.input(), channel.output());
+            this.channel = channel;
+        }
+
+        @Override
+        void setReadTimeout(int milliseconds) {
+            channel.timeoutMilliseconds = milliseconds;
+        }
+
+        @Override
+        void close() {
+            channel.close();
+        }
+    }
+
+    /**
+     * Blocking streams on top of a non-blocking channel, that give up after the timeout.
+     */
+    private static class NonBlockingChannel {
+        private final SocketChannel channel;
+        private final Selector selector;
+        private final SelectionKey key;
+        private volatile int timeoutMilliseconds;
+
+        NonBlockingChannel(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.selector = Selector.open();
+            this.key = channel.register(selector, 0);
+        }
+
+        InputStream input() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    final byte[] b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int offset, int length) throws IOException {
+                    if (length == 0) {
+                        return 0;
+                    }
+                    final ByteBuffer buffer = ByteBuffer.wrap(b, offset, length);
+                    int count;
+                    while ((count = channel.read(buffer)) == 0) {
+                        await(SelectionKey.OP_READ);
+                    }
+                    return count;
+                }
+            };
+        }
+
+        OutputStream output() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int offset, int length) throws IOException {
+                    final ByteBuffer buffer = ByteBuffer.wrap(b, offset, length);
+                    while (buffer.hasRemaining()) {
+                        if (channel.write(buffer) == 0) {
+                            await(SelectionKey.OP_WRITE);
+                        }
+                    }
+                }
+            };
+        }
+
+        private void await(int operation) throws IOException {
+            key.interestOps(operation);
+            try {
+                if (selector.select(timeoutMilliseconds) == 0) {
+                    throw new SocketTimeoutException("Timed out after " + timeoutMilliseconds + "ms");
+                }
+            } finally {
+                selector.selectedKeys().clear();
+                key.interestOps(0);
+            }
+        }
+
+        void close() {
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                // Nothing to do here; the connection is gone anyway.
+            }
+        }
+    }
+}
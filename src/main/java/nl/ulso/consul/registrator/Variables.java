@@ -0,0 +1,42 @@
+package nl.ulso.consul.registrator;
+
+import java.util.Map;
+
+/**
+ * Source of the values of the variables in a {@link Template}. By default these are, in order of precedence: the
+ * {@code var.<name>} agent arguments, the system properties, and the environment variables.
+ */
+@FunctionalInterface
+interface Variables {
+
+    /**
+     * @return The value of the variable, or {@code null} if this source doesn't have it.
+     */
+    String get(String name);
+
+    /**
+     * @return A source that looks in {@code fallback} for whatever this source doesn't have.
+     */
+    default Variables orElse(Variables fallback) {
+        return name -> {
+            final String value = get(name);
+            return value != null ? value : fallback.get(name);
+        };
+    }
+
+    static Variables of(Map<String, String> map) {
+        return map::get;
+    }
+
+    static Variables systemProperties() {
+        return System::getProperty;
+    }
+
+    static Variables environment() {
+        return System::getenv;
+    }
+
+    static Variables defaults(Map<String, String> agentArguments) {
+        return of(agentArguments).orElse(systemProperties()).orElse(environment());
+    }
+}
@@ -22,22 +22,25 @@ import java.io.InputStream;
  */
 class XmlClasspathCatalogLoader implements CatalogLoader {
 
-    private static final String DEFAULT_CATALOG_LOCATION = "META-INF/consul-catalog.xml";
-    private static final String CATALOG_ELEMENT = "catalog";
-    private static final String CATALOG_DELAY = "delay";
-    private static final String SERVICE_ELEMENT = "service";
-    private static final String SERVICE_NAME = "name";
-    private static final String SERVICE_ID = "id";
-    private static final String SERVICE_ADDRESS = "address";
-    private static final String SERVICE_PORT = "port";
-    private static final String HTTP_CHECK_ELEMENT = "http-check";
-    private static final String HTTP_CHECK_URL = "url";
-    private static final String HTTP_CHECK_INTERVAL = "interval";
-    private static final String TAG_ELEMENT = "tag";
-    private static final String TAG_NAME = "name";
-    private static final String KEY_ELEMENT = "key";
-    private static final String KEY_NAME = "name";
-    private static final String KEY_VALUE = "value";
+    static final String DEFAULT_CATALOG_LOCATION = "META-INF/consul-catalog.xml";
+    static final String CATALOG_ELEMENT = "catalog";
+    static final String CATALOG_DELAY = "delay";
+    static final String SERVICE_ELEMENT = "service";
+    static final String SERVICE_NAME = "name";
+    static final String SERVICE_ID = "id";
+    static final String SERVICE_ADDRESS = "address";
+    static final String SERVICE_PORT = "port";
+    static final String HTTP_CHECK_ELEMENT = "http-check";
+    static final String HTTP_CHECK_URL = "url";
+    static final String HTTP_CHECK_INTERVAL = "interval";
+    static final String TTL_CHECK_ELEMENT = "ttl-check";
+    static final String TTL_CHECK_TTL = "ttl";
+    static final String TTL_CHECK_PREDICATE = "predicate";
+    static final String TAG_ELEMENT = "tag";
+    static final String TAG_NAME = "name";
+    static final String KEY_ELEMENT = "key";
+    static final String KEY_NAME = "name";
+    static final String KEY_VALUE = "value";
 
     private final String classpathResource;
 
@@ -118,8 +121,12 @@ class XmlClasspathCatalogLoader implements CatalogLoader {
     private void extractHealthCheck(Element service, Service.Builder builder) {
         final NodeList checks = service.getElementsByTagName(HTTP_CHECK_ELEMENT);
         if (checks.getLength() == 0) {
+            extractTtlCheck(service, builder);
             return;
         }
+        if (service.getElementsByTagName(TTL_CHECK_ELEMENT).getLength() > 0) {
+            throw new RegistratorException(bothChecksMessage(service.getAttribute(SERVICE_NAME)));
+        }
         final Element check = (Element) checks.item(0);
         if (check.hasAttribute(HTTP_CHECK_URL)) {
             builder.withHttpCheckUrl(check.getAttribute(HTTP_CHECK_URL));
@@ -129,6 +136,25 @@ class XmlClasspathCatalogLoader implements CatalogLoader {
         }
     }
 
+    static String bothChecksMessage(String serviceName) {
+        return "Service " + serviceName + " has both an " + HTTP_CHECK_ELEMENT + " and a " + TTL_CHECK_ELEMENT
+                + "; pick one";
+    }
+
+    private void extractTtlCheck(Element service, Service.Builder builder) {
+        final NodeList checks = service.getElementsByTagName(TTL_CHECK_ELEMENT);
+        if (checks.getLength() == 0) {
+            return;
+        }
+        final Element check = (Element) checks.item(0);
+        if (check.hasAttribute(TTL_CHECK_TTL)) {
+            builder.withTtlCheck(check.getAttribute(TTL_CHECK_TTL));
+        }
+        if (check.hasAttribute(TTL_CHECK_PREDICATE)) {
+            builder.withTtlCheckHealthPredicate(check.getAttribute(TTL_CHECK_PREDICATE));
+        }
+    }
+
     private void extractTags(Element service, Service.Builder builder) {
         final NodeList tags = service.getElementsByTagName(TAG_ELEMENT);
         final int length = tags.getLength();
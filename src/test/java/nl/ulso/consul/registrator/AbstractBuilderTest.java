@@ -73,4 +73,22 @@ public class AbstractBuilderTest extends AbstractBuilder {
     public void replaceMissingEnvironmentVariableWithoutFallback() throws Exception {
         substituteEnvironmentVariables("${PORT9}");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void escapedVariableIsLeftAlone() throws Exception {
+        assertThat(substituteEnvironmentVariables("$${PORT0} is ${PORT0}"), is("${PORT0} is 9000"));
+    }
+
+    @Test
+    public void variablesComeFromTheFirstSourceThatHasThem() throws Exception {
+        final Map<String, String> arguments = Collections.singletonMap("PORT0", "7000");
+        setVariables(Variables.of(arguments).orElse(name -> name.equals("PORT1") ? "4000" : null));
+        assertThat(substituteEnvironmentVariables("${PORT0}-${PORT1}"), is("7000-4000"));
+    }
+
+    @Test
+    public void systemPropertiesAreVariables() throws Exception {
+        setVariables(Variables.defaults(Collections.emptyMap()));
+        assertThat(substituteEnvironmentVariables("${java.version}"), is(System.getProperty("java.version")));
+    }
+}
@@ -3,7 +3,11 @@ package nl.ulso.consul.registrator;
 import org.junit.Test;
 
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BiFunction;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static nl.ulso.consul.registrator.Logger.Level.DEBUG;
 import static nl.ulso.consul.registrator.Logger.Level.INFO;
 import static nl.ulso.consul.registrator.Logger.Level.SILENT;
@@ -14,6 +18,11 @@ import static org.junit.Assert.assertThat;
 
 public class AgentTest {
 
+    /**
+     * Far more than premain needs, even on a busy build machine, and far less than the install is held up for.
+     */
+    private static final long PREMAIN_BUDGET_MILLISECONDS = 1000;
+
     @Test
     public void emptyArguments() throws Exception {
         final Map<String, String> map = Agent.parseArguments(null);
@@ -41,6 +50,47 @@ public class AgentTest {
         assertThat(map.get("logger"), is("debug"));
     }
 
+    @Test
+    public void variableArgumentsKeepTheirCase() throws Exception {
+        final Map<String, String> map = Agent.parseArguments("LOGGER=DEBUG;VAR.Region=EU-West");
+        assertThat(map.get("var.Region"), is("EU-West"));
+    }
+
+    @Test
+    public void valuesMayContainEqualsSigns() throws Exception {
+        final Map<String, String> map = Agent.parseArguments("var.FILTER=a=b;logger=debug");
+        assertThat(map.get("var.FILTER"), is("a=b"));
+        assertThat(map.get("logger"), is("debug"));
+    }
+
+    @Test
+    public void consulArgumentKeepsItsCase() throws Exception {
+        final Map<String, String> map = Agent.parseArguments("CONSUL=unix:///var/run/Consul.sock");
+        assertThat(map.get("consul"), is("unix:///var/run/Consul.sock"));
+    }
+
+    @Test
+    public void synchronousPremainInstallsRightAway() throws Exception {
+        final CountDownLatch release = new CountDownLatch(0);
+        final CountDownLatch installed = new CountDownLatch(1);
+        Agent.premain("logger=silent", slowRegistrator(release, installed));
+        assertThat(installed.getCount(), is(0L));
+    }
+
+    @Test
+    public void asynchronousPremainStaysWithinBudget() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch installed = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        Agent.premain("logger=silent;startup=async", slowRegistrator(release, installed));
+        final long premain = NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertThat("premain took " + premain + "ms", premain < PREMAIN_BUDGET_MILLISECONDS, is(true));
+        // The install can't have finished: it's still waiting for the release.
+        assertThat(installed.getCount(), is(1L));
+        release.countDown();
+        assertThat(installed.await(5, SECONDS), is(true));
+    }
+
     @Test
     public void verboseLogging() throws Exception {
         Agent.configureLogging("debug");
@@ -58,4 +108,23 @@ public class AgentTest {
         Agent.configureLogging("whatever...");
         assertThat(getLogLevel(), is(INFO));
     }
-}
\ No newline at end of file
+
+    /**
+     * @return A registrator that doesn't finish installing before the release is counted down.
+     */
+    private static BiFunction<Configuration, Metrics, Registrator> slowRegistrator(CountDownLatch release,
+                                                                                  CountDownLatch installed) {
+        return (configuration, metrics) -> new Registrator(null, null, configuration, metrics) {
+            @Override
+            void install() {
+                try {
+                    if (release.await(5, SECONDS)) {
+                        installed.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
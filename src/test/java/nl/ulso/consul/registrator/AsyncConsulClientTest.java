@@ -0,0 +1,77 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncConsulClientTest {
+
+    @Test
+    public void concurrencyIsBounded() throws Exception {
+        final SlowConsulClient client = new SlowConsulClient(50);
+        final AsyncConsulClient asyncClient = new AsyncConsulClient(client, 3);
+        final List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            calls.add(asyncClient.deregister("service" + i));
+        }
+        AsyncConsulClient.awaitAll(calls);
+        assertThat(client.calls.get(), is(12));
+        assertThat(client.maximumInFlight.get(), is(3));
+    }
+
+    @Test
+    public void firstFailureIsReportedImmediately() throws Exception {
+        final SlowConsulClient client = new SlowConsulClient(2000);
+        final AsyncConsulClient asyncClient = new AsyncConsulClient(client, 4);
+        final List<CompletableFuture<Void>> calls = new ArrayList<>();
+        calls.add(asyncClient.deregister("slow"));
+        calls.add(asyncClient.removeKeys(Collections.singleton("failing")));
+        final long start = System.nanoTime();
+        try {
+            AsyncConsulClient.awaitAll(calls);
+            fail("Expected a RegistratorException");
+        } catch (RegistratorException e) {
+            assertThat(e.getMessage(), is("failing"));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    private static class SlowConsulClient extends NoOpConsulClient {
+        private final long delayMilliseconds;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maximumInFlight = new AtomicInteger();
+        private final AtomicInteger calls = new AtomicInteger();
+
+        SlowConsulClient(long delayMilliseconds) {
+            this.delayMilliseconds = delayMilliseconds;
+        }
+
+        @Override
+        public void deregister(String serviceId) {
+            final int current = inFlight.incrementAndGet();
+            maximumInFlight.accumulateAndGet(current, Math::max);
+            try {
+                TimeUnit.MILLISECONDS.sleep(delayMilliseconds);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            calls.incrementAndGet();
+        }
+
+        @Override
+        public void removeKey(String key) {
+            throw new RegistratorException(key);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class BindWatcherTest {
+
+    private final Set<Integer> listening = new CopyOnWriteArraySet<>();
+    private BindWatcher watcher;
+
+    @After
+    public void tearDown() throws Exception {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    private Set<Integer> listeningPorts() {
+        return new LinkedHashSet<>(listening);
+    }
+
+    private static long inSeconds(long seconds) {
+        return System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    @Test
+    public void fixedPortIsDetected() throws Exception {
+        watcher = new BindWatcher(Collections.singleton(8000), this::listeningPorts);
+        final CompletableFuture<Integer> port = watcher.awaitPort(8000);
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertThat(port.isDone(), is(false));
+        listening.add(8000);
+        assertThat(port.get(1, TimeUnit.SECONDS), is(8000));
+    }
+
+    @Test
+    public void reservedAndExistingPortsAreNotHandedOut() throws Exception {
+        listening.add(5005);
+        watcher = new BindWatcher(Collections.singleton(8000), this::listeningPorts);
+        final CompletableFuture<Integer> first = watcher.awaitAnyPort(inSeconds(5));
+        final CompletableFuture<Integer> second = watcher.awaitAnyPort(inSeconds(5));
+        listening.addAll(asList(8000, 41000));
+        assertThat(first.get(1, TimeUnit.SECONDS), is(41000));
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertThat(second.isDone(), is(false));
+        listening.add(42000);
+        assertThat(second.get(1, TimeUnit.SECONDS), is(42000));
+    }
+
+    @Test
+    public void listeningSocketOfThisProcessIsFound() throws Exception {
+        assumeTrue(Files.isReadable(Paths.get("/proc/self/net/tcp")));
+        final BindWatcher.ProcListeningPorts ports = new BindWatcher.ProcListeningPorts();
+        try (ServerSocket socket = new ServerSocket(0)) {
+            assertThat(ports.get(), hasItem(socket.getLocalPort()));
+        }
+    }
+
+    @Test
+    public void waitForAnyPortEndsAtDeadline() throws Exception {
+        watcher = new BindWatcher(Collections.emptySet(), this::listeningPorts);
+        final CompletableFuture<Integer> port =
+                watcher.awaitAnyPort(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+        assertThat(port.get(1, TimeUnit.SECONDS), is(BindWatcher.NO_PORT));
+        listening.add(41000);
+        final CompletableFuture<Integer> next = watcher.awaitAnyPort(inSeconds(5));
+        assertThat(next.get(1, TimeUnit.SECONDS), is(41000));
+    }
+
+    @Test
+    public void jvmPortsAreNotHandedOut() throws Exception {
+        System.setProperty("com.sun.management.jmxremote.port", "41001");
+        System.setProperty("sun.jdwp.listenerAddress", "localhost:41002");
+        try {
+            watcher = new BindWatcher(Collections.emptySet(), this::listeningPorts);
+        } finally {
+            System.clearProperty("com.sun.management.jmxremote.port");
+            System.clearProperty("sun.jdwp.listenerAddress");
+        }
+        final CompletableFuture<Integer> port = watcher.awaitAnyPort(inSeconds(5));
+        listening.addAll(asList(41001, 41002, 41003));
+        assertThat(port.get(1, TimeUnit.SECONDS), is(41003));
+    }
+
+    @Test
+    public void automaticPortIsDetected() throws Exception {
+        assumeTrue(Files.isReadable(Paths.get("/proc/self/net/tcp")));
+        watcher = new BindWatcher(Collections.emptySet());
+        final CompletableFuture<Integer> port = watcher.awaitAnyPort(inSeconds(5));
+        try (ServerSocket socket = new ServerSocket(0)) {
+            assertThat(port.get(1, TimeUnit.SECONDS), is(socket.getLocalPort()));
+        }
+    }
+
+    @Test
+    public void closedSocketIsGone() throws Exception {
+        assumeTrue(Files.isReadable(Paths.get("/proc/self/net/tcp")));
+        final BindWatcher.ProcListeningPorts ports = new BindWatcher.ProcListeningPorts();
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        assertThat(ports.get(), not(hasItem(port)));
+    }
+}
@@ -6,14 +6,21 @@ import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 import java.io.StringReader;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.startsWith;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 public class CatalogTest {
 
@@ -155,6 +162,7 @@ public class CatalogTest {
                 .build();
         assertNotNull(catalog);
         assertThat(catalog.getDelay(), is("10s"));
+        assertThat(catalog.getDelayDuration(), is(Duration.ofSeconds(10)));
         assertThat(catalog.getKeyValuePairs().get("key1"), is("value1"));
         assertThat(catalog.getKeyValuePairs().get("key2"), is("value2"));
         final Service service = findService(catalog, "bar");
@@ -169,6 +177,140 @@ public class CatalogTest {
         assertThat(object.getJsonArray("Tags").getString(0), is("master"));
     }
 
+    @Test
+    public void automaticPort() throws Exception {
+        final Catalog catalog = Catalog.newCatalog()
+                .newService()
+                .withName("foo")
+                .withPort("auto")
+                .withHttpCheckUrl("http://localhost:{port}/health")
+                .build()
+                .build();
+        final Service service = findService(catalog, "foo");
+        assertTrue(service.hasAutomaticPort());
+        final JsonObject object = toJson(service.withDetectedPort(41000));
+        assertThat(object.getInt("Port"), is(41000));
+        assertThat(object.getJsonObject("Check").getString("HTTP"), is("http://localhost:41000/health"));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void atMostOneAutomaticPort() throws Exception {
+        Catalog.newCatalog()
+                .newService().withName("foo").withPort("auto").withHttpCheckUrl("http://localhost:{port}/").build()
+                .newService().withName("bar").withPort("auto").withHttpCheckUrl("http://localhost:{port}/").build()
+                .build();
+    }
+
+    @Test
+    public void portPlaceholderInHttpCheckUrl() throws Exception {
+        final Catalog catalog = Catalog.newCatalog()
+                .newService()
+                .withName("foo")
+                .withPort("7000")
+                .withHttpCheckUrl("http://localhost:{port}/health")
+                .build()
+                .build();
+        final JsonObject object = toJson(findService(catalog, "foo"));
+        assertThat(object.getJsonObject("Check").getString("HTTP"), is("http://localhost:7000/health"));
+    }
+
+    @Test
+    public void ttlCheck() throws Exception {
+        final Catalog catalog = Catalog.newCatalog()
+                .newService()
+                .withName("foo")
+                .withPort("7000")
+                .withTtlCheck("30s")
+                .build()
+                .build();
+        final Service service = findService(catalog, "foo");
+        assertThat(service.getCheckId(), is("service:" + service.getId()));
+        final JsonObject check = toJson(service).getJsonObject("Check");
+        assertThat(check.getString("TTL"), is("30s"));
+        assertThat(service.getTtlDuration(), is(Duration.ofSeconds(30)));
+        assertFalse(check.containsKey("HTTP"));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void httpAndTtlCheck() throws Exception {
+        Catalog.newCatalog()
+                .newService()
+                .withName("foo")
+                .withPort("7000")
+                .withHttpCheckUrl("http://localhost/health")
+                .withTtlCheck("30s")
+                .build();
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void invalidTtl() throws Exception {
+        Catalog.newCatalog().newService().withName("foo").withPort("7000").withTtlCheck("soon");
+    }
+
+    @Test
+    public void payloadHashInMeta() throws Exception {
+        final Catalog catalog = Catalog.newCatalog()
+                .newService().withId("foo").withName("foo").withPort("7000").withHttpCheckUrl("http://localhost/")
+                .withTag("b").withTag("a").build()
+                .build();
+        final Service service = findService(catalog, "foo");
+        final JsonObject meta = toJson(service).getJsonObject("Meta");
+        assertThat(meta.getString("registrator-hash"), is(service.getPayloadHash()));
+        assertThat(service.withDetectedPort(7001).getPayloadHash(), is(not(service.getPayloadHash())));
+        assertThat(service.withHttpCheckUrl("http://localhost/other").getPayloadHash(),
+                is(not(service.getPayloadHash())));
+    }
+
+    @Test
+    public void registrationIsEscaped() throws Exception {
+        final Catalog catalog = Catalog.newCatalog()
+                .newService().withName("foo").withPort("7000").withHttpCheckUrl("http://localhost/")
+                .withTag("say \"cheese\"").build()
+                .build();
+        final Service service = findService(catalog, "foo");
+        assertThat(toJson(service).getJsonArray("Tags").getString(0), is("say \"cheese\""));
+        assertThat(service.getRegistrationPayload(), is(service.toConsulRegistrationJson().getBytes(UTF_8)));
+    }
+
+    @Test
+    public void registeredAs() throws Exception {
+        final Catalog catalog = Catalog.newCatalog()
+                .newService().withName("foo").withPort("7000").withHttpCheckUrl("http://localhost/").build()
+                .build();
+        final Service service = findService(catalog, "foo");
+        final Map<String, Object> registered = new HashMap<>();
+        registered.put("Meta", Collections.singletonMap("registrator-hash", service.getPayloadHash()));
+        assertTrue(service.isRegisteredAs(registered));
+        registered.put("Meta", Collections.singletonMap("registrator-hash", "outdated"));
+        assertFalse(service.isRegisteredAs(registered));
+        assertFalse(service.isRegisteredAs(Collections.emptyMap()));
+    }
+
+    @Test
+    public void onlyTemplatesUsingChangedVariablesAreRenderedAgain() throws Exception {
+        final Map<String, String> map = new HashMap<>();
+        map.put("PORT", "8000");
+        map.put("VERSION", "1");
+        AbstractBuilder.setEnvironmentForTesting(map);
+        final Catalog catalog = Catalog.newCatalog()
+                .newService().withName("foo").withPort("${PORT}").withHttpCheckUrl("http://localhost/").build()
+                .newService().withName("bar").withPort("9000").withHttpCheckUrl("http://localhost/").build()
+                .withKeyValuePair("app/version", "${VERSION}")
+                .withKeyValuePair("app/name", "foo")
+                .build();
+        map.put("PORT", "8001");
+        map.put("VERSION", "2");
+        final Catalog rendered = catalog.renderAgain(Collections.singleton("PORT"));
+        final Service foo = findService(rendered, "foo");
+        assertThat(foo.getPort(), is(8001));
+        assertThat(foo.getId(), is(findService(catalog, "foo").getId()));
+        assertSame(findService(catalog, "bar"), findService(rendered, "bar"));
+        assertThat(rendered.getKeyValuePairs().get("app/version"), is("1"));
+        assertThat(rendered.renderAgain(Collections.singleton("VERSION")).getKeyValuePairs().get("app/version"),
+                is("2"));
+        assertThat(rendered.getKeyValuePairs().get("app/name"), is("foo"));
+    }
+
     private Service findService(Catalog catalog, String name) {
         return catalog.getServices().stream().filter(s -> s.getId().startsWith(name)).findFirst().get();
     }
@@ -177,4 +319,4 @@ public class CatalogTest {
         JsonReader reader = Json.createReader(new StringReader(service.toConsulRegistrationJson()));
         return (JsonObject) reader.read();
     }
-}
\ No newline at end of file
+}
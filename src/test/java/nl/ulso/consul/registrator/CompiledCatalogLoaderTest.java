@@ -0,0 +1,112 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs all tests of the DOM based loader against catalogs that are first compiled and then loaded.
+ */
+public class CompiledCatalogLoaderTest extends XmlClasspathCatalogLoaderTest {
+
+    @After
+    public void tearDown() {
+        AbstractBuilder.setEnvironmentForTesting(System.getenv());
+    }
+
+    @Test
+    public void environmentVariablesAreSubstitutedOnLoad() throws Exception {
+        final byte[] compiled = compile("<catalog><service name=\"${NAME:foo}\" port=\"${PORT0}\">"
+                + "<http-check url=\"http://localhost:${PORT0}/health\"/></service></catalog>");
+        AbstractBuilder.setEnvironmentForTesting(Collections.singletonMap("PORT0", "9000"));
+        final Catalog catalog = read(compiled);
+        final String service = catalog.getServices().iterator().next().toString();
+        assertThat(service, containsString("name=foo"));
+        assertThat(service, containsString("port=9000"));
+        assertThat(service, containsString("url=http://localhost:9000/health"));
+    }
+
+    @Test
+    public void fallBackToXml() throws Exception {
+        final Catalog catalog = new CompiledCatalogLoader("catalogs/non-existing.bin",
+                new StreamingXmlClasspathCatalogLoader("catalogs/minimal-catalog.xml")).load();
+        assertThat(catalog.getServices().size(), is(1));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void invalidPortFailsCompilation() throws Exception {
+        compile("<catalog><service name=\"foo\" port=\"80\"><http-check url=\"http://localhost/\"/></service>"
+                + "</catalog>");
+    }
+
+    @Test
+    public void variablePortPassesCompilation() throws Exception {
+        compile("<catalog><service name=\"foo\" port=\"${PORT0}\"><http-check url=\"http://localhost/\"/>"
+                + "</service></catalog>");
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void missingCheckFailsCompilation() throws Exception {
+        compile("<catalog><service name=\"foo\" port=\"8080\"/></catalog>");
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void bothChecksFailCompilation() throws Exception {
+        compile("<catalog><service name=\"foo\" port=\"8080\"><http-check url=\"http://localhost/\"/>"
+                + "<ttl-check ttl=\"10s\"/></service></catalog>");
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void secondAutomaticPortFailsCompilation() throws Exception {
+        compile("<catalog>"
+                + "<service name=\"foo\" port=\"auto\"><http-check url=\"http://localhost/\"/></service>"
+                + "<service name=\"bar\" port=\"auto\"><http-check url=\"http://localhost/\"/></service>"
+                + "</catalog>");
+    }
+
+    @Test
+    public void variablesPassCompilation() throws Exception {
+        compile("<catalog><service name=\"${NAME}\" id=\"${ID}\" port=\"${PORT0}\">"
+                + "<ttl-check ttl=\"${TTL}\"/><tag name=\"${TAG}\"/></service></catalog>");
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void missingServicesFailCompilation() throws Exception {
+        compile("<catalog><key name=\"foo\" value=\"bar\"/></catalog>");
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void notACompiledCatalog() throws Exception {
+        read("<catalog/>".getBytes(UTF_8));
+    }
+
+    @Override
+    Catalog load(String filename) {
+        final String location = "catalogs/" + filename;
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream(location)) {
+            if (inputStream == null) {
+                throw new RegistratorException("No catalog found file at '" + location + "'");
+            }
+            return read(CatalogCompiler.compile(inputStream, location));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] compile(String catalog) {
+        return CatalogCompiler.compile(new ByteArrayInputStream(catalog.getBytes(UTF_8)), "test");
+    }
+
+    private static Catalog read(byte[] compiled) throws IOException {
+        return CompiledCatalogLoader.read(new ByteArrayInputStream(compiled), "test");
+    }
+}
@@ -0,0 +1,144 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static nl.ulso.consul.registrator.Configuration.RegistrationMode.DELAY;
+import static nl.ulso.consul.registrator.Configuration.RegistrationMode.HEALTH;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConfigurationTest {
+
+    @Test
+    public void defaults() throws Exception {
+        assertThat(Configuration.defaults().getConcurrency(), is(4));
+        assertThat(Configuration.defaults().getRegistrationMode(), is(DELAY));
+        assertThat(Configuration.defaults().getShutdownTimeout(), is(Duration.ofSeconds(5)));
+        assertThat(Configuration.defaults().getHealthProxy(), is(Duration.ZERO));
+        assertThat(Configuration.defaults().getRetries(), is(3));
+        assertThat(Configuration.defaults().getStartupJitter(), is(Duration.ZERO));
+        assertThat(Configuration.defaults().getStartupMode(), is(Configuration.StartupMode.SYNC));
+    }
+
+    @Test
+    public void asyncStartup() throws Exception {
+        final Configuration configuration = Configuration.fromArguments(singletonMap("startup", "async"));
+        assertThat(configuration.getStartupMode(), is(Configuration.StartupMode.ASYNC));
+    }
+
+    @Test
+    public void shutdownTimeout() throws Exception {
+        final Configuration configuration = Configuration.fromArguments(singletonMap("shutdown-timeout", "1500ms"));
+        assertThat(configuration.getShutdownTimeout(), is(Duration.ofMillis(1500)));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void invalidShutdownTimeout() throws Exception {
+        Configuration.fromArguments(singletonMap("shutdown-timeout", "soon"));
+    }
+
+    @Test
+    public void healthGatedRegistration() throws Exception {
+        final Configuration configuration = Configuration.fromArguments(singletonMap("registration", "health"));
+        assertThat(configuration.getRegistrationMode(), is(HEALTH));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void invalidRegistrationMode() throws Exception {
+        Configuration.fromArguments(singletonMap("registration", "whenever"));
+    }
+
+    @Test
+    public void concurrency() throws Exception {
+        final Configuration configuration = Configuration.fromArguments(singletonMap("concurrency", "16"));
+        assertThat(configuration.getConcurrency(), is(16));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void invalidConcurrency() throws Exception {
+        Configuration.fromArguments(singletonMap("concurrency", "none"));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void zeroConcurrency() throws Exception {
+        Configuration.fromArguments(singletonMap("concurrency", "0"));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void invalidHealthProxy() throws Exception {
+        Configuration.fromArguments(singletonMap("health-proxy", "always"));
+    }
+
+    @Test
+    public void noRetries() throws Exception {
+        assertThat(Configuration.fromArguments(singletonMap("retries", "0")).getRetries(), is(0));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void negativeRetries() throws Exception {
+        Configuration.fromArguments(singletonMap("retries", "-1"));
+    }
+
+    @Test
+    public void variables() throws Exception {
+        final Map<String, String> arguments = new HashMap<>();
+        arguments.put("var.REGION", "eu-west");
+        arguments.put("retries", "1");
+        assertThat(Configuration.fromArguments(arguments).getVariables(), is(singletonMap("REGION", "eu-west")));
+    }
+
+    @Test
+    public void localConsulAgentByDefault() throws Exception {
+        final Configuration configuration = Configuration.defaults();
+        assertThat(configuration.getConsulAgents(), is(singletonList(URI.create("http://localhost:8500"))));
+        assertThat(configuration.isHedge(), is(false));
+    }
+
+    @Test
+    public void multipleConsulAgents() throws Exception {
+        final Map<String, String> arguments = new HashMap<>();
+        arguments.put("consul", "localhost:8500, consul-1,consul-2:8600");
+        arguments.put("hedge", "true");
+        final Configuration configuration = Configuration.fromArguments(arguments);
+        assertThat(configuration.getConsulAgents(), is(Arrays.asList(
+                URI.create("http://localhost:8500"),
+                URI.create("http://consul-1:8500"),
+                URI.create("http://consul-2:8600"))));
+        assertThat(configuration.isHedge(), is(true));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void invalidConsulAgent() throws Exception {
+        Configuration.fromArguments(singletonMap("consul", "localhost:http"));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void invalidHedge() throws Exception {
+        Configuration.fromArguments(singletonMap("hedge", "sometimes"));
+    }
+
+    @Test
+    public void unixSocketConsulAgent() throws Exception {
+        final Configuration configuration = Configuration.fromArguments(
+                singletonMap("consul", "unix:///var/run/Consul.sock"));
+        assertThat(configuration.getConsulAgents(), is(singletonList(URI.create("unix:///var/run/Consul.sock"))));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void unixSocketConsulAgentWithoutPath() throws Exception {
+        Configuration.fromArguments(singletonMap("consul", "unix://"));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void unsupportedConsulAgentScheme() throws Exception {
+        Configuration.fromArguments(singletonMap("consul", "https://localhost:8501"));
+    }
+}
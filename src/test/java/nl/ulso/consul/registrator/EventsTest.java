@@ -0,0 +1,51 @@
+package nl.ulso.consul.registrator;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class EventsTest {
+
+    @Test
+    public void eventsAreRecorded() throws Exception {
+        final List<RecordedEvent> events;
+        final Path file = Files.createTempFile("events", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("nl.ulso.consul.registrator.Substitution");
+            recording.enable("nl.ulso.consul.registrator.ConsulCall");
+            recording.start();
+            Catalog.newCatalog().withKeyValuePair("foo", "${BAR:bar}");
+            new HttpConsulClient(request -> new ConsulResponse(200, new HashMap<>(), "OK".getBytes(UTF_8)))
+                    .storeKeyValue("foo", "bar");
+            recording.stop();
+            recording.dump(file);
+            events = RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+        final List<RecordedEvent> substitutions = ofType(events, "nl.ulso.consul.registrator.Substitution");
+        assertThat(substitutions.stream().anyMatch(e -> "${BAR:bar}".equals(e.getString("template"))), is(true));
+        final List<RecordedEvent> calls = ofType(events, "nl.ulso.consul.registrator.ConsulCall");
+        assertThat(calls.size(), is(1));
+        assertThat(calls.get(0).getString("method"), is("PUT"));
+        assertThat(calls.get(0).getString("path"), is("/v1/kv/foo"));
+        assertThat(calls.get(0).getInt("status"), is(200));
+        assertThat(calls.get(0).getLong("bytesSent"), is(3L));
+        assertThat(calls.get(0).getLong("bytesReceived"), is(2L));
+    }
+
+    private static List<RecordedEvent> ofType(List<RecordedEvent> events, String name) {
+        return events.stream().filter(e -> e.getEventType().getName().equals(name)).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,162 @@
+package nl.ulso.consul.registrator;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class FailoverTransportTest {
+
+    private static final int UNAVAILABLE_PORT = 8509;
+
+    @Rule
+    public WireMockRule firstAgent = new WireMockRule(8502);
+
+    @Rule
+    public WireMockRule secondAgent = new WireMockRule(8503);
+
+    private static KeepAliveTransport transport(int port) {
+        return new KeepAliveTransport("localhost", port, 500, 2000);
+    }
+
+    private static FailoverTransport newTransport(boolean hedge, int... ports) {
+        final ConsulTransport[] transports = new ConsulTransport[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            transports[i] = transport(ports[i]);
+        }
+        return new FailoverTransport(Arrays.asList(transports), hedge);
+    }
+
+    @Test
+    public void firstAgentIsPreferred() throws Exception {
+        firstAgent.stubFor(get(urlEqualTo("/v1/agent/services")).willReturn(aResponse().withBody("{}")));
+        secondAgent.stubFor(get(urlEqualTo("/v1/agent/services")).willReturn(aResponse().withBody("{}")));
+        final FailoverTransport transport = newTransport(false, 8502, 8503);
+        assertThat(transport.send(ConsulRequest.get("/v1/agent/services")).getStatus(), is(200));
+        firstAgent.verify(1, getRequestedFor(urlEqualTo("/v1/agent/services")));
+        secondAgent.verify(0, getRequestedFor(urlEqualTo("/v1/agent/services")));
+    }
+
+    @Test
+    public void unavailableAgentFailsOver() throws Exception {
+        secondAgent.stubFor(put(urlEqualTo("/v1/txn")).willReturn(aResponse()));
+        final FailoverTransport transport = newTransport(false, UNAVAILABLE_PORT, 8503);
+        assertThat(transport.send(ConsulRequest.put("/v1/txn", new byte[0])).getStatus(), is(200));
+        secondAgent.verify(1, putRequestedFor(urlEqualTo("/v1/txn")));
+    }
+
+    @Test(expected = IOException.class)
+    public void agentCallsDoNotFailOver() throws Exception {
+        secondAgent.stubFor(put(urlEqualTo("/v1/agent/service/register")).willReturn(aResponse()));
+        final FailoverTransport transport = newTransport(false, UNAVAILABLE_PORT, 8503);
+        try {
+            transport.send(ConsulRequest.put("/v1/agent/service/register", new byte[0]));
+        } finally {
+            secondAgent.verify(0, putRequestedFor(urlEqualTo("/v1/agent/service/register")));
+        }
+    }
+
+    @Test
+    public void agentServerErrorDoesNotFailOver() throws Exception {
+        firstAgent.stubFor(put(urlEqualTo("/v1/agent/check/pass/foo")).willReturn(aResponse().withStatus(500)));
+        secondAgent.stubFor(put(urlEqualTo("/v1/agent/check/pass/foo")).willReturn(aResponse()));
+        final FailoverTransport transport = newTransport(false, 8502, 8503);
+        assertThat(transport.send(ConsulRequest.put("/v1/agent/check/pass/foo", new byte[0])).getStatus(), is(500));
+        secondAgent.verify(0, putRequestedFor(urlEqualTo("/v1/agent/check/pass/foo")));
+    }
+
+    @Test
+    public void serverErrorFailsOver() throws Exception {
+        firstAgent.stubFor(get(urlEqualTo("/v1/kv/foo")).willReturn(aResponse().withStatus(500)));
+        secondAgent.stubFor(get(urlEqualTo("/v1/kv/foo")).willReturn(aResponse()));
+        final FailoverTransport transport = newTransport(false, 8502, 8503);
+        assertThat(transport.send(ConsulRequest.get("/v1/kv/foo")).getStatus(), is(200));
+    }
+
+    @Test
+    public void clientErrorDoesNotFailOver() throws Exception {
+        firstAgent.stubFor(get(urlEqualTo("/v1/kv/foo")).willReturn(aResponse().withStatus(404)));
+        final FailoverTransport transport = newTransport(false, 8502, 8503);
+        assertThat(transport.send(ConsulRequest.get("/v1/kv/foo")).getStatus(), is(404));
+        secondAgent.verify(0, getRequestedFor(urlEqualTo("/v1/kv/foo")));
+    }
+
+    @Test
+    public void unhealthyAgentIsSkipped() throws Exception {
+        firstAgent.stubFor(get(urlEqualTo("/v1/kv/foo")).willReturn(aResponse().withStatus(503)));
+        secondAgent.stubFor(get(urlEqualTo("/v1/kv/foo")).willReturn(aResponse()));
+        final FailoverTransport transport = newTransport(false, 8502, 8503);
+        transport.send(ConsulRequest.get("/v1/kv/foo"));
+        transport.send(ConsulRequest.get("/v1/kv/foo"));
+        firstAgent.verify(1, getRequestedFor(urlEqualTo("/v1/kv/foo")));
+        secondAgent.verify(2, getRequestedFor(urlEqualTo("/v1/kv/foo")));
+    }
+
+    @Test
+    public void lastResponseIsReturnedIfAllAgentsFail() throws Exception {
+        firstAgent.stubFor(get(urlEqualTo("/v1/kv/foo")).willReturn(aResponse().withStatus(503)));
+        final FailoverTransport transport = newTransport(false, 8502, UNAVAILABLE_PORT);
+        assertThat(transport.send(ConsulRequest.get("/v1/kv/foo")).getStatus(), is(503));
+    }
+
+    @Test(expected = IOException.class)
+    public void failureIsThrownIfNoAgentIsAvailable() throws Exception {
+        newTransport(false, UNAVAILABLE_PORT, UNAVAILABLE_PORT + 1).send(ConsulRequest.get("/v1/kv/foo"));
+    }
+
+    @Test
+    public void slowAgentIsHedged() throws Exception {
+        firstAgent.stubFor(get(urlEqualTo("/v1/kv/foo")).willReturn(aResponse().withFixedDelay(1000)));
+        secondAgent.stubFor(get(urlEqualTo("/v1/kv/foo")).willReturn(aResponse()));
+        final FailoverTransport transport = newTransport(true, 8502, 8503);
+        final long start = System.nanoTime();
+        assertThat(transport.send(ConsulRequest.get("/v1/kv/foo")).getStatus(), is(200));
+        assertTrue(NANOSECONDS.toMillis(System.nanoTime() - start) < 900);
+        secondAgent.verify(1, getRequestedFor(urlEqualTo("/v1/kv/foo")));
+    }
+
+    @Test
+    public void agentCallsAreNotHedged() throws Exception {
+        firstAgent.stubFor(get(urlEqualTo("/v1/agent/service/deregister/foo"))
+                .willReturn(aResponse().withFixedDelay(300)));
+        secondAgent.stubFor(get(urlEqualTo("/v1/agent/service/deregister/foo")).willReturn(aResponse()));
+        final FailoverTransport transport = newTransport(true, 8502, 8503);
+        assertThat(transport.send(ConsulRequest.get("/v1/agent/service/deregister/foo")).getStatus(), is(200));
+        secondAgent.verify(0, getRequestedFor(urlEqualTo("/v1/agent/service/deregister/foo")));
+    }
+
+    @Test
+    public void fastAgentIsNotHedged() throws Exception {
+        firstAgent.stubFor(delete(urlEqualTo("/v1/kv/foo")).willReturn(aResponse()));
+        secondAgent.stubFor(delete(urlEqualTo("/v1/kv/foo")).willReturn(aResponse()));
+        final FailoverTransport transport = newTransport(true, 8502, 8503);
+        assertThat(transport.send(ConsulRequest.delete("/v1/kv/foo")).getStatus(), is(200));
+        secondAgent.verify(0, deleteRequestedFor(urlEqualTo("/v1/kv/foo")));
+    }
+
+    @Test
+    public void updatesAreNotHedged() throws Exception {
+        firstAgent.stubFor(put(urlEqualTo("/v1/kv/foo")).willReturn(aResponse().withFixedDelay(300)));
+        final FailoverTransport transport = newTransport(true, 8502, 8503);
+        assertThat(transport.send(ConsulRequest.put("/v1/kv/foo", new byte[0])).getStatus(), is(200));
+        secondAgent.verify(0, putRequestedFor(urlEqualTo("/v1/kv/foo")));
+    }
+
+    @Test
+    public void blockingQueriesAreNotHedged() throws Exception {
+        firstAgent.stubFor(get(urlEqualTo("/v1/agent/services?hash=x&wait=1s"))
+                .willReturn(aResponse().withFixedDelay(300).withBody("{}")));
+        final FailoverTransport transport = newTransport(true, 8502, 8503);
+        final ConsulRequest request = ConsulRequest.get("/v1/agent/services?hash=x&wait=1s").withReadTimeout(2000);
+        assertThat(transport.send(request).getStatus(), is(200));
+        secondAgent.verify(0, getRequestedFor(urlEqualTo("/v1/agent/services?hash=x&wait=1s")));
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.Test;
 
 import static nl.ulso.consul.registrator.GoDuration.isValidDuration;
 import static nl.ulso.consul.registrator.GoDuration.toMilliseconds;
+import static nl.ulso.consul.registrator.GoDuration.toNanoseconds;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
@@ -50,4 +51,72 @@ public class GoDurationTest {
     public void hoursToMilliseconds() throws Exception {
         assertThat(toMilliseconds("42h"), is(151200000L));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void nanosecondsToNanoseconds() throws Exception {
+        assertThat(toNanoseconds("42ns"), is(42L));
+    }
+
+    @Test
+    public void microsecondsToNanoseconds() throws Exception {
+        assertThat(toNanoseconds("42us"), is(42000L));
+        assertThat(toNanoseconds("42\u00b5s"), is(42000L));
+        assertThat(toNanoseconds("42\u03bcs"), is(42000L));
+    }
+
+    @Test
+    public void fractionsAreExactToTheNanosecond() throws Exception {
+        assertThat(toNanoseconds("1.5h2m3s500ms"), is(5523500000000L));
+        assertThat(toNanoseconds("0.000000001s"), is(1L));
+        assertThat(toNanoseconds("1.123456789123h"), is(4044444440842L));
+    }
+
+    @Test
+    public void fractionsWithoutIntegerPartAreValid() throws Exception {
+        assertThat(toNanoseconds(".5s"), is(500000000L));
+        assertThat(toNanoseconds("1.s"), is(1000000000L));
+    }
+
+    @Test
+    public void unitsAreCaseInsensitive() throws Exception {
+        assertThat(toMilliseconds("1M30S"), is(90000L));
+    }
+
+    @Test
+    public void zeroWithoutUnitIsValid() throws Exception {
+        assertThat(toNanoseconds("0"), is(0L));
+    }
+
+    @Test
+    public void durationWithoutUnitIsInvalid() throws Exception {
+        assertFalse(isValidDuration("5"));
+        assertFalse(isValidDuration("5s10"));
+    }
+
+    @Test
+    public void unknownUnitIsInvalid() throws Exception {
+        assertFalse(isValidDuration("5d"));
+        assertFalse(isValidDuration("5mss"));
+    }
+
+    @Test
+    public void malformedDurationsAreInvalid() throws Exception {
+        assertFalse(isValidDuration(""));
+        assertFalse(isValidDuration(".s"));
+        assertFalse(isValidDuration("1..5s"));
+        assertFalse(isValidDuration("+5s"));
+        assertFalse(isValidDuration(" 5s"));
+    }
+
+    @Test
+    public void overflowingDurationIsInvalid() throws Exception {
+        assertTrue(isValidDuration("2562047h"));
+        assertFalse(isValidDuration("2562048h"));
+        assertFalse(isValidDuration("9223372036854775808ns"));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void invalidDurationCannotBeConverted() throws Exception {
+        toMilliseconds("5x");
+    }
+}
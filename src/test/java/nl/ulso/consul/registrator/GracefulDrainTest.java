@@ -0,0 +1,67 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class GracefulDrainTest {
+
+    private static final int SIGTERM = 15;
+
+    private final MaintenanceConsulClient client = new MaintenanceConsulClient();
+    private final AtomicInteger signals = new AtomicInteger();
+    private final AtomicLong signalledAt = new AtomicLong();
+
+    private GracefulDrain newDrain(Duration drain) {
+        final GracefulDrain handler = new GracefulDrain(new AsyncConsulClient(client, 2),
+                new HashSet<>(Arrays.asList("service1", "service2")), drain);
+        handler.setNext(signal -> {
+            signalledAt.set(System.nanoTime());
+            signals.incrementAndGet();
+        });
+        return handler;
+    }
+
+    @Test
+    public void servicesAreInMaintenanceBeforeShutdownProceeds() throws Exception {
+        final GracefulDrain handler = newDrain(Duration.ofMillis(300));
+        final long start = System.nanoTime();
+        handler.handle(SIGTERM);
+        assertThat(signals.get(), is(1));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(signalledAt.get() - start) >= 300);
+        assertThat(client.maintenance, is(new HashSet<>(Arrays.asList("service1", "service2"))));
+    }
+
+    @Test
+    public void secondSignalSkipsDrain() throws Exception {
+        final GracefulDrain handler = newDrain(Duration.ofSeconds(5));
+        final Thread first = new Thread(() -> handler.handle(SIGTERM));
+        first.setDaemon(true);
+        first.start();
+        TimeUnit.MILLISECONDS.sleep(100);
+        final long start = System.nanoTime();
+        handler.handle(SIGTERM);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        assertThat(signals.get(), is(1));
+    }
+
+    private static class MaintenanceConsulClient extends NoOpConsulClient {
+        private final Set<String> maintenance = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void enableMaintenance(String serviceId, String reason) {
+            maintenance.add(serviceId);
+        }
+    }
+}
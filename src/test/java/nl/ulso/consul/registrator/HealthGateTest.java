@@ -0,0 +1,59 @@
+package nl.ulso.consul.registrator;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class HealthGateTest {
+    @Rule
+    public WireMockRule application = new WireMockRule(8501);
+
+    private final HealthGate healthGate = new HealthGate(2);
+
+    @After
+    public void tearDown() throws Exception {
+        healthGate.close();
+    }
+
+    private static long deadline(long milliseconds) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(milliseconds);
+    }
+
+    @Test
+    public void healthyServicePassesImmediately() throws Exception {
+        application.stubFor(get(urlEqualTo("/health")).willReturn(aResponse().withStatus(200)));
+        final long start = System.nanoTime();
+        assertTrue(healthGate.awaitHealthy("http://localhost:8501/health", deadline(5000)).get());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    @Test
+    public void serviceBecomingHealthyPasses() throws Exception {
+        application.stubFor(get(urlEqualTo("/health")).willReturn(aResponse().withStatus(503)));
+        final CompletableFuture<Boolean> result = healthGate.awaitHealthy("http://localhost:8501/health", deadline(5000));
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertThat(result.isDone(), is(false));
+        application.stubFor(get(urlEqualTo("/health")).willReturn(aResponse().withStatus(204)));
+        assertTrue(result.get(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void unhealthyServiceFailsAtDeadline() throws Exception {
+        application.stubFor(get(urlEqualTo("/health")).willReturn(aResponse().withStatus(500)));
+        assertThat(healthGate.awaitHealthy("http://localhost:8501/health", deadline(300)).get(), is(false));
+    }
+
+    @Test
+    public void invalidUrlIsNeverHealthy() throws Exception {
+        assertThat(healthGate.awaitHealthy("localhost", deadline(100)).get(), is(false));
+    }
+}
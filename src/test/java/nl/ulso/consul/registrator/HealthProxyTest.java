@@ -0,0 +1,77 @@
+package nl.ulso.consul.registrator;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+public class HealthProxyTest {
+    @Rule
+    public WireMockRule application = new WireMockRule(8501);
+
+    private final HealthProxy healthProxy = new HealthProxy(Duration.ofMillis(200));
+
+    @After
+    public void tearDown() throws Exception {
+        healthProxy.close();
+    }
+
+    @Test
+    public void sameUrlIsProxiedOnce() throws Exception {
+        final String url = healthProxy.proxy("http://localhost:8501/health");
+        assertThat(healthProxy.proxy("http://localhost:8501/health"), is(url));
+        assertThat(healthProxy.proxy("http://localhost:8501/other"), is(not(url)));
+    }
+
+    @Test
+    public void resultIsCached() throws Exception {
+        application.stubFor(get(urlEqualTo("/health")).willReturn(aResponse().withStatus(200)));
+        final String url = healthProxy.proxy("http://localhost:8501/health");
+        assertThat(call(url), is(200));
+        assertThat(call(url), is(200));
+        assertThat(call(url), is(200));
+        application.verify(1, getRequestedFor(urlEqualTo("/health")));
+    }
+
+    @Test
+    public void resultExpires() throws Exception {
+        application.stubFor(get(urlEqualTo("/health")).willReturn(aResponse().withStatus(200)));
+        final String url = healthProxy.proxy("http://localhost:8501/health");
+        assertThat(call(url), is(200));
+        application.stubFor(get(urlEqualTo("/health")).willReturn(aResponse().withStatus(500)));
+        TimeUnit.MILLISECONDS.sleep(300);
+        assertThat(call(url), is(500));
+        application.verify(2, getRequestedFor(urlEqualTo("/health")));
+    }
+
+    @Test
+    public void unreachableCheckIsUnavailable() throws Exception {
+        assertThat(call(healthProxy.proxy("http://localhost:1/health")), is(503));
+    }
+
+    @Test
+    public void unknownCheckIsNotFound() throws Exception {
+        final String url = healthProxy.proxy("http://localhost:8501/health");
+        assertThat(call(url.substring(0, url.lastIndexOf('/') + 1) + "42"), is(404));
+    }
+
+    private static int call(String url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
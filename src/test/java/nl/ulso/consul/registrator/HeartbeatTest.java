@@ -0,0 +1,96 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class HeartbeatTest {
+
+    private final HeartbeatConsulClient client = new HeartbeatConsulClient();
+    private final Heartbeat heartbeat = new Heartbeat(client);
+
+    @After
+    public void stopHeartbeat() {
+        heartbeat.stop();
+    }
+
+    @Test
+    public void healthyWithoutPredicate() throws Exception {
+        heartbeat.start(newService(null));
+        awaitHeartbeats(3);
+        assertThat(client.heartbeats.get(0), is("pass"));
+    }
+
+    @Test
+    public void unhealthyPredicateFailsCheck() throws Exception {
+        heartbeat.start(newService(UnhealthyPredicate.class.getName()));
+        awaitHeartbeats(1);
+        assertThat(client.heartbeats.get(0), is("fail: Health predicate returned false"));
+    }
+
+    @Test
+    public void throwingPredicateFailsCheck() throws Exception {
+        heartbeat.start(newService(ThrowingPredicate.class.getName()));
+        awaitHeartbeats(1);
+        assertThat(client.heartbeats.get(0), startsWith("fail: Health predicate failed"));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void predicateMustBeBooleanSupplier() throws Exception {
+        heartbeat.start(newService(String.class.getName()));
+    }
+
+    private Service newService(String predicate) {
+        final Service.Builder builder = Catalog.newCatalog().newService()
+                .withName("foo").withPort("7000").withTtlCheck("300ms");
+        if (predicate != null) {
+            builder.withTtlCheckHealthPredicate(predicate);
+        }
+        return builder.build().build().getServices().iterator().next();
+    }
+
+    private void awaitHeartbeats(int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (client.heartbeats.size() < count && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertTrue(client.heartbeats.size() >= count);
+    }
+
+    public static class UnhealthyPredicate implements BooleanSupplier {
+        @Override
+        public boolean getAsBoolean() {
+            return false;
+        }
+    }
+
+    public static class ThrowingPredicate implements BooleanSupplier {
+        @Override
+        public boolean getAsBoolean() {
+            throw new IllegalStateException("Database is down");
+        }
+    }
+
+    private static class HeartbeatConsulClient extends NoOpConsulClient {
+        final List<String> heartbeats = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void passCheck(String checkId) {
+            heartbeats.add("pass");
+        }
+
+        @Override
+        public void failCheck(String checkId, String note) {
+            heartbeats.add("fail: " + note);
+        }
+    }
+}
@@ -1,10 +1,23 @@
 package nl.ulso.consul.registrator;
 
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class HttpConsulClientTest {
     @Rule
@@ -56,6 +69,74 @@ public class HttpConsulClientTest {
         client.deregister("foo");
     }
 
+    @Test
+    public void enableMaintenance() throws Exception {
+        consulAgent.stubFor(put(urlEqualTo("/v1/agent/service/maintenance/foo?enable=true&reason=Shutting+down"))
+                .willReturn(aResponse()));
+        client.enableMaintenance("foo", "Shutting down");
+        consulAgent.verify(1, putRequestedFor(urlEqualTo(
+                "/v1/agent/service/maintenance/foo?enable=true&reason=Shutting+down")));
+    }
+
+    @Test
+    public void passAndFailCheck() throws Exception {
+        consulAgent.stubFor(put(urlEqualTo("/v1/agent/check/pass/service:foo")).willReturn(aResponse()));
+        consulAgent.stubFor(put(urlEqualTo("/v1/agent/check/fail/service:foo?note=Out+of+memory"))
+                .willReturn(aResponse()));
+        client.passCheck("service:foo");
+        client.failCheck("service:foo", "Out of memory");
+        consulAgent.verify(1, putRequestedFor(urlEqualTo("/v1/agent/check/pass/service:foo")));
+        consulAgent.verify(1, putRequestedFor(urlEqualTo("/v1/agent/check/fail/service:foo?note=Out+of+memory")));
+    }
+
+    @Test
+    public void readServices() throws Exception {
+        consulAgent.stubFor(get(urlEqualTo("/v1/agent/services"))
+                .willReturn(aResponse().withHeader("X-Consul-ContentHash", "abc")
+                        .withBody("{\"foo\":{\"ID\":\"foo\",\"Service\":\"foo\",\"Port\":7000}}")));
+        final BlockingQueryResult<Map<String, Map<String, Object>>> result = client.readServices(null, "1s");
+        assertThat(result.getIndex(), is("abc"));
+        assertThat(result.getValue().get("foo").get("Port"), is(7000L));
+    }
+
+    @Test
+    public void readServicesBlocking() throws Exception {
+        consulAgent.stubFor(get(urlEqualTo("/v1/agent/services?hash=abc&wait=1s"))
+                .willReturn(aResponse().withHeader("X-Consul-ContentHash", "def").withBody("{}")));
+        assertThat(client.readServices("abc", "1s").getIndex(), is("def"));
+    }
+
+    @Test
+    public void readKeyValues() throws Exception {
+        consulAgent.stubFor(get(urlEqualTo("/v1/kv/app/foo?index=10&wait=1s"))
+                .willReturn(aResponse().withHeader("X-Consul-Index", "12")
+                        .withBody("[{\"Key\":\"app/foo\",\"Value\":\"YmFy\"}]")));
+        stubKeyReads("{\"Results\":["
+                + "{\"KV\":{\"Key\":\"app/empty\",\"Value\":null}},"
+                + "{\"KV\":{\"Key\":\"app/empty/other\",\"Value\":\"YmFy\"}}],\"Errors\":null}");
+        final BlockingQueryResult<Map<String, String>> result =
+                client.readKeyValues(Arrays.asList("app/foo", "app/empty", "app/missing"), "10", "1s");
+        assertThat(result.getIndex(), is("12"));
+        assertThat(result.getValue().get("app/foo"), is("bar"));
+        assertThat(result.getValue().get("app/empty"), is(""));
+        assertThat(result.getValue().size(), is(2));
+        consulAgent.verify(1, getRequestedFor(urlMatching("/v1/kv/.*")));
+        consulAgent.verify(1, putRequestedFor(urlEqualTo("/v1/txn"))
+                .withRequestBody(containing("{\"KV\":{\"Verb\":\"get-tree\",\"Key\":\"app/missing\"}}")));
+        consulAgent.verify(0, getRequestedFor(urlMatching(".*recurse.*")));
+    }
+
+    @Test
+    public void readMissingKeyValues() throws Exception {
+        consulAgent.stubFor(get(urlEqualTo("/v1/kv/app/foo"))
+                .willReturn(aResponse().withStatus(404).withHeader("X-Consul-Index", "3")));
+        final BlockingQueryResult<Map<String, String>> result =
+                client.readKeyValues(Collections.singletonList("app/foo"), null, "1s");
+        assertThat(result.getIndex(), is("3"));
+        assertTrue(result.getValue().isEmpty());
+        consulAgent.verify(0, putRequestedFor(urlEqualTo("/v1/txn")));
+    }
+
     @Test
     public void storeKeyValuePair() throws Exception {
         consulAgent.stubFor(put(urlEqualTo("/v1/kv/key"))
@@ -71,4 +152,108 @@ public class HttpConsulClientTest {
         client.removeKey("key");
         consulAgent.verify(1, deleteRequestedFor(urlEqualTo("/v1/kv/key")));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void storeKeyValuePairsInTransaction() throws Exception {
+        stubKeyReads("{\"Results\":[],\"Errors\":null}");
+        stubKeyWrites(aResponse().withStatus(200));
+        final Map<String, String> pairs = new HashMap<>();
+        pairs.put("key1", "value1");
+        pairs.put("key2", "value2");
+        client.storeKeyValues(pairs);
+        consulAgent.verify(1, putRequestedFor(urlEqualTo("/v1/txn"))
+                .withRequestBody(containing("{\"KV\":{\"Verb\":\"get-tree\",\"Key\":\"key1\"}}")));
+        consulAgent.verify(1, putRequestedFor(urlEqualTo("/v1/txn"))
+                .withRequestBody(containing(
+                        "{\"KV\":{\"Verb\":\"cas\",\"Key\":\"key1\",\"Value\":\"dmFsdWUx\",\"Index\":0}}")));
+        consulAgent.verify(0, getRequestedFor(urlMatching("/v1/kv/.*")));
+        consulAgent.verify(0, putRequestedFor(urlMatching("/v1/kv/.*")));
+    }
+
+    @Test
+    public void unchangedKeyValuePairsAreSkipped() throws Exception {
+        stubKeyReads("{\"Results\":["
+                + "{\"KV\":{\"Key\":\"app/key1\",\"Value\":\"dmFsdWUx\",\"ModifyIndex\":7}},"
+                + "{\"KV\":{\"Key\":\"app/key10\",\"Value\":\"b3RoZXI=\",\"ModifyIndex\":9}},"
+                + "{\"KV\":{\"Key\":\"app/key2\",\"Value\":\"b2xk\",\"ModifyIndex\":8}}],\"Errors\":null}");
+        stubKeyWrites(aResponse().withStatus(200));
+        final Map<String, String> pairs = new HashMap<>();
+        pairs.put("app/key1", "value1");
+        pairs.put("app/key2", "value2");
+        client.storeKeyValues(pairs);
+        consulAgent.verify(1, putRequestedFor(urlEqualTo("/v1/txn")).withRequestBody(equalTo(
+                "[{\"KV\":{\"Verb\":\"cas\",\"Key\":\"app/key2\",\"Value\":\"dmFsdWUy\",\"Index\":8}}]")));
+    }
+
+    @Test
+    public void upToDateKeyValuePairsAreNotWritten() throws Exception {
+        stubKeyReads("{\"Results\":["
+                + "{\"KV\":{\"Key\":\"app/key1\",\"Value\":\"dmFsdWUx\",\"ModifyIndex\":7}}],\"Errors\":null}");
+        client.storeKeyValues(Collections.singletonMap("app/key1", "value1"));
+        consulAgent.verify(1, putRequestedFor(urlEqualTo("/v1/txn")));
+        consulAgent.verify(0, putRequestedFor(urlEqualTo("/v1/txn")).withRequestBody(containing("cas")));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void conflictingKeyValuePairsAreRetried() throws Exception {
+        stubKeyReads("{\"Results\":[],\"Errors\":null}");
+        stubKeyWrites(aResponse().withStatus(409).withBody("{\"Results\":null,\"Errors\":"
+                + "[{\"OpIndex\":0,\"What\":\"failed to set key \\\"key1\\\", index is stale\"}]}"));
+        try {
+            client.storeKeyValues(Collections.singletonMap("key1", "value1"));
+        } finally {
+            consulAgent.verify(3, putRequestedFor(urlEqualTo("/v1/txn")).withRequestBody(containing("cas")));
+        }
+    }
+
+    @Test
+    public void otherTransactionErrorsAreNotRetried() throws Exception {
+        stubKeyReads("{\"Results\":[],\"Errors\":null}");
+        stubKeyWrites(aResponse().withStatus(409).withBody("{\"Results\":null,\"Errors\":"
+                + "[{\"OpIndex\":0,\"What\":\"Value exceeds 524288 byte limit\"}]}"));
+        try {
+            client.storeKeyValues(Collections.singletonMap("key1", "value1"));
+            fail("Expected the transaction to fail");
+        } catch (RegistratorException e) {
+            assertThat(e.getMessage(), containsString("Value exceeds 524288 byte limit"));
+        }
+        consulAgent.verify(1, putRequestedFor(urlEqualTo("/v1/txn")).withRequestBody(containing("cas")));
+    }
+
+    @Test
+    public void removeKeysInTransaction() throws Exception {
+        consulAgent.stubFor(put(urlEqualTo("/v1/txn"))
+                .willReturn(aResponse().withStatus(200)));
+        client.removeKeys(Arrays.asList("key1", "key2"));
+        consulAgent.verify(1, putRequestedFor(urlEqualTo("/v1/txn"))
+                .withRequestBody(containing("{\"KV\":{\"Verb\":\"delete\",\"Key\":\"key2\"}}")));
+        consulAgent.verify(0, deleteRequestedFor(urlMatching("/v1/kv/.*")));
+    }
+
+    @Test
+    public void largeTransactionsAreSplit() throws Exception {
+        consulAgent.stubFor(put(urlEqualTo("/v1/txn"))
+                .willReturn(aResponse().withStatus(200)));
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            keys.add("key" + i);
+        }
+        client.removeKeys(keys);
+        consulAgent.verify(2, putRequestedFor(urlEqualTo("/v1/txn")));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void rolledBackTransaction() throws Exception {
+        consulAgent.stubFor(put(urlEqualTo("/v1/txn"))
+                .willReturn(aResponse().withStatus(409)));
+        client.removeKeys(Arrays.asList("key1", "key2"));
+    }
+    private void stubKeyReads(String results) {
+        consulAgent.stubFor(put(urlEqualTo("/v1/txn")).withRequestBody(containing("get-tree"))
+                .willReturn(aResponse().withBody(results)));
+    }
+
+    private void stubKeyWrites(ResponseDefinitionBuilder response) {
+        consulAgent.stubFor(put(urlEqualTo("/v1/txn")).withRequestBody(containing("cas")).willReturn(response));
+    }
+}
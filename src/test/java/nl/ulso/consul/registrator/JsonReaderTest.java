@@ -0,0 +1,49 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class JsonReaderTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void consulServices() throws Exception {
+        final Map<String, Object> services = (Map<String, Object>) JsonReader.parse(
+                "{\"foo:1\": {\"ID\": \"foo:1\", \"Service\": \"foo\", \"Tags\": [\"a\", \"b\"], \"Address\": \"\", "
+                        + "\"Port\": 8100, \"Weight\": 1.5, \"EnableTagOverride\": false, \"Meta\": null}}");
+        final Map<String, Object> service = (Map<String, Object>) services.get("foo:1");
+        assertThat(service.get("Service"), is("foo"));
+        assertThat(service.get("Tags"), is(Arrays.asList("a", "b")));
+        assertThat(service.get("Port"), is(8100L));
+        assertThat(service.get("Weight"), is(1.5));
+        assertThat(service.get("EnableTagOverride"), is(false));
+        assertThat(service.get("Meta"), is(nullValue()));
+    }
+
+    @Test
+    public void escapes() throws Exception {
+        assertThat(JsonReader.parse("\"a\\\"b\\\\c\\n\\u00e9\""), is("a\"b\\c\n\u00e9"));
+    }
+
+    @Test
+    public void emptyStructures() throws Exception {
+        assertThat(JsonReader.parse(" [ ] "), is(Arrays.asList()));
+        assertThat(((Map<?, ?>) JsonReader.parse("{}")).isEmpty(), is(true));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void unterminatedObject() throws Exception {
+        JsonReader.parse("{\"foo\": 1");
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void trailingContent() throws Exception {
+        JsonReader.parse("[1] 2");
+    }
+}
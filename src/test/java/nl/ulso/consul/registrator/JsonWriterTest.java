@@ -0,0 +1,44 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class JsonWriterTest {
+
+    @Test
+    public void nestedStructures() throws Exception {
+        final JsonWriter writer = new JsonWriter()
+                .beginObject()
+                .name("a").value(1)
+                .name("b").beginArray().value("x").beginObject().endObject().value((String) null).endArray()
+                .name("c").beginObject().name("d").value(2.5).endObject()
+                .endObject();
+        assertThat(toString(writer), is("{\"a\":1,\"b\":[\"x\",{},null],\"c\":{\"d\":2.5}}"));
+    }
+
+    @Test
+    public void escapes() throws Exception {
+        final JsonWriter writer = new JsonWriter().value("quote\" backslash\\ newline\n tab\t bell\u0007");
+        assertThat(toString(writer), is("\"quote\\\" backslash\\\\ newline\\n tab\\t bell\\u0007\""));
+    }
+
+    @Test
+    public void utf8() throws Exception {
+        final String value = "caf\u00e9 \u20ac \ud83d\ude00";
+        final JsonWriter writer = new JsonWriter().value(value);
+        assertThat(writer.toByteArray(), is(("\"" + value + "\"").getBytes(UTF_8)));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final String value = "{\"tricky\": [\\\u0001\u00e9]}";
+        assertThat(JsonReader.parse(toString(new JsonWriter().value(value))), is(value));
+    }
+
+    private static String toString(JsonWriter writer) {
+        return new String(writer.toByteArray(), UTF_8);
+    }
+}
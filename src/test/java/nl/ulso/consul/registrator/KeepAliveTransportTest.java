@@ -0,0 +1,123 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class KeepAliveTransportTest {
+
+    private ServerSocket server;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile String response;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        response = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK";
+        final Thread thread = new Thread(this::accept);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                connections.incrementAndGet();
+                final Thread thread = new Thread(() -> serve(socket));
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), ISO_8859_1));
+            final OutputStream output = s.getOutputStream();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int length = 0;
+                while (!(line = reader.readLine()).isEmpty()) {
+                    if (line.toLowerCase().startsWith("content-length:")) {
+                        length = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                reader.skip(length);
+                output.write(response.getBytes(ISO_8859_1));
+                output.flush();
+            }
+        } catch (IOException e) {
+            // Client went away.
+        }
+    }
+
+    private int awaitConnections(int expected) throws InterruptedException {
+        // Connections are counted asynchronously, after the client is already connected.
+        for (int i = 0; i < 100 && connections.get() < expected; i++) {
+            Thread.sleep(10);
+        }
+        return connections.get();
+    }
+
+    private KeepAliveTransport newTransport() {
+        return new KeepAliveTransport("localhost", server.getLocalPort(), 500, 500);
+    }
+
+    @Test
+    public void connectionIsReused() throws Exception {
+        final KeepAliveTransport transport = newTransport();
+        for (int i = 0; i < 5; i++) {
+            final ConsulResponse r = transport.send(ConsulRequest.put("/v1/kv/key", "value".getBytes(ISO_8859_1)));
+            assertThat(r.getStatus(), is(200));
+            assertThat(r.getBodyAsString(), is("OK"));
+        }
+        assertThat(connections.get(), is(1));
+    }
+
+    @Test
+    public void warmUpConnectsInAdvance() throws Exception {
+        final KeepAliveTransport transport = newTransport();
+        transport.warmUp();
+        transport.send(ConsulRequest.get("/v1/agent/self"));
+        transport.send(ConsulRequest.get("/v1/agent/self"));
+        assertThat(awaitConnections(2), is(2));
+    }
+
+    @Test
+    public void chunkedResponse() throws Exception {
+        response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nfoo\r\n3;x=y\r\nbar\r\n0\r\n\r\n";
+        final KeepAliveTransport transport = newTransport();
+        assertThat(transport.send(ConsulRequest.get("/")).getBodyAsString(), is("foobar"));
+        assertThat(transport.send(ConsulRequest.get("/")).getBodyAsString(), is("foobar"));
+        assertThat(connections.get(), is(1));
+    }
+
+    @Test
+    public void connectionCloseIsHonoured() throws Exception {
+        response = "HTTP/1.1 409 Conflict\r\nConnection: close\r\nContent-Length: 0\r\n\r\n";
+        final KeepAliveTransport transport = newTransport();
+        assertThat(transport.send(ConsulRequest.delete("/")).getStatus(), is(409));
+        assertThat(transport.send(ConsulRequest.delete("/")).getStatus(), is(409));
+        assertThat(connections.get(), is(2));
+    }
+}
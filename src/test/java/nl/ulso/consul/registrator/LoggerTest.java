@@ -5,7 +5,14 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.CountDownLatch;
 
 import static nl.ulso.consul.registrator.Logger.Level.*;
 import static nl.ulso.consul.registrator.Logger.*;
@@ -24,11 +31,13 @@ public class LoggerTest {
 
     @After
     public void tearDown() throws Exception {
+        setOut(System.out);
+        setFormat(Format.TEXT);
         output = null;
     }
 
     private String getLog() throws Exception {
-        output.flush();
+        flush();
         return output.toString();
     }
 
@@ -72,4 +81,121 @@ public class LoggerTest {
         error("ERROR!");
         assertThat(getLog(), containsString("ERROR!"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void timestampHasMinutes() throws Exception {
+        setLogLevel(INFO);
+        final LocalDateTime before = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        info("TIME");
+        final LocalDateTime timestamp = LocalDateTime.parse(getLog().substring(0, 23),
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS"));
+        assertThat(timestamp.isBefore(before), is(false));
+        assertThat(timestamp.isAfter(LocalDateTime.now()), is(false));
+    }
+
+    @Test
+    public void argumentsAreFormatted() throws Exception {
+        setLogLevel(INFO);
+        info("%s", "one");
+        info("%s %s", "one", "two");
+        info("%s %s %s", "one", "two", "three");
+        info("%s %s %s %s", "one", "two", "three", "four");
+        final String log = getLog();
+        assertThat(log, containsString("- one" + System.getProperty("line.separator")));
+        assertThat(log, containsString("- one two" + System.getProperty("line.separator")));
+        assertThat(log, containsString("- one two three" + System.getProperty("line.separator")));
+        assertThat(log, containsString("- one two three four" + System.getProperty("line.separator")));
+    }
+
+    @Test
+    public void jsonLines() throws Exception {
+        setLogLevel(INFO);
+        setFormat(Format.JSON);
+        info("Say \"%s\"", "hello");
+        final String log = getLog().trim();
+        assertThat(log, startsWith("{\"timestamp\":\""));
+        assertThat(log, containsString("\"logger\":\"CONSUL-AGENT\",\"level\":\"INFO\""));
+        assertThat(log, endsWith("\"message\":\"Say \\\"hello\\\"\"}"));
+    }
+
+    @Test
+    public void repeatedMessagesAreRateLimited() throws Exception {
+        setLogLevel(INFO);
+        for (int i = 0; i < 100; i++) {
+            info("Repeated message %s", "foo");
+        }
+        final String[] lines = getLog().split(System.getProperty("line.separator"));
+        assertThat(lines.length, is(20));
+    }
+
+    @Test
+    public void messagesWithDifferentArgumentsAreNotRateLimited() throws Exception {
+        setLogLevel(INFO);
+        for (int i = 0; i < 100; i++) {
+            info("Different message %s", i);
+        }
+        final String[] lines = getLog().split(System.getProperty("line.separator"));
+        assertThat(lines.length, is(100));
+    }
+
+    @Test
+    public void errorsAreNeverRateLimited() throws Exception {
+        setLogLevel(INFO);
+        for (int i = 0; i < 100; i++) {
+            error("Repeated error %s", "foo");
+        }
+        final String[] lines = getLog().split(System.getProperty("line.separator"));
+        assertThat(lines.length, is(100));
+    }
+
+    @Test
+    public void linesComeOutInOrderWhileFlushing() throws Exception {
+        setLogLevel(INFO);
+        final Thread flusher = new Thread(() -> {
+            for (int i = 0; i < 100; i++) {
+                flush();
+            }
+        });
+        flusher.start();
+        for (int i = 0; i < 500; i++) {
+            info("Line %s", i);
+        }
+        flusher.join();
+        final String[] lines = getLog().split(System.getProperty("line.separator"));
+        assertThat(lines.length, is(500));
+        for (int i = 0; i < lines.length; i++) {
+            assertThat(lines[i], endsWith("- Line " + i));
+        }
+    }
+
+    @Test
+    public void linesAreDroppedRatherThanWaitedFor() throws Exception {
+        setLogLevel(INFO);
+        final CountDownLatch release = new CountDownLatch(1);
+        setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                output.write(b);
+            }
+        }));
+        final Thread logger = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                info("Line %s", i);
+            }
+        });
+        logger.start();
+        logger.join(5000);
+        assertThat(logger.isAlive(), is(false));
+        release.countDown();
+        flush();
+        info("Last line");
+        final String[] lines = getLog().split(System.getProperty("line.separator"));
+        assertThat(lines[lines.length - 2], containsString("log lines dropped"));
+        assertThat(lines[lines.length - 1], endsWith("- Last line"));
+    }
+}
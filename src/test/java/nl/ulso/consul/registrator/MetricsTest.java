@@ -0,0 +1,89 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class MetricsTest {
+
+    @Test
+    public void bucketsCoverAllValues() throws Exception {
+        for (long micros = 0; micros < 100000; micros++) {
+            final int bucket = Metrics.Calls.bucket(micros);
+            assertThat(Metrics.Calls.lowerBound(bucket) <= micros, is(true));
+            assertThat(Metrics.Calls.lowerBound(bucket + 1) > micros, is(true));
+        }
+    }
+
+    @Test
+    public void percentiles() throws Exception {
+        final Metrics.Calls calls = new Metrics().calls(Metrics.Operation.REGISTER);
+        for (int i = 0; i < 99; i++) {
+            calls.record(System.nanoTime() - MICROSECONDS.toNanos(1000), false);
+        }
+        calls.record(System.nanoTime() - MICROSECONDS.toNanos(100000), true);
+        assertThat(calls.getCount(), is(100L));
+        assertThat(calls.getErrors(), is(1L));
+        assertThat(calls.getMinMicros() >= 1000, is(true));
+        assertThat(calls.getMaxMicros() >= 100000, is(true));
+        final long median = calls.getPercentileMicros(50);
+        assertThat("median " + median, median >= 1000 && median < 1280, is(true));
+        assertThat(calls.getPercentileMicros(100), is(calls.getMaxMicros()));
+    }
+
+    @Test
+    public void noCalls() throws Exception {
+        final Metrics.Calls calls = new Metrics().calls(Metrics.Operation.DEREGISTER);
+        assertThat(calls.getMinMicros(), is(0L));
+        assertThat(calls.getMeanMicros(), is(0L));
+        assertThat(calls.getPercentileMicros(99), is(0L));
+    }
+
+    @Test
+    public void meteredClientCountsCallsAndErrors() throws Exception {
+        final Metrics metrics = new Metrics();
+        final ConsulClient client = new MeteredConsulClient(new HttpConsulClient(
+                request -> new ConsulResponse(request.getPath().contains("deregister") ? 500 : 200,
+                        new HashMap<>(), new byte[0])), metrics);
+        client.storeKeyValue("foo", "bar");
+        try {
+            client.deregister("service");
+            fail("Expected the call to fail");
+        } catch (RegistratorException e) {
+            // Expected
+        }
+        assertThat(metrics.calls(Metrics.Operation.STORE_KEY_VALUE).getCount(), is(1L));
+        assertThat(metrics.calls(Metrics.Operation.STORE_KEY_VALUE).getErrors(), is(0L));
+        assertThat(metrics.calls(Metrics.Operation.DEREGISTER).getErrors(), is(1L));
+        assertThat(metrics.getLastError().contains("DEREGISTER"), is(true));
+    }
+
+    @Test
+    public void mbeanExposesMetrics() throws Exception {
+        final Metrics metrics = new Metrics();
+        metrics.servicePending("foo");
+        metrics.serviceRegistered("bar");
+        metrics.calls(Metrics.Operation.STORE_KEY_VALUES).record(System.nanoTime(), false);
+        MetricsMBean.register(metrics);
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(MetricsMBean.OBJECT_NAME);
+        final String[] services = (String[]) server.getAttribute(name, "Services");
+        assertThat(services.length, is(2));
+        assertThat(services[0], is("bar: REGISTERED"));
+        assertThat(services[1], is("foo: PENDING"));
+        assertThat(server.getAttribute(name, "TimeToRegistrationMillis"), is(-1L));
+        final CompositeData calls = (CompositeData) server.getAttribute(name, "StoreKeyValuesCalls");
+        assertThat(calls.get("count"), is(1L));
+        metrics.registrationCompleted();
+        assertThat((Long) server.getAttribute(name, "TimeToRegistrationMillis") >= 0, is(true));
+    }
+}
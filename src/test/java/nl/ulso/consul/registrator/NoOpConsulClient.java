@@ -0,0 +1,50 @@
+package nl.ulso.consul.registrator;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A Consul client that does nothing and has nothing registered. Tests extend it and override only the calls they care
+ * about.
+ */
+class NoOpConsulClient implements ConsulClient {
+
+    @Override
+    public void register(Service service) {
+    }
+
+    @Override
+    public void deregister(String serviceId) {
+    }
+
+    @Override
+    public void storeKeyValue(String key, String value) {
+    }
+
+    @Override
+    public void removeKey(String key) {
+    }
+
+    @Override
+    public void enableMaintenance(String serviceId, String reason) {
+    }
+
+    @Override
+    public void passCheck(String checkId) {
+    }
+
+    @Override
+    public void failCheck(String checkId, String note) {
+    }
+
+    @Override
+    public BlockingQueryResult<Map<String, Map<String, Object>>> readServices(String hash, String wait) {
+        return new BlockingQueryResult<>(null, Collections.emptyMap());
+    }
+
+    @Override
+    public BlockingQueryResult<Map<String, String>> readKeyValues(Collection<String> keys, String index, String wait) {
+        return new BlockingQueryResult<>(null, Collections.emptyMap());
+    }
+}
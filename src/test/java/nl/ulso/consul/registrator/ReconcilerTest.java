@@ -0,0 +1,244 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ReconcilerTest {
+
+    private final StatefulConsulClient client = new StatefulConsulClient();
+    private final Reconciler reconciler = new Reconciler(client, Duration.ofSeconds(1));
+
+    @After
+    public void stopReconciler() {
+        reconciler.stop();
+    }
+
+    @Test
+    public void missingServiceIsRegisteredAgain() throws Exception {
+        final Service service = newService("foo", "7000");
+        reconciler.start(Collections.singletonList(service), Collections.emptyMap());
+        awaitUntil(() -> client.services.containsKey(service.getId()));
+        assertThat(client.registrations, is(Collections.singletonList(service.getId())));
+    }
+
+    @Test
+    public void changedServiceIsRegisteredAgain() throws Exception {
+        final Service service = newService("foo", "7000");
+        client.services.put(service.getId(), registeredAs(newService("foo", "7001")));
+        reconciler.start(Collections.singletonList(service), Collections.emptyMap());
+        awaitUntil(() -> client.registrations.size() == 1);
+        assertTrue(service.isRegisteredAs(client.services.get(service.getId())));
+    }
+
+    @Test
+    public void unchangedServiceIsLeftAlone() throws Exception {
+        final Service service = newService("foo", "7000");
+        client.services.put(service.getId(), registeredAs(service));
+        reconciler.start(Collections.singletonList(service), Collections.emptyMap());
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertTrue(client.registrations.isEmpty());
+        assertTrue(client.serviceReads.get() < 10);
+    }
+
+    @Test
+    public void missingAndChangedKeysAreStoredAgain() throws Exception {
+        client.keyValuePairs.put("app/foo", "old");
+        client.keyValuePairs.put("app/baz", "same");
+        final Map<String, String> keyValuePairs = new LinkedHashMap<>();
+        keyValuePairs.put("app/foo", "new");
+        keyValuePairs.put("app/bar", "missing");
+        keyValuePairs.put("app/baz", "same");
+        reconciler.start(Collections.emptyList(), keyValuePairs);
+        awaitUntil(() -> "new".equals(client.keyValuePairs.get("app/foo")));
+        assertThat(client.keyValuePairs.get("app/bar"), is("missing"));
+        assertThat(client.keysRead, is(Arrays.asList("app/bar", "app/baz", "app/foo")));
+    }
+
+    @Test
+    public void nothingChangesAfterStop() throws Exception {
+        final Service service = newService("foo", "7000");
+        client.services.put(service.getId(), registeredAs(service));
+        reconciler.start(Collections.singletonList(service), Collections.emptyMap());
+        TimeUnit.MILLISECONDS.sleep(100);
+        reconciler.stop();
+        client.deregister(service.getId());
+        TimeUnit.MILLISECONDS.sleep(700);
+        assertTrue(client.registrations.isEmpty());
+    }
+
+    @Test
+    public void registrationsAddedLaterAreWatchedAndRemovedOnesLeftAlone() throws Exception {
+        final Registrations registrations = new Registrations();
+        reconciler.start(registrations);
+        final Service service = newService("foo", "7000");
+        registrations.putService(service);
+        registrations.putKeyValue("app/foo", "value");
+        reconciler.watch();
+        awaitUntil(() -> client.services.containsKey(service.getId()));
+        awaitUntil(() -> "value".equals(client.keyValuePairs.get("app/foo")));
+        synchronized (registrations) {
+            registrations.removeService(service.getId());
+            client.deregister(service.getId());
+        }
+        TimeUnit.MILLISECONDS.sleep(700);
+        assertThat(client.registrations, is(Collections.singletonList(service.getId())));
+    }
+
+    @Test
+    public void stopDoesNotWaitForChangesInProgress() throws Exception {
+        client.registerDelayMillis = 2000;
+        reconciler.start(Collections.singletonList(newService("foo", "7000")), Collections.emptyMap());
+        awaitUntil(() -> client.registrations.size() == 1);
+        final long start = System.nanoTime();
+        reconciler.stop();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+    }
+
+    @Test
+    public void awaitStoppedWaitsForChangesInProgress() throws Exception {
+        client.registerDelayMillis = 300;
+        reconciler.start(Collections.singletonList(newService("foo", "7000")), Collections.emptyMap());
+        awaitUntil(() -> client.registrations.size() == 1);
+        reconciler.stop();
+        assertTrue(reconciler.awaitStopped(System.nanoTime() + TimeUnit.SECONDS.toNanos(2)));
+        assertTrue(client.services.containsKey("foo"));
+    }
+
+    @Test
+    public void awaitStoppedGivesUpAtTheDeadline() throws Exception {
+        client.registerDelayMillis = 2000;
+        reconciler.start(Collections.singletonList(newService("foo", "7000")), Collections.emptyMap());
+        awaitUntil(() -> client.registrations.size() == 1);
+        reconciler.stop();
+        final long start = System.nanoTime();
+        assertFalse(reconciler.awaitStopped(start + TimeUnit.MILLISECONDS.toNanos(100)));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    @Test
+    public void serviceRemovedWhileRegisteringIsDeregisteredAfterwards() throws Exception {
+        client.registerDelayMillis = 300;
+        final Registrations registrations = new Registrations();
+        final Service service = newService("foo", "7000");
+        registrations.putService(service);
+        reconciler.start(registrations);
+        awaitUntil(() -> client.registrations.size() == 1);
+        synchronized (registrations) {
+            registrations.removeService(service.getId());
+            client.deregister(service.getId());
+        }
+        TimeUnit.MILLISECONDS.sleep(500);
+        assertFalse(client.services.containsKey(service.getId()));
+    }
+
+    private static Service newService(String name, String port) {
+        return Catalog.newCatalog().newService()
+                .withId(name).withName(name).withPort(port).withHttpCheckUrl("http://localhost/health")
+                .build().build().getServices().iterator().next();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> registeredAs(Service service) {
+        // Pretty much what Consul hands back: the registration, with the metadata in it.
+        return (Map<String, Object>) JsonReader.parse(service.toConsulRegistrationJson());
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    /**
+     * Consul in memory; blocking queries return as soon as the state changes, or after a short while.
+     */
+    private static class StatefulConsulClient extends NoOpConsulClient {
+        final Map<String, Map<String, Object>> services = new ConcurrentHashMap<>();
+        final Map<String, String> keyValuePairs = new ConcurrentHashMap<>();
+        final List<String> registrations = new CopyOnWriteArrayList<>();
+        final AtomicInteger serviceReads = new AtomicInteger();
+        volatile List<String> keysRead;
+        volatile long registerDelayMillis;
+
+        @Override
+        public void register(Service service) {
+            registrations.add(service.getId());
+            // Like a socket read, this doesn't notice the reconciler thread being interrupted.
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(registerDelayMillis);
+            while (System.nanoTime() < deadline) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(deadline - System.nanoTime());
+                } catch (InterruptedException e) {
+                    // Carry on.
+                }
+            }
+            services.put(service.getId(), registeredAs(service));
+        }
+
+        @Override
+        public void deregister(String serviceId) {
+            services.remove(serviceId);
+        }
+
+        @Override
+        public void storeKeyValue(String key, String value) {
+            keyValuePairs.put(key, value);
+        }
+
+        @Override
+        public void removeKey(String key) {
+            keyValuePairs.remove(key);
+        }
+
+        @Override
+        public BlockingQueryResult<Map<String, Map<String, Object>>> readServices(String hash, String wait) {
+            serviceReads.incrementAndGet();
+            block(hash, () -> Integer.toString(services.hashCode()));
+            return new BlockingQueryResult<>(Integer.toString(services.hashCode()), new HashMap<>(services));
+        }
+
+        @Override
+        public BlockingQueryResult<Map<String, String>> readKeyValues(Collection<String> keys, String index,
+                                                                      String wait) {
+            keysRead = new ArrayList<>(keys);
+            block(index, () -> Integer.toString(keyValuePairs.hashCode()));
+            final Map<String, String> values = new HashMap<>();
+            keys.stream().filter(keyValuePairs::containsKey).forEach(key -> values.put(key, keyValuePairs.get(key)));
+            return new BlockingQueryResult<>(Integer.toString(keyValuePairs.hashCode()), values);
+        }
+
+        private static void block(String index, Supplier<String> current) {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+            while (index != null && index.equals(current.get()) && System.nanoTime() < deadline) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
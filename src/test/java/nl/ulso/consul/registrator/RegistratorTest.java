@@ -2,11 +2,20 @@ package nl.ulso.consul.registrator;
 
 import org.junit.Test;
 
+import java.net.ConnectException;
+import java.net.URL;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * This is definitely not the best of tests...
@@ -14,7 +23,6 @@ import static org.junit.Assert.assertTrue;
  * Testing challenges I still have:
  * </p>
  * <ul>
- * <li>Testing the shutdown hook. How to do that without crippling the Registrator code?</li>
  * <li>Testing exceptional situations. How to do that without shutting down the JVM?</li>
  * </ul>
  */
@@ -30,6 +38,98 @@ public class RegistratorTest {
         assertTrue(client.keys.contains("key"));
     }
 
+    @Test
+    public void shutdownHookRemovesEverythingConcurrently() throws Exception {
+        final DummyConsulClient client = new DummyConsulClient();
+        client.delayMilliseconds = 200;
+        final Catalog catalog = Catalog.newCatalog()
+                .newService().withName("service1").withId("service1").withPort("8000").withHttpCheckUrl("url").build()
+                .newService().withName("service2").withId("service2").withPort("8001").withHttpCheckUrl("url").build()
+                .withKeyValuePair("key", "value")
+                .build();
+        final Registrator.ShutdownHook hook = new Registrator.ShutdownHook(
+                new AsyncConsulClient(client, 4), catalog, Duration.ofSeconds(5));
+        final long start = System.nanoTime();
+        hook.run();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        assertTrue(client.removedServices.containsAll(Arrays.asList("service1", "service2")));
+        assertTrue(client.removedKeys.contains("key"));
+    }
+
+    @Test
+    public void shutdownHookGivesUpAfterTimeout() throws Exception {
+        final DummyConsulClient client = new DummyConsulClient();
+        client.delayMilliseconds = 5000;
+        final Registrator.ShutdownHook hook = new Registrator.ShutdownHook(
+                new AsyncConsulClient(client, 4), new DummyCatalogLoader().load(), Duration.ofMillis(100));
+        final long start = System.nanoTime();
+        hook.run();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    @Test
+    public void shutdownHookRemovesRegistrationsAddedAtRuntime() throws Exception {
+        final DummyConsulClient client = new DummyConsulClient();
+        final Registrations registrations = Registrations.of(new DummyCatalogLoader().load());
+        final RuntimeRegistrar registrar =
+                new RuntimeRegistrar(client, registrations, new Metrics(), new Heartbeat(client), null);
+        registrar.register(Catalog.newCatalog()
+                .newService().withName("tenant").withId("tenant-1").withPort("8001").withHttpCheckUrl("url").build()
+                .build().getServices().iterator().next());
+        registrar.storeKeyValue("tenant-1", "value");
+        registrar.removeKey("key");
+        client.removedKeys.clear();
+        final Registrator.ShutdownHook hook = new Registrator.ShutdownHook(
+                new AsyncConsulClient(client, 4), registrations, Duration.ofSeconds(5), null, null, null);
+        hook.run();
+        assertTrue(client.removedServices.containsAll(Arrays.asList("service", "tenant-1")));
+        assertTrue(client.removedKeys.contains("tenant-1"));
+        assertFalse(client.removedKeys.contains("key"));
+    }
+
+    @Test
+    public void shutdownHookClosesHealthProxy() throws Exception {
+        final DummyConsulClient client = new DummyConsulClient();
+        final HealthProxy healthProxy = new HealthProxy(Duration.ofSeconds(1));
+        final URL url = new URL(healthProxy.proxy("http://localhost:1/health"));
+        final Registrations registrations = Registrations.of(new DummyCatalogLoader().load());
+        new Registrator.ShutdownHook(new AsyncConsulClient(client, 4), registrations, Duration.ofSeconds(5), null, null, healthProxy)
+                .run();
+        assertTrue(client.removedServices.contains("service"));
+        try {
+            url.openConnection().connect();
+            fail("Expected the health proxy to be closed");
+        } catch (ConnectException e) {
+            // Closed.
+        }
+    }
+
+    @Test
+    public void shutdownHookWaitsForRuntimeChangesInProgress() throws Exception {
+        final DummyConsulClient client = new DummyConsulClient();
+        client.registerDelayMilliseconds = 300;
+        final Registrations registrations = new Registrations();
+        final RuntimeRegistrar registrar =
+                new RuntimeRegistrar(client, registrations, new Metrics(), new Heartbeat(client), null);
+        final Service service = Catalog.newCatalog()
+                .newService().withName("tenant").withId("tenant-1").withPort("8001").withHttpCheckUrl("url").build()
+                .build().getServices().iterator().next();
+        final Thread registration = new Thread(() -> registrar.register(service));
+        registration.start();
+        while (registrations.getService("tenant-1") == null) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        new Registrator.ShutdownHook(new AsyncConsulClient(client, 4), registrations, Duration.ofSeconds(5), null, null, null).run();
+        assertTrue(client.services.contains("tenant-1"));
+        assertTrue(client.removedServices.contains("tenant-1"));
+        try {
+            registrar.register(service);
+            fail("Expected the registration to be rejected");
+        } catch (RegistratorException e) {
+            assertThat(client.services.size(), is(1));
+        }
+    }
+
     private static class DummyCatalogLoader implements CatalogLoader {
         @Override
         public Catalog load() {
@@ -41,18 +141,24 @@ public class RegistratorTest {
         }
     }
 
-    private static class DummyConsulClient implements ConsulClient {
+    private static class DummyConsulClient extends NoOpConsulClient {
 
-        Set<String> services = new HashSet<>();
+        Set<String> services = ConcurrentHashMap.newKeySet();
         Set<String> keys = new HashSet<>();
+        Set<String> removedServices = ConcurrentHashMap.newKeySet();
+        Set<String> removedKeys = ConcurrentHashMap.newKeySet();
+        long delayMilliseconds;
+        volatile long registerDelayMilliseconds;
 
         @Override
         public void deregister(String serviceId) {
-            // Nothing to do here. Unfortunately...
+            sleep(delayMilliseconds);
+            removedServices.add(serviceId);
         }
 
         @Override
         public void register(Service service) {
+            sleep(registerDelayMilliseconds);
             services.add(service.getId());
         }
 
@@ -63,7 +169,16 @@ public class RegistratorTest {
 
         @Override
         public void removeKey(String key) {
-            // Nothing to do here. Unfortunately...
+            sleep(delayMilliseconds);
+            removedKeys.add(key);
+        }
+
+        private static void sleep(long delayMilliseconds) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delayMilliseconds);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 }
\ No newline at end of file
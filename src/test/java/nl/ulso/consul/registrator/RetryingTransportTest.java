@@ -0,0 +1,149 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryingTransportTest {
+
+    private final ScriptedTransport script = new ScriptedTransport();
+
+    private RetryingTransport newTransport(int retries) {
+        return new RetryingTransport(script, retries, 1, 10, 5, 200);
+    }
+
+    @Test
+    public void successIsNotRetried() throws Exception {
+        script.respond(200);
+        assertThat(newTransport(3).send(ConsulRequest.get("/")).getStatus(), is(200));
+        assertThat(script.calls.get(), is(1));
+    }
+
+    @Test
+    public void failureIsRetried() throws Exception {
+        script.fail();
+        script.respond(503);
+        script.respond(200);
+        assertThat(newTransport(3).send(ConsulRequest.get("/")).getStatus(), is(200));
+        assertThat(script.calls.get(), is(3));
+    }
+
+    @Test
+    public void retriesAreLimited() throws Exception {
+        script.respond(429);
+        script.respond(429);
+        script.respond(200);
+        assertThat(newTransport(1).send(ConsulRequest.get("/")).getStatus(), is(429));
+        assertThat(script.calls.get(), is(2));
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() throws Exception {
+        script.respond(404);
+        assertThat(newTransport(3).send(ConsulRequest.get("/")).getStatus(), is(404));
+        assertThat(script.calls.get(), is(1));
+    }
+
+    @Test
+    public void retryAfterIsHonoured() throws Exception {
+        script.respond(429, "1");
+        script.respond(200);
+        final long start = System.nanoTime();
+        newTransport(3).send(ConsulRequest.get("/"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1000);
+    }
+
+    @Test
+    public void circuitBreakerOpensAndCloses() throws Exception {
+        final RetryingTransport transport = newTransport(0);
+        for (int i = 0; i < 5; i++) {
+            script.fail();
+            expectFailure(transport);
+        }
+        assertThat(script.calls.get(), is(5));
+        // Open: the agent isn't called at all.
+        expectFailure(transport);
+        assertThat(script.calls.get(), is(5));
+        TimeUnit.MILLISECONDS.sleep(250);
+        // Half open: a single trial call goes through, and closes the circuit.
+        script.respond(200);
+        assertThat(transport.send(ConsulRequest.get("/")).getStatus(), is(200));
+        script.respond(200);
+        assertThat(transport.send(ConsulRequest.get("/")).getStatus(), is(200));
+        assertThat(script.calls.get(), is(7));
+    }
+
+    @Test
+    public void shutdownBypassesOpenCircuitBreaker() throws Exception {
+        final RetryingTransport transport = newTransport(0);
+        for (int i = 0; i < 5; i++) {
+            script.fail();
+            expectFailure(transport);
+        }
+        transport.shutDown(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+        script.respond(200);
+        assertThat(transport.send(ConsulRequest.get("/")).getStatus(), is(200));
+        assertThat(script.calls.get(), is(6));
+    }
+
+    @Test
+    public void shutdownRetriesUntilDeadline() throws Exception {
+        final RetryingTransport transport = new RetryingTransport(script, 100, 50, 50, 1, 60000);
+        for (int i = 0; i < 100; i++) {
+            script.fail();
+        }
+        final long start = System.nanoTime();
+        transport.shutDown(start + TimeUnit.MILLISECONDS.toNanos(500));
+        expectFailure(transport);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        assertTrue(script.calls.get() > 1);
+    }
+
+    private static void expectFailure(RetryingTransport transport) {
+        try {
+            transport.send(ConsulRequest.get("/"));
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private static class ScriptedTransport implements ConsulTransport {
+        private final Deque<Object> outcomes = new ArrayDeque<>();
+        private final AtomicInteger calls = new AtomicInteger();
+
+        void respond(int status) {
+            outcomes.add(new ConsulResponse(status, Collections.emptyMap(), new byte[0]));
+        }
+
+        void respond(int status, String retryAfter) {
+            outcomes.add(new ConsulResponse(status, Collections.singletonMap("retry-after", retryAfter),
+                    new byte[0]));
+        }
+
+        void fail() {
+            outcomes.add(new ConnectException("Connection refused"));
+        }
+
+        @Override
+        public ConsulResponse send(ConsulRequest request) throws IOException {
+            calls.incrementAndGet();
+            final Object outcome = outcomes.poll();
+            if (outcome instanceof IOException) {
+                throw (IOException) outcome;
+            }
+            return (ConsulResponse) outcome;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.MBeanException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RuntimeRegistrarTest {
+
+    private final RecordingConsulClient client = new RecordingConsulClient();
+    private final Metrics metrics = new Metrics();
+    private final Heartbeat heartbeat = new Heartbeat(client);
+    private final RuntimeRegistrar registrar =
+            new RuntimeRegistrar(client, new Registrations(), metrics, heartbeat, null);
+
+    @After
+    public void stopHeartbeat() {
+        heartbeat.stop();
+    }
+
+    @Test
+    public void onlyChangedServicesGoToConsul() throws Exception {
+        assertThat(registrar.register(newService("tenant-1", "7000")), is(true));
+        assertThat(registrar.register(newService("tenant-1", "7000")), is(false));
+        assertThat(registrar.register(newService("tenant-1", "7001")), is(true));
+        assertThat(registrar.register(newService("tenant-2", "7002")), is(true));
+        assertThat(client.calls, is(Arrays.asList("register tenant-1", "register tenant-1", "register tenant-2")));
+        assertThat(metrics.getServices().get("tenant-1"), is(Metrics.ServiceState.REGISTERED));
+    }
+
+    @Test
+    public void deregisterOnlyKnownServices() throws Exception {
+        registrar.register(newService("tenant-1", "7000"));
+        assertThat(registrar.deregister("tenant-1"), is(true));
+        assertThat(registrar.deregister("tenant-1"), is(false));
+        assertThat(client.calls, is(Arrays.asList("register tenant-1", "deregister tenant-1")));
+        assertTrue(registrar.getRegistrations().getServiceIds().isEmpty());
+        assertTrue(metrics.getServices().isEmpty());
+    }
+
+    @Test
+    public void onlyChangedKeysGoToConsul() throws Exception {
+        assertThat(registrar.storeKeyValue("app/key", "value"), is(true));
+        assertThat(registrar.storeKeyValue("app/key", "value"), is(false));
+        assertThat(registrar.removeKey("app/key"), is(true));
+        assertThat(registrar.removeKey("app/key"), is(false));
+        assertThat(client.calls, is(Arrays.asList("store app/key=value", "remove app/key")));
+    }
+
+    @Test
+    public void failedRegistrationIsNotTracked() throws Exception {
+        client.failing = true;
+        try {
+            registrar.register(newService("tenant-1", "7000"));
+            fail("Expected the registration to fail");
+        } catch (RegistratorException e) {
+            assertTrue(registrar.getRegistrations().getServiceIds().isEmpty());
+        }
+    }
+
+    @Test
+    public void failedDeregistrationIsStillTracked() throws Exception {
+        registrar.register(newService("tenant-1", "7000"));
+        client.failing = true;
+        try {
+            registrar.deregister("tenant-1");
+            fail("Expected the deregistration to fail");
+        } catch (RegistratorException e) {
+            assertThat(registrar.getRegistrations().getServiceIds().contains("tenant-1"), is(true));
+        }
+    }
+
+    @Test
+    public void changesAreRejectedOnceClosed() throws Exception {
+        assertTrue(registrar.getRegistrations().close(System.nanoTime()));
+        try {
+            registrar.storeKeyValue("app/key", "value");
+            fail("Expected the change to be rejected");
+        } catch (RegistratorException e) {
+            assertTrue(client.calls.isEmpty());
+            assertThat(registrar.getRegistrations().hasKeys(), is(false));
+        }
+    }
+
+    @Test
+    public void heartbeatsStopOnDeregistration() throws Exception {
+        final Service service = Catalog.newCatalog().newService()
+                .withId("tenant-1").withName("tenant").withPort("7000").withTtlCheck("300ms")
+                .build().build().getServices().iterator().next();
+        registrar.register(service);
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertTrue(client.calls.contains("pass service:tenant-1"));
+        registrar.deregister("tenant-1");
+        final int calls = client.calls.size();
+        TimeUnit.MILLISECONDS.sleep(300);
+        assertThat(client.calls.size(), is(calls));
+    }
+
+    @Test
+    public void mbeanRegistersServicesAndKeys() throws Exception {
+        RuntimeRegistrarMBean.register(registrar);
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(RuntimeRegistrarMBean.OBJECT_NAME);
+        final Object changed = server.invoke(name, RuntimeRegistrarMBean.REGISTER_HTTP_SERVICE,
+                new Object[]{"tenant", "tenant-1", "", 7000, "http://localhost:{port}/health", "", new String[]{"a"}},
+                new String[]{String.class.getName(), String.class.getName(), String.class.getName(),
+                        Integer.class.getName(), String.class.getName(), String.class.getName(),
+                        String[].class.getName()});
+        assertThat(changed, is(true));
+        server.invoke(name, RuntimeRegistrarMBean.STORE_KEY_VALUE, new Object[]{"/app/key", "value"},
+                new String[]{String.class.getName(), String.class.getName()});
+        assertThat((String[]) server.getAttribute(name, "Services"), is(new String[]{"tenant-1"}));
+        assertThat((String[]) server.getAttribute(name, "Keys"), is(new String[]{"app/key"}));
+        assertThat(client.calls, is(Arrays.asList("register tenant-1", "store app/key=value")));
+    }
+
+    @Test
+    public void mbeanReportsInvalidServicesWithoutAgentClasses() throws Exception {
+        RuntimeRegistrarMBean.register(registrar);
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.invoke(new ObjectName(RuntimeRegistrarMBean.OBJECT_NAME),
+                    RuntimeRegistrarMBean.REGISTER_TTL_SERVICE,
+                    new Object[]{"tenant", "", null, 7000, "10s", null},
+                    new String[]{String.class.getName(), String.class.getName(), String.class.getName(),
+                            Integer.class.getName(), String.class.getName(), String[].class.getName()});
+            fail("Expected the registration to fail");
+        } catch (MBeanException e) {
+            assertThat(e.getTargetException(), instanceOf(IllegalStateException.class));
+            assertThat(e.getTargetException().getMessage(), is("Required service ID is missing"));
+        }
+        assertTrue(client.calls.isEmpty());
+    }
+
+    private static Service newService(String id, String port) {
+        return Catalog.newCatalog().newService()
+                .withId(id).withName("tenant").withPort(port).withHttpCheckUrl("http://localhost/health")
+                .build().build().getServices().iterator().next();
+    }
+
+    private static class RecordingConsulClient extends NoOpConsulClient {
+        final List<String> calls = new CopyOnWriteArrayList<>();
+        volatile boolean failing;
+
+        @Override
+        public void register(Service service) {
+            if (failing) {
+                throw new RegistratorException("Consul is down");
+            }
+            calls.add("register " + service.getId());
+        }
+
+        @Override
+        public void deregister(String serviceId) {
+            if (failing) {
+                throw new RegistratorException("Consul is down");
+            }
+            calls.add("deregister " + serviceId);
+        }
+
+        @Override
+        public void storeKeyValue(String key, String value) {
+            calls.add("store " + key + "=" + value);
+        }
+
+        @Override
+        public void removeKey(String key) {
+            calls.add("remove " + key);
+        }
+
+        @Override
+        public void passCheck(String checkId) {
+            calls.add("pass " + checkId);
+        }
+    }
+}
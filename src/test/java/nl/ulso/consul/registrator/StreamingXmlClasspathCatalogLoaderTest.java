@@ -0,0 +1,27 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs all tests of the DOM based loader against the streaming loader.
+ */
+public class StreamingXmlClasspathCatalogLoaderTest extends XmlClasspathCatalogLoaderTest {
+
+    @Test
+    public void nestedElementsAreIgnored() throws Exception {
+        Catalog catalog = load("nested-elements-catalog.xml");
+        assertThat(catalog.getServices().size(), is(1));
+        assertThat(catalog.getServices().iterator().next().toString(), containsString("tags=[v1]"));
+        assertThat(catalog.getKeyValuePairs().size(), is(1));
+        assertThat(catalog.getKeyValuePairs().get("foo"), is("bar"));
+    }
+
+    @Override
+    Catalog load(String filename) {
+        return new StreamingXmlClasspathCatalogLoader("catalogs/" + filename).load();
+    }
+}
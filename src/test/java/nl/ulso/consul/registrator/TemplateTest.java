@@ -0,0 +1,47 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TemplateTest {
+
+    @Test
+    public void variablesInOrderOfAppearance() throws Exception {
+        final Template template = Template.parse("http://${HOST:localhost}:${PORT0}/${HOST}");
+        assertThat(template.getVariables(), is(new HashSet<>(Arrays.asList("HOST", "PORT0"))));
+        assertThat(template.getVariables().iterator().next(), is("HOST"));
+    }
+
+    @Test
+    public void templateUsesItsVariables() throws Exception {
+        final Template template = Template.parse("http://localhost:${PORT0}/health");
+        assertTrue(template.uses(Collections.singleton("PORT0")));
+        assertFalse(template.uses(Collections.singleton("PORT1")));
+    }
+
+    @Test
+    public void escapedVariableIsConstant() throws Exception {
+        final Template template = Template.parse("$${PORT0}");
+        assertTrue(template.isConstant());
+        assertThat(template.render(name -> null), is("${PORT0}"));
+        assertThat(template.toString(), is("$${PORT0}"));
+    }
+
+    @Test
+    public void unterminatedVariableIsLiteral() throws Exception {
+        assertThat(Template.parse("${PORT0").render(name -> "9000"), is("${PORT0"));
+    }
+
+    @Test(expected = RegistratorException.class)
+    public void missingVariableWithoutDefault() throws Exception {
+        Template.parse("${PORT0}").render(name -> null);
+    }
+}
@@ -0,0 +1,144 @@
+package nl.ulso.consul.registrator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class UnixSocketTransportTest {
+
+    private Path directory;
+    private Path socket;
+    private ServerSocketChannel server;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile String response;
+    private volatile long delayMilliseconds;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(UnixSocketTransport.isSupported());
+        directory = Files.createTempDirectory("consul");
+        socket = directory.resolve("consul.sock");
+        // Opened through reflection for the same reason as in the transport itself: the code must compile on Java 11.
+        server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        server.bind(UnixSocketTransport.address(socket.toString()));
+        response = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK";
+        final Thread thread = new Thread(this::accept);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.close();
+            Files.deleteIfExists(socket);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private void accept() {
+        while (server.isOpen()) {
+            try {
+                final SocketChannel channel = server.accept();
+                connections.incrementAndGet();
+                final Thread thread = new Thread(() -> serve(channel));
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (SocketChannel c = channel) {
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(c), ISO_8859_1));
+            final OutputStream output = Channels.newOutputStream(c);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int length = 0;
+                while (!(line = reader.readLine()).isEmpty()) {
+                    if (line.toLowerCase().startsWith("content-length:")) {
+                        length = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                reader.skip(length);
+                Thread.sleep(delayMilliseconds);
+                output.write(response.getBytes(ISO_8859_1));
+                output.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // Client went away.
+        }
+    }
+
+    private UnixSocketTransport newTransport() {
+        return new UnixSocketTransport(socket.toString(), 500);
+    }
+
+    @Test
+    public void requestAndResponse() throws Exception {
+        final ConsulResponse r = newTransport().send(ConsulRequest.put("/v1/kv/key", "value".getBytes(ISO_8859_1)));
+        assertThat(r.getStatus(), is(200));
+        assertThat(r.getBodyAsString(), is("OK"));
+    }
+
+    @Test
+    public void connectionIsReused() throws Exception {
+        final UnixSocketTransport transport = newTransport();
+        for (int i = 0; i < 5; i++) {
+            assertThat(transport.send(ConsulRequest.get("/v1/agent/self")).getStatus(), is(200));
+        }
+        assertThat(connections.get(), is(1));
+    }
+
+    @Test
+    public void largeResponse() throws Exception {
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            body.append((char) ('a' + i % 26));
+        }
+        response = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        assertThat(newTransport().send(ConsulRequest.get("/v1/kv/?recurse=true")).getBodyAsString(),
+                is(body.toString()));
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void slowResponseTimesOut() throws Exception {
+        delayMilliseconds = 1000;
+        newTransport().send(ConsulRequest.get("/v1/agent/self"));
+    }
+
+    @Test
+    public void readTimeoutOfRequestIsHonoured() throws Exception {
+        delayMilliseconds = 700;
+        final ConsulRequest request = ConsulRequest.get("/v1/agent/services?wait=1s").withReadTimeout(2000);
+        assertThat(newTransport().send(request).getStatus(), is(200));
+    }
+
+    @Test
+    public void address() throws Exception {
+        assertThat(newTransport().toString(), is("unix://" + socket));
+    }
+}
@@ -7,6 +7,7 @@ import java.util.Map;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 public class XmlClasspathCatalogLoaderTest {
 
@@ -36,6 +37,15 @@ public class XmlClasspathCatalogLoaderTest {
         assertThat(pairs.get("foo"), is("bar"));
     }
 
+    @Test
+    public void ttlCheckCatalog() throws Exception {
+        Catalog catalog = load("ttl-check-catalog.xml");
+        final Service service = findService(catalog, "myservice");
+        assertTrue(service.hasTtlCheck());
+        assertThat(service.getTtl(), is("15s"));
+        assertThat(service.getHealthPredicate(), is("com.example.HealthPredicate"));
+    }
+
     @Test
     public void complexCatalog() throws Exception {
         Catalog catalog = load("complex-catalog.xml");
@@ -68,6 +78,11 @@ public class XmlClasspathCatalogLoaderTest {
         assertThat(service3, containsString("tags=[]"));
     }
 
+    @Test(expected = RegistratorException.class)
+    public void serviceWithBothChecks() throws Exception {
+        load("both-checks-catalog.xml");
+    }
+
     @Test(expected = RegistratorException.class)
     public void missingCatalog() throws Exception {
         load("non-existing.xml");
@@ -87,7 +102,7 @@ public class XmlClasspathCatalogLoaderTest {
         return catalog.getServices().stream().filter(s -> s.getId().startsWith(name)).findFirst().get();
     }
 
-    private Catalog load(String filename) {
+    Catalog load(String filename) {
         return new XmlClasspathCatalogLoader("catalogs/" + filename).load();
     }
 }
\ No newline at end of file